@@ -23,12 +23,15 @@ import android.view.View;
 import android.widget.ImageView;
 
 import com.android.contacts.common.ContactPhotoManager;
+import com.android.contacts.common.ContactPhotoMetrics;
 
 /**
  * A photo preloader that always uses the "no contact" picture and never executes any real
  * db queries
  */
 public class MockContactPhotoManager extends ContactPhotoManager {
+    private final ContactPhotoMetrics mMetrics = new ContactPhotoMetrics();
+
     @Override
     public void loadThumbnail(ImageView view, long photoId, Account account,
             boolean darkTheme, boolean isCircular,
@@ -74,6 +77,20 @@ public class MockContactPhotoManager extends ContactPhotoManager {
     public void preloadPhotosInBackground() {
     }
 
+    @Override
+    public void setPreloadPhotoIds(long[] photoIds) {
+    }
+
+    @Override
+    public void prefetchPhotos(long[] photoIds, Uri[] photoUris, int direction,
+            float velocity) {
+    }
+
+    @Override
+    public ContactPhotoMetrics getMetrics() {
+        return mMetrics;
+    }
+
     @Override
     public void clear() {
     }
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded on-disk cache of encoded contact photos, used by {@link ContactPhotoManager}
+ * as a second level behind its in-memory caches so that thumbnails survive process death.
+ * <p>
+ * Each entry lives in its own file, named after the photo id or a digest of the photo uri.
+ * Entries keyed by photo id also store the {@code DATA_VERSION} of the photo row they were
+ * read from; a lookup with a different version deletes the entry, so a changed photo is never
+ * served from disk. When the total size exceeds the budget the least recently used entries
+ * are deleted.
+ * <p>
+ * The modification time of each file is the last time the entry was written or read, so that
+ * the order of use survives the process. Reads only update it once a minute. The time the
+ * entry was written, its age, is stored in the entry itself.
+ * <p>
+ * The index is built lazily on first access, so none of the methods should be called on the
+ * UI thread.
+ */
+class ContactPhotoDiskCache {
+    private static final String TAG = "ContactPhotoDiskCache";
+    private static final boolean DEBUG = ContactPhotoManager.DEBUG;
+
+    /** Bumped whenever the on-disk entry format changes; older entries are discarded. */
+    private static final int MAGIC = 0x43504433; // "CPD3"
+
+    /** Reads of an entry within this interval do not update its modification time again. */
+    private static final long TOUCH_INTERVAL_MILLIS = 60 * 1000;
+
+    private static final String ID_PREFIX = "id_";
+    private static final String URI_PREFIX = "uri_";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Version stored for entries that are not tied to a row in the data table. */
+    static final long NO_VERSION = -1;
+
+    /** Version stored for uri entries that hold a downsampled thumbnail of the photo. */
+    static final long THUMBNAIL_VERSION = -2;
+
+    /**
+     * An entry read from the cache.
+     */
+    static final class Entry {
+        final long version;
+        final byte[] bytes;
+        /** Opaque string stored with the entry by its writer, or null. */
+        final String tag;
+        /** When the entry was written, in {@link System#currentTimeMillis} time. */
+        final long writtenMillis;
+
+        Entry(long version, byte[] bytes, String tag, long writtenMillis) {
+            this.version = version;
+            this.bytes = bytes;
+            this.tag = tag;
+            this.writtenMillis = writtenMillis;
+        }
+
+        /**
+         * Returns true if the entry holds a thumbnail that was downsampled for a particular
+         * size when the photo was loaded, rather than the photo as it was fetched.
+         */
+        boolean isThumbnail() {
+            return version == THUMBNAIL_VERSION;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    /** File name to file size, in access order. Null until {@link #ensureIndex} is called. */
+    private LinkedHashMap<String, Long> mIndex;
+    private long mSize;
+
+    public ContactPhotoDiskCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached bytes for the given photo id, or null if there is no entry or the
+     * entry was written for a different version of the photo.
+     */
+    public synchronized byte[] get(long photoId, long dataVersion) {
+        final String name = ID_PREFIX + photoId;
+        final Entry entry = read(name);
+        if (entry != null && entry.version != dataVersion) {
+            if (DEBUG) Log.d(TAG, "Version changed for " + name + ", dropping entry");
+            delete(name);
+            return null;
+        }
+        return entry == null ? null : entry.bytes;
+    }
+
+    /**
+     * Returns the cached entry for the given photo uri, or null if there is no entry or the
+     * entry is older than {@code maxAgeMillis}. A negative max age never expires entries.
+     */
+    public synchronized Entry get(Uri photoUri, long maxAgeMillis) {
+        final String name = nameForUri(photoUri);
+        final Entry entry = read(name);
+        if (entry == null) {
+            return null;
+        }
+        if ((entry.version != NO_VERSION && entry.version != THUMBNAIL_VERSION)
+                || (maxAgeMillis >= 0
+                        && System.currentTimeMillis() - entry.writtenMillis > maxAgeMillis)) {
+            delete(name);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns true if there is an entry for the given photo id, whatever its version.
+     */
+    public synchronized boolean contains(long photoId) {
+        return contains(ID_PREFIX + photoId);
+    }
+
+    public synchronized void put(long photoId, long dataVersion, byte[] bytes) {
+        write(ID_PREFIX + photoId, dataVersion, bytes, null);
+    }
+
+    /**
+     * Stores the photo for the given uri.
+     *
+     * @param thumbnail true if the bytes are a downsampled thumbnail rather than the original
+     * photo, see {@link Entry#isThumbnail}.
+     */
+    public synchronized void put(Uri photoUri, byte[] bytes, boolean thumbnail) {
+        put(photoUri, bytes, thumbnail, null);
+    }
+
+    /**
+     * Stores the photo for the given uri together with a tag that is returned in
+     * {@link Entry#tag}, e.g. the validators of an HTTP response.
+     */
+    public synchronized void put(Uri photoUri, byte[] bytes, boolean thumbnail, String tag) {
+        write(nameForUri(photoUri), thumbnail ? THUMBNAIL_VERSION : NO_VERSION, bytes, tag);
+    }
+
+    /**
+     * Marks the entry for the given uri as just used, e.g. after the server confirmed that it
+     * is still valid, without rewriting it. Its age is unchanged.
+     */
+    public synchronized void touch(Uri photoUri) {
+        final String name = nameForUri(photoUri);
+        if (contains(name)) {
+            // Refresh the access order.
+            mIndex.get(name);
+            touch(new File(mDirectory, name), 0);
+        }
+    }
+
+    public synchronized void remove(long photoId) {
+        delete(ID_PREFIX + photoId);
+    }
+
+    public synchronized void remove(Uri photoUri) {
+        delete(nameForUri(photoUri));
+    }
+
+    /**
+     * Deletes every entry.
+     */
+    public synchronized void clear() {
+        ensureIndex();
+        for (String name : mIndex.keySet()) {
+            new File(mDirectory, name).delete();
+        }
+        mIndex.clear();
+        mSize = 0;
+    }
+
+    /** Returns the number of bytes currently stored. */
+    public synchronized long size() {
+        ensureIndex();
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the size of the biggest photo that is stored; bigger ones are dropped so that a
+     * single photo never evicts a big part of the cache.
+     */
+    public long maxEntrySize() {
+        return mMaxSize / 8;
+    }
+
+    private boolean contains(String name) {
+        ensureIndex();
+        return mIndex.containsKey(name);
+    }
+
+    private Entry read(String name) {
+        if (!contains(name)) {
+            return null;
+        }
+        // Refresh the access order.
+        mIndex.get(name);
+
+        final File file = new File(mDirectory, name);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Bad magic");
+            }
+            final long version = in.readLong();
+            final long writtenMillis = in.readLong();
+            final String tag = in.readUTF();
+            final int length = in.readInt();
+            if (length < 0 || length > file.length()) {
+                throw new IOException("Bad length " + length);
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            touch(file, TOUCH_INTERVAL_MILLIS);
+            return new Entry(version, bytes, tag.isEmpty() ? null : tag, writtenMillis);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read cache entry " + name, e);
+            delete(name);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void write(String name, long version, byte[] bytes, String tag) {
+        if (bytes == null || bytes.length == 0 || bytes.length > maxEntrySize()) {
+            // Never evict a big part of the cache for a single photo.
+            delete(name);
+            return;
+        }
+        ensureIndex();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + mDirectory);
+            return;
+        }
+
+        final File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        final File file = new File(mDirectory, name);
+        DataOutputStream out = null;
+        boolean success = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeLong(version);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(tag == null ? "" : tag);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.close();
+            out = null;
+            success = temp.renameTo(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write cache entry " + name, e);
+        } finally {
+            closeQuietly(out);
+            if (!success) {
+                temp.delete();
+            }
+        }
+
+        final Long previous = mIndex.remove(name);
+        if (previous != null) {
+            mSize -= previous;
+        }
+        if (success) {
+            final long length = file.length();
+            mIndex.put(name, length);
+            mSize += length;
+            trimToSize(mMaxSize);
+        }
+    }
+
+    /**
+     * Sets the modification time of the file to now, unless it was set less than
+     * {@code intervalMillis} ago.
+     */
+    private static void touch(File file, long intervalMillis) {
+        final long now = System.currentTimeMillis();
+        final long lastModified = file.lastModified();
+        if (now - lastModified >= intervalMillis || lastModified > now) {
+            file.setLastModified(now);
+        }
+    }
+
+    private void delete(String name) {
+        ensureIndex();
+        final Long length = mIndex.remove(name);
+        if (length != null) {
+            mSize -= length;
+        }
+        new File(mDirectory, name).delete();
+    }
+
+    private void trimToSize(long maxSize) {
+        final Iterator<Map.Entry<String, Long>> iterator = mIndex.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            new File(mDirectory, eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            iterator.remove();
+        }
+        if (DEBUG) Log.d(TAG, "Disk cache size: " + mSize + " / " + maxSize);
+    }
+
+    /**
+     * Builds the in-memory index from the files on disk, least recently used first, so that
+     * the access order of the previous process is restored to within
+     * {@link #TOUCH_INTERVAL_MILLIS}.
+     */
+    private void ensureIndex() {
+        if (mIndex != null) {
+            return;
+        }
+        mIndex = new LinkedHashMap<String, Long>(64, 0.75f, true);
+        mSize = 0;
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Left over from a process that died while writing.
+                file.delete();
+                continue;
+            }
+            final long length = file.length();
+            mIndex.put(name, length);
+            mSize += length;
+        }
+        trimToSize(mMaxSize);
+    }
+
+    private static String nameForUri(Uri uri) {
+        final String key = uri.toString();
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(key.getBytes());
+            final StringBuilder sb = new StringBuilder(URI_PREFIX);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return URI_PREFIX + Integer.toHexString(key.hashCode()) + "_" + key.length();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fetches contact photos over HTTP, e.g. the photo urls returned by extended directories.
+ * Shared by everything that loads such photos, so that the limits below hold for the
+ * whole process.
+ * <p>
+ * At most {@link #MAX_CONCURRENT_FETCHES} responses are open at a time; further callers
+ * block until one is closed. Response bodies that are closed with at most
+ * {@link #DRAIN_LIMIT_BYTES} left are read to the end, so that {@link HttpURLConnection} can
+ * reuse the connection for the next request to the same host. Bodies abandoned earlier are
+ * closed without downloading the rest.
+ * <p>
+ * Bodies that come with an {@code ETag} or {@code Last-Modified} header are kept in a
+ * {@link ContactPhotoDiskCache} with those validators. The next fetch of the same url sends
+ * them back, and on {@code 304 Not Modified} the cached body is returned without being
+ * downloaded again.
+ * <p>
+ * None of the methods may be called on the UI thread.
+ */
+public class ContactPhotoFetcher {
+    private static final String TAG = "ContactPhotoFetcher";
+    private static final boolean DEBUG = ContactPhotoManager.DEBUG;
+
+    private static final String DISK_CACHE_DIRECTORY_NAME = "contact_photos_http";
+    private static final long DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static final int MAX_CONCURRENT_FETCHES = 4;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    /** The most bytes read from a body that is closed before its end, to finish it. */
+    private static final int DRAIN_LIMIT_BYTES = 16 * 1024;
+
+    /** Separates the ETag from the Last-Modified date in the tag of a cache entry. */
+    private static final char VALIDATOR_SEPARATOR = '\n';
+
+    private static ContactPhotoFetcher sInstance;
+
+    private final ContactPhotoDiskCache mDiskCache;
+    private final Semaphore mPermits;
+
+    public static synchronized ContactPhotoFetcher getInstance(Context context) {
+        if (sInstance == null) {
+            final Context applicationContext = context.getApplicationContext();
+            sInstance = new ContactPhotoFetcher(
+                    new File(applicationContext.getCacheDir(), DISK_CACHE_DIRECTORY_NAME),
+                    DISK_CACHE_SIZE, MAX_CONCURRENT_FETCHES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a fetcher with its own limits. Only tests should need this; everything else
+     * should share {@link #getInstance}.
+     */
+    public ContactPhotoFetcher(File cacheDirectory, long cacheSize, int maxConcurrentFetches) {
+        mDiskCache = new ContactPhotoDiskCache(cacheDirectory, cacheSize);
+        mPermits = new Semaphore(maxConcurrentFetches, true);
+    }
+
+    /**
+     * Opens the photo at the given http or https uri, revalidating a cached copy if there is
+     * one. The caller must close the returned stream, which frees its slot for the next
+     * fetch.
+     *
+     * @throws IOException if the server cannot be reached or does not return the photo.
+     */
+    public InputStream open(Uri uri) throws IOException {
+        try {
+            mPermits.acquire();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting to fetch " + uri);
+        }
+        boolean handedOff = false;
+        HttpURLConnection connection = null;
+        try {
+            final ContactPhotoDiskCache.Entry cached = mDiskCache.get(uri, -1);
+            connection = (HttpURLConnection) new URL(uri.toString()).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            // We keep our own copies; the platform cache, if installed, would hold another.
+            connection.setUseCaches(false);
+            if (cached != null && cached.tag != null) {
+                final String etag = getETag(cached.tag);
+                final String lastModified = getLastModified(cached.tag);
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            }
+
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                if (DEBUG) Log.d(TAG, "Not modified: " + uri);
+                drainAndClose(connection.getInputStream());
+                // Refresh the position of the entry in the LRU order.
+                mDiskCache.touch(uri);
+                return new ByteArrayInputStream(cached.bytes);
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                drainAndClose(connection.getErrorStream());
+                throw new IOException("HTTP " + responseCode + " for " + uri);
+            }
+
+            final String tag = isStorable(connection) ? getTag(connection) : null;
+            if (tag == null && cached != null) {
+                mDiskCache.remove(uri);
+            }
+            final InputStream stream = new FetchStream(connection, uri, tag);
+            handedOff = true;
+            return stream;
+        } finally {
+            if (!handedOff) {
+                mPermits.release();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the response may be stored at all.
+     */
+    private static boolean isStorable(HttpURLConnection connection) {
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+        return cacheControl == null || !cacheControl.toLowerCase(Locale.US).contains("no-store");
+    }
+
+    /**
+     * Returns the validators of the response as the tag of a cache entry, or null if there
+     * are none and the body could never be revalidated.
+     */
+    private static String getTag(HttpURLConnection connection) {
+        final String etag = connection.getHeaderField("ETag");
+        final String lastModified = connection.getHeaderField("Last-Modified");
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+        return (etag == null ? "" : etag) + VALIDATOR_SEPARATOR
+                + (lastModified == null ? "" : lastModified);
+    }
+
+    private static String getETag(String tag) {
+        final String etag = tag.substring(0, tag.indexOf(VALIDATOR_SEPARATOR));
+        return etag.isEmpty() ? null : etag;
+    }
+
+    private static String getLastModified(String tag) {
+        final String lastModified = tag.substring(tag.indexOf(VALIDATOR_SEPARATOR) + 1);
+        return lastModified.isEmpty() ? null : lastModified;
+    }
+
+    private static void drainAndClose(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            final byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // Read to the end so the connection can be reused.
+            }
+        } catch (IOException e) {
+            // The connection will not be reused.
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * The body of a response. Keeps a copy of what is read if the body can be revalidated
+     * and is small enough for the disk cache, and stores it once the body was read to the
+     * end. Closing it frees the slot taken by {@link #open}; it first reads the rest of the
+     * body, so the connection can be reused, unless more than {@link #DRAIN_LIMIT_BYTES} are
+     * left.
+     */
+    private class FetchStream extends FilterInputStream {
+        private final HttpURLConnection mConnection;
+        private final Uri mUri;
+        private final String mTag;
+        /** The length of the body, or -1 if unknown. */
+        private final int mContentLength;
+        private ByteArrayOutputStream mCopy;
+        private int mBytesRead;
+        private boolean mEndOfStream;
+        private boolean mClosed;
+
+        public FetchStream(HttpURLConnection connection, Uri uri, String tag)
+                throws IOException {
+            super(connection.getInputStream());
+            mConnection = connection;
+            mUri = uri;
+            mTag = tag;
+            mContentLength = connection.getContentLength();
+            if (tag != null && mContentLength <= mDiskCache.maxEntrySize()) {
+                mCopy = new ByteArrayOutputStream(Math.max(mContentLength, 1024));
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int read = in.read(buffer, offset, count);
+            if (read == -1) {
+                mEndOfStream = true;
+                return read;
+            }
+            mBytesRead += read;
+            if (mCopy != null) {
+                if (mCopy.size() + read > mDiskCache.maxEntrySize()) {
+                    mCopy = null;
+                } else {
+                    mCopy.write(buffer, offset, read);
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Read through the skipped bytes so that the copy stays complete.
+            final byte[] buffer = new byte[(int) Math.min(count, 4096)];
+            long skipped = 0;
+            while (skipped < count) {
+                final int read = read(buffer, 0, (int) Math.min(count - skipped, buffer.length));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                // A body that is abandoned well before its end, e.g. when the caller gives up
+                // on it and opens the photo again, is not downloaded any further.
+                if (mContentLength < 0 || mContentLength - mBytesRead <= DRAIN_LIMIT_BYTES) {
+                    final int limit = mBytesRead + DRAIN_LIMIT_BYTES;
+                    final byte[] buffer = new byte[4096];
+                    while (!mEndOfStream && mBytesRead <= limit) {
+                        read(buffer, 0, buffer.length);
+                    }
+                }
+                if (mEndOfStream && mCopy != null) {
+                    mDiskCache.put(mUri, mCopy.toByteArray(), false, mTag);
+                }
+            } catch (IOException e) {
+                // The body is incomplete; it is neither stored nor is the connection reused.
+            } finally {
+                mCopy = null;
+                mPermits.release();
+                if (!mEndOfStream) {
+                    // Otherwise closing the stream may read the rest of the body to reuse the
+                    // connection.
+                    mConnection.disconnect();
+                }
+                super.close();
+            }
+        }
+    }
+}
@@ -20,10 +20,8 @@ import android.accounts.Account;
 import android.app.ActivityManager;
 import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.Configuration;
-import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -34,18 +32,19 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.media.ThumbnailUtils;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.Handler;
 import android.os.Handler.Callback;
-import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
+import android.provider.ContactsContract.Profile;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawable;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawableFactory;
 import android.text.TextUtils;
@@ -56,20 +55,31 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.android.contacts.common.lettertiles.LetterTileDrawable;
+import com.android.contacts.common.util.BitmapPool;
 import com.android.contacts.common.util.BitmapUtil;
+import com.android.contacts.common.util.PriorityWorkerPool;
+import com.android.contacts.common.util.SortedLongSet;
 import com.android.contacts.common.util.UriUtils;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
-import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -105,6 +115,12 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
 
     public static final String CONTACT_PHOTO_SERVICE = "contactPhotos";
 
+    /** Passed to {@link #prefetchPhotos} when a list scrolls towards its last row. */
+    public static final int SCROLL_DIRECTION_DOWN = 1;
+
+    /** Passed to {@link #prefetchPhotos} when a list scrolls towards its first row. */
+    public static final int SCROLL_DIRECTION_UP = -1;
+
     // Static field used to cache the default letter avatar drawable that is created
     // using a null {@link DefaultImageRequest}
     private static Drawable sDefaultLetterAvatar = null;
@@ -258,6 +274,12 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
         return DEFAULT_IMAGE_URI_SCHEME.equals(uri.getScheme());
     }
 
+    /** Returns true if the photo is fetched over the network. */
+    protected static boolean isRemoteUri(Uri uri) {
+        final String scheme = uri.getScheme();
+        return "http".equals(scheme) || "https".equals(scheme);
+    }
+
     /**
      * Contains fields used to contain contact details and other user-defined settings that might
      * be used by the ContactPhotoManager to generate a default contact image. This contact image
@@ -594,6 +616,45 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
      */
     public abstract void preloadPhotosInBackground();
 
+    /**
+     * Sets the photos to preload, in the order the list shows them, starting with the rows
+     * that are or will be on screen. Without this, the photos of starred and frequently
+     * contacted contacts are preloaded. Preloading starts over with the new photos, after
+     * the list has stopped scrolling.
+     */
+    public abstract void setPreloadPhotoIds(long[] photoIds);
+
+    /**
+     * Loads the photos of rows that are about to be bound into the cache, so that they are
+     * ready when the rows scroll into view. Prefetching never delays photos requested for
+     * views. Each call replaces the rows of the previous one; photos of rows that are no
+     * longer passed and have not been loaded yet are dropped.
+     *
+     * @param photoIds the photo id of each upcoming row, in list order, or 0 for rows whose
+     * photo is given by uri or that have no photo.
+     * @param photoUris the photo uri of each upcoming row, in list order, or null. Only used
+     * for rows without a photo id; http(s) uris are not prefetched. May be null if no row has
+     * a photo uri.
+     * @param direction {@link #SCROLL_DIRECTION_DOWN} or {@link #SCROLL_DIRECTION_UP}. Rows
+     * closest to the viewport in this direction are loaded first.
+     * @param velocity how fast the list scrolls, in rows per second. The faster it scrolls,
+     * the further ahead photos are loaded.
+     */
+    public abstract void prefetchPhotos(long[] photoIds, Uri[] photoUris, int direction,
+            float velocity);
+
+    /**
+     * Returns the counters describing how well the photo caches work.
+     */
+    public abstract ContactPhotoMetrics getMetrics();
+
+    /**
+     * Writes the state of the photo caches and their metrics, e.g. for a dumpsys handler.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        getMetrics().dump(prefix, writer);
+    }
+
     // ComponentCallbacks2
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
@@ -613,6 +674,38 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
 
+    /**
+     * Priority classes of the work done by {@link #mLoaderPool}, highest first: photos for
+     * views that are on screen now, photos referenced by uri (possibly remote), photos of rows
+     * about to scroll into view, preloading.
+     */
+    private static final int PRIORITY_VISIBLE = 0;
+    private static final int PRIORITY_URI = 1;
+    private static final int PRIORITY_PREFETCH = 2;
+    private static final int PRIORITY_PRELOAD = 3;
+
+    /**
+     * Number of loader threads. The pool keeps one of them for {@link #PRIORITY_VISIBLE}; the
+     * others are enough for two uri loads and a prefetch batch at the same time.
+     */
+    private static final int LOADER_THREAD_COUNT = 4;
+
+    /**
+     * Maximum number of tasks of each priority class running at the same time. Visible
+     * thumbnails are loaded in one batched query, so one worker is enough for them; two workers
+     * for uris keep one slow server from blocking the other uris.
+     */
+    private static final int[] LOADER_CLASS_LIMITS = new int[] { 1, 2, 1, 1 };
+
+    /** Fewest rows ahead of the viewport that {@link #prefetchPhotos} loads. */
+    private static final int PREFETCH_MIN_ROWS = 3;
+
+    /**
+     * How far ahead {@link #prefetchPhotos} loads, in milliseconds of scrolling at the
+     * reported velocity.
+     */
+    private static final int PREFETCH_LOOKAHEAD_MILLIS = 600;
+
     private static final int FADE_TRANSITION_DURATION = 200;
 
     /**
@@ -627,14 +720,36 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private static final int MESSAGE_PHOTOS_LOADED = 2;
 
-    private static final String[] EMPTY_STRING_ARRAY = new String[0];
+    /**
+     * Type of message sent by the loader to the UI thread to schedule the next batch of
+     * preloading after a delay.
+     */
+    private static final int MESSAGE_PRELOAD_PHOTOS = 3;
+
+    /** Data rows of the profile, which are not returned by {@link Data#CONTENT_URI}. */
+    private static final Uri PROFILE_DATA_URI =
+            Uri.withAppendedPath(Profile.CONTENT_URI, Contacts.Data.CONTENT_DIRECTORY);
+
+    private static final String[] COLUMNS =
+            new String[] { Photo._ID, Photo.PHOTO, Photo.DATA_VERSION };
+
+    private static final String[] VERSION_COLUMNS =
+            new String[] { Photo._ID, Photo.DATA_VERSION };
 
-    private static final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO };
+    /** Name of the directory, inside the app cache directory, holding the disk cache. */
+    private static final String DISK_CACHE_DIRECTORY_NAME = "contact_photos";
 
     /**
      * Maintains the state of a particular photo.
      */
     private static class BitmapHolder {
+        private static final AtomicInteger sNextId = new AtomicInteger();
+
+        /**
+         * Identifies this holder in {@link VariantKey}s, so that display variants made from an
+         * older version of a photo are never mistaken for variants of the current one.
+         */
+        final int id = sNextId.incrementAndGet();
         final byte[] bytes;
         final int originalSmallerExtent;
 
@@ -643,10 +758,67 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         Reference<Bitmap> bitmapRef;
         int decodedSampleSize;
 
-        public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
+        /**
+         * Whether {@link #bitmapRef} was decoded by us, rather than handed to
+         * {@link #cacheBitmap(Uri, Bitmap, byte[])}, and may thus go back to the bitmap pool.
+         */
+        boolean ownsBitmap;
+
+        /**
+         * Whether the photo was loaded by preloading and has not been shown yet. Only used for
+         * {@link ContactPhotoMetrics}.
+         */
+        volatile boolean preloadedUnseen;
+
+        /**
+         * Whether {@link #bytes} hold a thumbnail downsampled for the extent requested when
+         * the photo was loaded, rather than the photo itself. Such a holder cannot serve
+         * requests for bigger extents.
+         */
+        final boolean downsampled;
+
+        /**
+         * The key the holder was created for. It is charged the full size of {@link #bytes}
+         * in {@link #mBitmapHolderCache}; other keys that share the holder because their
+         * photo has identical bytes are charged {@link #SHARED_HOLDER_SIZE}.
+         */
+        final Object chargedKey;
+
+        /** {@link Arrays#hashCode} of {@link #bytes}, to find holders with identical bytes. */
+        final int contentHash;
+
+        /**
+         * Keys other than {@link #chargedKey} under which the holder is cached, or null.
+         * Guarded by {@link #mHoldersByContent}.
+         */
+        ArrayList<Object> sharedKeys;
+
+        /**
+         * Whether {@link #chargedKey} has left the cache, after which the holder must not be
+         * shared any more. Guarded by {@link #mHoldersByContent}.
+         */
+        boolean released;
+
+        public BitmapHolder(Object chargedKey, byte[] bytes, int originalSmallerExtent) {
+            this(chargedKey, bytes, originalSmallerExtent, false);
+        }
+
+        public BitmapHolder(Object chargedKey, byte[] bytes, int originalSmallerExtent,
+                boolean downsampled) {
+            this.chargedKey = chargedKey;
             this.bytes = bytes;
+            this.contentHash = bytes == null ? 0 : Arrays.hashCode(bytes);
             this.fresh = true;
             this.originalSmallerExtent = originalSmallerExtent;
+            this.downsampled = downsampled;
+        }
+
+        /**
+         * Returns true if the bytes are detailed enough for the requested extent, allowing for
+         * the same 20% that {@link BitmapUtil#findOptimalSampleSize} allows.
+         */
+        public boolean covers(int requestedExtent) {
+            return !downsampled || requestedExtent * 0.8f <= originalSmallerExtent;
         }
     }
 
@@ -659,6 +831,21 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private final LruCache<Object, BitmapHolder> mBitmapHolderCache;
 
+    /**
+     * Holders in {@link #mBitmapHolderCache} by the hash of their bytes, so that a photo whose
+     * bytes are identical to a cached one, e.g. the same picture on linked raw contacts, can
+     * share its holder and decoded bitmap instead of taking up the cache a second time.
+     * Also the lock for the sharing state of all holders.
+     */
+    private final HashMap<Integer, BitmapHolder> mHoldersByContent =
+            new HashMap<Integer, BitmapHolder>();
+
+    /**
+     * Size charged in {@link #mBitmapHolderCache} for a key that shares the holder of another
+     * key, roughly the cost of the cache entry.
+     */
+    private static final int SHARED_HOLDER_SIZE = 64;
+
     /**
      * {@code true} if ALL entries in {@link #mBitmapHolderCache} are NOT fresh.
      */
@@ -673,12 +860,56 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * Level 2 LRU cache for bitmaps. This is a smaller cache that holds
      * the most recently used bitmaps to save time on decoding
      * them from bytes (the bytes are stored in {@link #mBitmapHolderCache}.
+     * Bitmaps are stored as they are displayed, already cropped and rounded, keyed by
+     * {@link VariantKey}.
+     */
+    private final LruCache<VariantKey, Bitmap> mBitmapCache;
+
+    /**
+     * Unused bitmaps kept for reuse when decoding and cropping. Its size is taken from the
+     * budget of {@link #mBitmapCache}.
+     */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * Decoded or rounded bitmaps that may go back to {@link #mBitmapPool} once they are
+     * neither shown by a view nor retained by {@link #mBitmapCache}. Only accessed on the UI
+     * thread.
+     */
+    private final WeakHashMap<Bitmap, BitmapUsage> mBitmapUsage =
+            new WeakHashMap<Bitmap, BitmapUsage>();
+
+    /**
+     * The tracked bitmap currently shown by each view. Only accessed on the UI thread.
+     */
+    private final WeakHashMap<ImageView, Bitmap> mViewBitmaps =
+            new WeakHashMap<ImageView, Bitmap>();
+
+    /**
+     * Where a bitmap in {@link #mBitmapUsage} is still in use.
+     */
+    private static class BitmapUsage {
+        /** The holder referring to the bitmap, or null for a rounded variant. */
+        final BitmapHolder holder;
+        int displayCount;
+        /** Number of keys under which {@link #mBitmapCache} retains the bitmap. */
+        int cacheCount;
+
+        public BitmapUsage(BitmapHolder holder) {
+            this.holder = holder;
+        }
+    }
+
+    /**
+     * Persistent cache of encoded photos, checked by the loader thread before querying the
+     * provider. Survives process death, unlike the two caches above.
      */
-    private final LruCache<Object, Bitmap> mBitmapCache;
+    private final ContactPhotoDiskCache mDiskCache;
 
     /**
      * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request.
-     * The request may swapped out before the photo loading request is started.
+     * The request may swapped out before the photo loading request is started. Only changed
+     * on the UI thread, through {@link #putPendingRequest} and {@link #removePendingRequest}.
      */
     private final ConcurrentHashMap<ImageView, Request> mPendingRequests =
             new ConcurrentHashMap<ImageView, Request>();
@@ -689,10 +920,24 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private final Handler mMainThreadHandler = new Handler(this);
 
     /**
-     * Thread responsible for loading photos from the database. Created upon
+     * Workers loading photos from the database and from uris. Threads are created upon
      * the first request.
      */
-    private LoaderThread mLoaderThread;
+    private final PriorityWorkerPool mLoaderPool = new PriorityWorkerPool(LOADER_THREAD_NAME,
+            LOADER_THREAD_COUNT, LOADER_CLASS_LIMITS);
+
+    /**
+     * Loads photos on {@link #mLoaderPool}. Created upon the first request.
+     */
+    private PhotoLoader mLoader;
+
+    /**
+     * Loads of photos by uri, keyed by {@link Request#getKey}, that a view waits for or that
+     * are queued or running on {@link #mLoaderPool}. Requests for the same uri share one task,
+     * so that a photo shown by several views at once is fetched and decoded only once.
+     * Guarded by itself.
+     */
+    private final HashMap<Object, UriLoadTask> mUriTasks = new HashMap<Object, UriLoadTask>();
 
     /**
      * A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time.
@@ -704,12 +949,46 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private boolean mPaused;
 
-    /** Cache size for {@link #mBitmapHolderCache} for devices with "large" RAM. */
+    /**
+     * When a view last asked for a photo, in {@link SystemClock#uptimeMillis}. Views ask for
+     * photos as they are bound, so this is recent while a list is scrolling. Only accessed on
+     * the UI thread.
+     */
+    private long mLastViewRequestTime;
+
+    /**
+     * How long after the last photo request from a view preloading waits, so that it does
+     * not compete with a list that is scrolling.
+     */
+    private static final int PRELOAD_SCROLL_IDLE_MILLIS = 500;
+
+    /**
+     * Cache size for {@link #mBitmapHolderCache} for devices with a memory class of
+     * {@link #REFERENCE_MEMORY_CLASS}.
+     */
     private static final int HOLDER_CACHE_SIZE = 2000000;
 
-    /** Cache size for {@link #mBitmapCache} for devices with "large" RAM. */
+    /**
+     * Cache size for {@link #mBitmapCache} and {@link #mBitmapPool} together for devices with
+     * a memory class of {@link #REFERENCE_MEMORY_CLASS}.
+     */
     private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
 
+    /** Part of {@link #BITMAP_CACHE_SIZE} given to {@link #mBitmapPool}. */
+    private static final float BITMAP_POOL_FRACTION = 0.25f;
+
+    /** Cache size for {@link #mDiskCache} for devices with "large" RAM. */
+    private static final int DISK_CACHE_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Memory class, in megabytes, that the in-memory cache sizes above are meant for. The
+     * sizes are scaled by the memory class of the device relative to this, within
+     * {@link #MIN_CACHE_SIZE_ADJUSTMENT} and {@link #MAX_CACHE_SIZE_ADJUSTMENT}.
+     */
+    private static final int REFERENCE_MEMORY_CLASS = 64;
+    private static final float MIN_CACHE_SIZE_ADJUSTMENT = 0.5f;
+    private static final float MAX_CACHE_SIZE_ADJUSTMENT = 2.0f;
+
     /** Height/width of a thumbnail image */
     private static int mThumbnailSize;
 
@@ -719,47 +998,95 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     /** For debug: How many times we had to reload cached photo for a fresh entry.  Should be 0. */
     private final AtomicInteger mFreshCacheOverwrite = new AtomicInteger();
 
+    private final ContactPhotoMetrics mMetrics = new ContactPhotoMetrics();
+
     public ContactPhotoManagerImpl(Context context) {
         mContext = context;
 
         final ActivityManager am = ((ActivityManager) context.getSystemService(
                 Context.ACTIVITY_SERVICE));
 
-        final float cacheSizeAdjustment = (am.isLowRamDevice()) ? 0.5f : 1.0f;
+        final float cacheSizeAdjustment = getCacheSizeAdjustment(am);
+        final float diskCacheSizeAdjustment = (am.isLowRamDevice()) ? 0.5f : 1.0f;
 
-        final int bitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
-        mBitmapCache = new LruCache<Object, Bitmap>(bitmapCacheSize) {
-            @Override protected int sizeOf(Object key, Bitmap value) {
+        final int bitmapPoolSize =
+                (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE * BITMAP_POOL_FRACTION);
+        mBitmapPool = new BitmapPool(bitmapPoolSize);
+        final int bitmapCacheSize =
+                (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE) - bitmapPoolSize;
+        mBitmapCache = new LruCache<VariantKey, Bitmap>(bitmapCacheSize) {
+            @Override protected int sizeOf(VariantKey key, Bitmap value) {
                 return value.getByteCount();
             }
 
             @Override protected void entryRemoved(
-                    boolean evicted, Object key, Bitmap oldValue, Bitmap newValue) {
+                    boolean evicted, VariantKey key, final Bitmap oldValue, Bitmap newValue) {
                 if (DEBUG) dumpStats();
+                if (evicted) {
+                    mMetrics.recordEviction(ContactPhotoMetrics.TIER_BITMAP);
+                }
+                if (oldValue != newValue) {
+                    if (Looper.myLooper() == Looper.getMainLooper()) {
+                        onBitmapUncached(oldValue);
+                    } else {
+                        mMainThreadHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onBitmapUncached(oldValue);
+                            }
+                        });
+                    }
+                }
             }
         };
         final int holderCacheSize = (int) (cacheSizeAdjustment * HOLDER_CACHE_SIZE);
         mBitmapHolderCache = new LruCache<Object, BitmapHolder>(holderCacheSize) {
             @Override protected int sizeOf(Object key, BitmapHolder value) {
-                return value.bytes != null ? value.bytes.length : 0;
+                if (value.bytes == null) {
+                    return 0;
+                }
+                return key.equals(value.chargedKey) ? value.bytes.length : SHARED_HOLDER_SIZE;
             }
 
             @Override protected void entryRemoved(
                     boolean evicted, Object key, BitmapHolder oldValue, BitmapHolder newValue) {
                 if (DEBUG) dumpStats();
+                if (evicted) {
+                    mMetrics.recordEviction(ContactPhotoMetrics.TIER_HOLDER);
+                }
+                if (oldValue != newValue) {
+                    onHolderUncached(key, oldValue);
+                }
             }
         };
         mBitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
+        mDiskCache = new ContactPhotoDiskCache(
+                new File(context.getCacheDir(), DISK_CACHE_DIRECTORY_NAME),
+                (long) (diskCacheSizeAdjustment * DISK_CACHE_SIZE));
         Log.i(TAG, "Cache adj: " + cacheSizeAdjustment);
         if (DEBUG) {
             Log.d(TAG, "Cache size: " + btk(mBitmapHolderCache.maxSize())
-                    + " + " + btk(mBitmapCache.maxSize()));
+                    + " + " + btk(mBitmapCache.maxSize()) + " + " + btk(mBitmapPool.maxSize()));
         }
 
         mThumbnailSize = context.getResources().getDimensionPixelSize(
                 R.dimen.contact_browser_list_item_photo_size);
     }
 
+    /**
+     * Returns the factor for the in-memory cache sizes: the memory class of the device
+     * relative to {@link #REFERENCE_MEMORY_CLASS}, and never more than the minimum on low-RAM
+     * devices.
+     */
+    private static float getCacheSizeAdjustment(ActivityManager am) {
+        if (am.isLowRamDevice()) {
+            return MIN_CACHE_SIZE_ADJUSTMENT;
+        }
+        final float adjustment = (float) am.getMemoryClass() / REFERENCE_MEMORY_CLASS;
+        return Math.max(MIN_CACHE_SIZE_ADJUSTMENT,
+                Math.min(MAX_CACHE_SIZE_ADJUSTMENT, adjustment));
+    }
+
     /** Converts bytes to K bytes, rounding up.  Used only for debug log. */
     private static String btk(int bytes) {
         return ((bytes + 1023) / 1024) + "K";
@@ -809,23 +1136,116 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
             Log.d(TAG, "L2: " + btk(bitmapBytes) + ", " + numBitmaps + " bitmaps"
                     + ", avg: " + btk(safeDiv(bitmapBytes, numBitmaps)));
-            // We don't get from L2 cache, so L2 stats is meaningless.
+            Log.d(TAG, "L2 Stats: " + mBitmapCache.toString());
         }
     }
 
+    /**
+     * Gives memory back in steps. The bitmap pool holds nothing that is in use and is emptied
+     * at every level. Decoded bitmaps go next, since they are bigger than the encoded bytes
+     * they can be decoded from again. The holders go last, and even then the photos can be
+     * read back from {@link #mDiskCache} rather than from the provider. Pending requests are
+     * kept, so visible views still get their photos.
+     */
     @Override
     public void onTrimMemory(int level) {
         if (DEBUG) Log.d(TAG, "onTrimMemory: " + level);
-        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
-            // Clear the caches.  Note all pending requests will be removed too.
-            clear();
+        final long cachedBytes = getCachedBytes();
+        final float holderFraction;
+        final float bitmapFraction;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            holderFraction = 0f;
+            bitmapFraction = 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            holderFraction = 0.5f;
+            bitmapFraction = 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            holderFraction = 1f;
+            bitmapFraction = 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            holderFraction = 1f;
+            bitmapFraction = 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            holderFraction = 0.5f;
+            bitmapFraction = 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            holderFraction = 1f;
+            bitmapFraction = 0.5f;
+        } else {
+            holderFraction = 1f;
+            bitmapFraction = 0.75f;
         }
+
+        mBitmapCache.trimToSize((int) (mBitmapCache.maxSize() * bitmapFraction));
+        mBitmapHolderCache.trimToSize((int) (mBitmapHolderCache.maxSize() * holderFraction));
+        softenCache();
+        // Last: bitmaps evicted by the trims above are put back into the pool.
+        mBitmapPool.evictAll();
+        mMetrics.recordTrim(level, cachedBytes - getCachedBytes());
+    }
+
+    /** Returns the number of bytes held by the in-memory caches and the bitmap pool. */
+    private long getCachedBytes() {
+        return (long) mBitmapHolderCache.size() + mBitmapCache.size() + mBitmapPool.size();
+    }
+
+    @Override
+    public ContactPhotoMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "holders: " + mBitmapHolderCache.size() + "/"
+                + mBitmapHolderCache.maxSize() + "B, " + mBitmapHolderCache.snapshot().size()
+                + " entries");
+        writer.println(prefix + "bitmaps: " + mBitmapCache.size() + "/"
+                + mBitmapCache.maxSize() + "B, " + mBitmapCache.snapshot().size() + " entries");
+        writer.println(prefix + "bitmap pool: " + mBitmapPool.size() + "/"
+                + mBitmapPool.maxSize() + "B");
+        writer.println(prefix + "disk: max " + mDiskCache.maxSize() + "B");
+        super.dump(prefix, writer);
     }
 
     @Override
     public void preloadPhotosInBackground() {
-        ensureLoaderThread();
-        mLoaderThread.requestPreloading();
+        ensureLoader();
+        mLoader.requestPreloading();
+    }
+
+    @Override
+    public void setPreloadPhotoIds(long[] photoIds) {
+        ensureLoader();
+        mLoader.setPreloadPhotoIds(photoIds);
+    }
+
+    @Override
+    public void prefetchPhotos(long[] photoIds, Uri[] photoUris, int direction,
+            float velocity) {
+        final int rowCount = photoIds.length;
+        final int wanted = Math.min(rowCount, Math.max(PREFETCH_MIN_ROWS,
+                (int) Math.ceil(velocity * PREFETCH_LOOKAHEAD_MILLIS / 1000f)));
+        final ArrayList<Object> keys = new ArrayList<Object>(wanted);
+        for (int i = 0; i < wanted; i++) {
+            final int row = direction == SCROLL_DIRECTION_UP ? rowCount - 1 - i : i;
+            final Object key;
+            if (photoIds[row] != 0) {
+                key = photoIds[row];
+            } else if (photoUris != null && photoUris[row] != null
+                    && !isDefaultImageUri(photoUris[row]) && !isRemoteUri(photoUris[row])) {
+                // Remote photos are not prefetched: a slow server would hold loader threads
+                // for photos that may never be shown.
+                key = Request.createFromUri(photoUris[row], -1, false, false, DEFAULT_AVATAR);
+            } else {
+                continue;
+            }
+            if (mBitmapHolderCache.get(key instanceof Request ? ((Request) key).getKey() : key)
+                    == null) {
+                keys.add(key);
+            }
+        }
+        ensureLoader();
+        mLoader.requestPrefetching(keys);
     }
 
     @Override
@@ -835,7 +1255,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         if (photoId == 0) {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, account, -1, darkTheme, defaultImageRequest);
-            mPendingRequests.remove(view);
+            onViewBitmapChanged(view, null);
+            removePendingRequest(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoId);
             loadPhotoByIdOrUri(view, Request.createFromThumbnailId(photoId, darkTheme, isCircular,
@@ -851,7 +1272,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, account, requestedExtent, darkTheme,
                     defaultImageRequest);
-            mPendingRequests.remove(view);
+            onViewBitmapChanged(view, null);
+            removePendingRequest(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoUri);
             if (isDefaultImageUri(photoUri)) {
@@ -870,14 +1292,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         DefaultImageRequest request = getDefaultImageRequestFromUri(uri);
         request.isCircular = isCircular;
         defaultProvider.applyDefaultImage(view, account, requestedExtent, darkTheme, request);
+        onViewBitmapChanged(view, null);
     }
 
     private void loadPhotoByIdOrUri(ImageView view, Request request) {
-        boolean loaded = loadCachedPhoto(view, request, false);
+        mLastViewRequestTime = SystemClock.uptimeMillis();
+        boolean loaded = loadCachedPhoto(view, request, false, true);
         if (loaded) {
-            mPendingRequests.remove(view);
+            removePendingRequest(view);
         } else {
-            mPendingRequests.put(view, request);
+            putPendingRequest(view, request);
             if (!mPaused) {
                 // Send a request to start loading photos
                 requestLoading();
@@ -888,7 +1312,97 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     @Override
     public void removePhoto(ImageView view) {
         view.setImageDrawable(null);
-        mPendingRequests.remove(view);
+        onViewBitmapChanged(view, null);
+        removePendingRequest(view);
+    }
+
+    /**
+     * Makes the view wait for the photo of the request, in place of any photo it waited for
+     * before. Called on the UI thread.
+     */
+    private void putPendingRequest(ImageView view, Request request) {
+        // Attach first, so that the loader never sees a request without its task.
+        attachUriRequest(request);
+        final Request previous = mPendingRequests.put(view, request);
+        // The view may have been recycled for another photo.
+        detachUriRequest(previous);
+    }
+
+    /**
+     * Stops the view from waiting for its photo, if it does. Called on the UI thread.
+     */
+    private void removePendingRequest(ImageView view) {
+        detachUriRequest(mPendingRequests.remove(view));
+    }
+
+    /**
+     * Counts a view waiting for the photo of a uri request, registering a task to load the
+     * photo if there is none yet. The loader thread queues the task.
+     */
+    private void attachUriRequest(Request request) {
+        if (!request.isUriRequest()) {
+            return;
+        }
+        synchronized (mUriTasks) {
+            UriLoadTask task = mUriTasks.get(request.getKey());
+            if (task == null) {
+                task = new UriLoadTask(request, false);
+                mUriTasks.put(request.getKey(), task);
+            } else if (request.getRequestedExtent() > task.mRequest.getRequestedExtent()) {
+                // Load the photo big enough for every view that waits for it.
+                task.mRequest = request;
+            }
+            task.mWaiters++;
+        }
+    }
+
+    /**
+     * Undoes {@link #attachUriRequest}. Once no view waits for the photo any more, a queued
+     * load is dropped, unless it is a prefetch. A load that is already running is left
+     * alone; its result is cached.
+     */
+    private void detachUriRequest(Request request) {
+        if (request == null || !request.isUriRequest()) {
+            return;
+        }
+        synchronized (mUriTasks) {
+            final UriLoadTask task = mUriTasks.get(request.getKey());
+            if (task == null || --task.mWaiters > 0) {
+                return;
+            }
+            if (task.mState == UriLoadTask.STATE_QUEUED && !task.mPrefetch
+                    && mLoaderPool.remove(task)) {
+                if (DEBUG) Log.d(TAG, "Canceled uri load: " + request.getUri());
+                task.mState = UriLoadTask.STATE_IDLE;
+            }
+            if (task.mState == UriLoadTask.STATE_IDLE) {
+                mUriTasks.remove(request.getKey());
+            }
+        }
+    }
+
+    /**
+     * Queues the load of a photo by uri that a view waits for, unless it is queued or
+     * running already. A queued prefetch of the photo is moved ahead to the priority of
+     * visible photos. Called on a loader thread.
+     */
+    private void queueUriLoad(Request request) {
+        synchronized (mUriTasks) {
+            final UriLoadTask task = mUriTasks.get(request.getKey());
+            if (task == null || task.mWaiters == 0) {
+                // The view went away in the meantime.
+                return;
+            }
+            if (task.mState == UriLoadTask.STATE_QUEUED && task.mPrefetch
+                    && mLoaderPool.remove(task)) {
+                task.mState = UriLoadTask.STATE_IDLE;
+            }
+            if (task.mState == UriLoadTask.STATE_IDLE) {
+                task.mPrefetch = false;
+                task.mState = UriLoadTask.STATE_QUEUED;
+                mLoaderPool.execute(PRIORITY_URI, task);
+            }
+        }
     }
 
 
@@ -898,17 +1412,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     @Override
     public void cancelPendingRequests(View fragmentRootView) {
-        if (fragmentRootView == null) {
-            mPendingRequests.clear();
-            return;
-        }
         ImageView[] requestSetCopy = mPendingRequests.keySet().toArray(new ImageView[
                 mPendingRequests.size()]);
         for (ImageView imageView : requestSetCopy) {
             // If an ImageView is orphaned (currently scrap) or a child of fragmentRootView, then
             // we can safely remove its request.
-            if (imageView.getParent() == null || isChildView(fragmentRootView, imageView)) {
-                mPendingRequests.remove(imageView);
+            if (fragmentRootView == null || imageView.getParent() == null
+                    || isChildView(fragmentRootView, imageView)) {
+                removePendingRequest(imageView);
             }
         }
     }
@@ -935,38 +1446,64 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     /**
      * Checks if the photo is present in cache.  If so, sets the photo on the view.
      *
+     * @param recordMetrics whether this is the first lookup for the request and should count
+     * towards the hit rates.
      * @return false if the photo needs to be (re)loaded from the provider.
      */
-    private boolean loadCachedPhoto(ImageView view, Request request, boolean fadeIn) {
+    private boolean loadCachedPhoto(ImageView view, Request request, boolean fadeIn,
+            boolean recordMetrics) {
         BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
+        if (holder != null && !request.getKey().equals(holder.chargedKey)) {
+            // Keep the key that pays for a shared holder as recent as the ones using it.
+            mBitmapHolderCache.get(holder.chargedKey);
+        }
+        if (recordMetrics) {
+            if (holder == null) {
+                mMetrics.recordMiss(ContactPhotoMetrics.TIER_HOLDER);
+            } else {
+                mMetrics.recordHit(ContactPhotoMetrics.TIER_HOLDER);
+            }
+        }
         if (holder == null) {
             // The bitmap has not been loaded ==> show default avatar
             request.applyDefaultImage(view, request.mIsCircular);
+            onViewBitmapChanged(view, null);
             return false;
         }
 
         if (holder.bytes == null) {
             request.applyDefaultImage(view, request.mIsCircular);
+            onViewBitmapChanged(view, null);
             return holder.fresh;
         }
 
-        Bitmap cachedBitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
-        if (cachedBitmap == null) {
-            if (holder.bytes.length < 8 * 1024) {
-                // Small thumbnails are usually quick to inflate. Let's do that on the UI thread
-                inflateBitmap(holder, request.getRequestedExtent());
-                cachedBitmap = holder.bitmap;
-                if (cachedBitmap == null) return false;
+        final VariantKey variantKey = request.getVariantKey(holder);
+        Bitmap displayBitmap = mBitmapCache.get(variantKey);
+        if (recordMetrics) {
+            if (displayBitmap == null) {
+                mMetrics.recordMiss(ContactPhotoMetrics.TIER_BITMAP);
             } else {
+                mMetrics.recordHit(ContactPhotoMetrics.TIER_BITMAP);
+            }
+        }
+        if (displayBitmap == null) {
+            displayBitmap = createDisplayBitmap(holder, request);
+            if (displayBitmap == null) {
+                if (holder.bytes.length < 8 * 1024) {
+                    return false;
+                }
                 // This is bigger data. Let's send that back to the Loader so that we can
                 // inflate this in the background
                 request.applyDefaultImage(view, request.mIsCircular);
+                onViewBitmapChanged(view, null);
                 return false;
             }
         }
 
         final Drawable previousDrawable = view.getDrawable();
-        if (fadeIn && previousDrawable != null) {
+        // The first layer of a transition keeps being drawn. A bitmap of ours that the view
+        // shows goes back to the pool below and is decoded over, so it is not faded from.
+        if (fadeIn && previousDrawable != null && !mViewBitmaps.containsKey(view)) {
             final Drawable[] layers = new Drawable[2];
             // Prevent cascade of TransitionDrawables.
             if (previousDrawable instanceof TransitionDrawable) {
@@ -977,49 +1514,196 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             } else {
                 layers[0] = previousDrawable;
             }
-            layers[1] = getDrawableForBitmap(mContext.getResources(), cachedBitmap, request);
+            layers[1] = createPhotoDrawable(request, displayBitmap);
             TransitionDrawable drawable = new TransitionDrawable(layers);
             view.setImageDrawable(drawable);
             drawable.startTransition(FADE_TRANSITION_DURATION);
         } else {
-            view.setImageDrawable(
-                    getDrawableForBitmap(mContext.getResources(), cachedBitmap, request));
+            view.setImageDrawable(createPhotoDrawable(request, displayBitmap));
+        }
+
+        onViewBitmapChanged(view, displayBitmap);
+        if (holder.preloadedUnseen) {
+            holder.preloadedUnseen = false;
+            mMetrics.recordPreloadedShown();
         }
 
         // Put the bitmap in the LRU cache. But only do this for images that are small enough
         // (we require that at least six of those can be cached at the same time)
-        if (cachedBitmap.getByteCount() < mBitmapCache.maxSize() / 6) {
-            mBitmapCache.put(request.getKey(), cachedBitmap);
+        if (isCacheable(displayBitmap.getByteCount())) {
+            final BitmapUsage usage = mBitmapUsage.get(displayBitmap);
+            if (usage != null) {
+                usage.cacheCount++;
+            }
+            if (mBitmapCache.put(variantKey, displayBitmap) == displayBitmap && usage != null) {
+                usage.cacheCount--;
+            }
         }
 
         // Soften the reference
         holder.bitmap = null;
 
-        return holder.fresh;
+        // A thumbnail that is too small is shown until a bigger one is loaded.
+        return holder.fresh && holder.covers(request.getRequestedExtent());
+    }
+
+    /**
+     * Returns the bitmap to display for the request, cropped and rounded as needed, decoding
+     * the photo first if it is small. Bitmaps made by us are tracked in {@link #mBitmapUsage}.
+     *
+     * @return the bitmap, or null if the photo could not be decoded or is too big to be
+     * decoded on the UI thread.
+     */
+    private Bitmap createDisplayBitmap(BitmapHolder holder, Request request) {
+        Bitmap bitmap;
+        boolean ownsBitmap;
+        synchronized (holder) {
+            bitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
+            ownsBitmap = holder.ownsBitmap;
+        }
+        if (bitmap == null) {
+            if (holder.bytes.length >= 8 * 1024) {
+                return null;
+            }
+            // Small thumbnails are usually quick to inflate. Let's do that on the UI thread
+            inflateBitmap(holder, request.getRequestedExtent());
+            synchronized (holder) {
+                bitmap = holder.bitmap;
+                ownsBitmap = holder.ownsBitmap;
+            }
+            if (bitmap == null) {
+                return null;
+            }
+        }
+
+        if (request.mIsCircular && !isClippedWhenDrawn(request, bitmap)) {
+            // Round once here rather than clipping on every draw.
+            final Bitmap rounded = BitmapUtil.createRoundedBitmap(
+                    bitmap, bitmap.getHeight() / 2, mBitmapPool);
+            trackBitmap(rounded, null);
+            return rounded;
+        }
+        if (ownsBitmap) {
+            trackBitmap(bitmap, holder);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns whether a display bitmap of the given size is kept in {@link #mBitmapCache}.
+     */
+    private boolean isCacheable(int byteCount) {
+        return byteCount < mBitmapCache.maxSize() / 6;
+    }
+
+    /**
+     * Returns whether the circular photo of the request is clipped when it is drawn, rather
+     * than rounded into a bitmap of its own. A rounded bitmap that is too big for
+     * {@link #mBitmapCache} would be made again on every bind. Depends only on the size of
+     * the photo, so cached and new display bitmaps of a photo are drawn the same way.
+     */
+    private boolean isClippedWhenDrawn(Request request, Bitmap bitmap) {
+        return request.mIsCircular
+                && !isCacheable(bitmap.getWidth() * bitmap.getHeight() * 4);
     }
 
     /**
-     * Given a bitmap, returns a drawable that is configured to display the bitmap based on the
-     * specified request.
+     * Returns the drawable that shows the display bitmap of the request.
      */
-    private Drawable getDrawableForBitmap(Resources resources, Bitmap bitmap, Request request) {
-        if (request.mIsCircular) {
+    private Drawable createPhotoDrawable(Request request, Bitmap displayBitmap) {
+        if (isClippedWhenDrawn(request, displayBitmap)) {
             final RoundedBitmapDrawable drawable =
-                    RoundedBitmapDrawableFactory.create(resources, bitmap);
+                    RoundedBitmapDrawableFactory.create(mContext.getResources(), displayBitmap);
             drawable.setAntiAlias(true);
-            drawable.setCornerRadius(bitmap.getHeight() / 2);
+            drawable.setCornerRadius(displayBitmap.getHeight() / 2);
             return drawable;
+        }
+        return new BitmapDrawable(mContext.getResources(), displayBitmap);
+    }
+
+    /**
+     * Starts tracking a bitmap made by us, so that it goes back to {@link #mBitmapPool} once it
+     * is no longer used.
+     *
+     * @param holder the holder referring to the bitmap, or null if no holder does.
+     */
+    private void trackBitmap(Bitmap bitmap, BitmapHolder holder) {
+        if (!mBitmapUsage.containsKey(bitmap)) {
+            mBitmapUsage.put(bitmap, new BitmapUsage(holder));
+        }
+    }
+
+    /**
+     * Records that a view now shows the given bitmap, or no bitmap of ours if it is null, and
+     * releases the bitmap the view showed before if nothing uses it any more. Must be called
+     * on the UI thread.
+     */
+    private void onViewBitmapChanged(ImageView view, Bitmap bitmap) {
+        final BitmapUsage usage = bitmap != null ? mBitmapUsage.get(bitmap) : null;
+        if (usage != null) {
+            usage.displayCount++;
+            bitmap = mViewBitmaps.put(view, bitmap);
         } else {
-            return new BitmapDrawable(resources, bitmap);
+            bitmap = mViewBitmaps.remove(view);
+        }
+
+        // bitmap is now the one the view showed before.
+        if (bitmap != null) {
+            final BitmapUsage previousUsage = mBitmapUsage.get(bitmap);
+            if (previousUsage != null) {
+                previousUsage.displayCount--;
+                releaseIfUnused(bitmap, previousUsage);
+            }
+        }
+    }
+
+    /**
+     * Called on the UI thread when a bitmap is no longer retained by {@link #mBitmapCache}.
+     */
+    private void onBitmapUncached(Bitmap bitmap) {
+        final BitmapUsage usage = mBitmapUsage.get(bitmap);
+        if (usage != null) {
+            usage.cacheCount--;
+            releaseIfUnused(bitmap, usage);
+        }
+    }
+
+    /**
+     * Puts a decoded bitmap back into {@link #mBitmapPool} if no view shows it and
+     * {@link #mBitmapCache} does not retain it. Its holder forgets about it first, so it will
+     * never be shown for its old photo again.
+     */
+    private void releaseIfUnused(Bitmap bitmap, BitmapUsage usage) {
+        if (usage.displayCount > 0 || usage.cacheCount > 0) {
+            return;
+        }
+        mBitmapUsage.remove(bitmap);
+        final BitmapHolder holder = usage.holder;
+        if (holder == null) {
+            mBitmapPool.put(bitmap);
+            return;
+        }
+        synchronized (holder) {
+            if (holder.bitmap == bitmap) {
+                holder.bitmap = null;
+            }
+            if (holder.bitmapRef != null && holder.bitmapRef.get() == bitmap) {
+                holder.bitmapRef = null;
+            } else {
+                // The holder has decoded another bitmap since; it may not be ours to reuse.
+                return;
+            }
         }
+        mBitmapPool.put(bitmap);
     }
 
     /**
      * If necessary, decodes bytes stored in the holder to Bitmap.  As long as the
      * bitmap is held either by {@link #mBitmapCache} or by a soft reference in
-     * the holder, it will not be necessary to decode the bitmap.
+     * the holder, it will not be necessary to decode the bitmap. Bitmaps from
+     * {@link #mBitmapPool} are reused where possible.
      */
-    private static void inflateBitmap(BitmapHolder holder, int requestedExtent) {
+    private void inflateBitmap(BitmapHolder holder, int requestedExtent) {
         final int sampleSize =
                 BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
         byte[] bytes = holder.bytes;
@@ -1030,31 +1714,21 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         if (sampleSize == holder.decodedSampleSize) {
             // Check the soft reference.  If will be retained if the bitmap is also
             // in the LRU cache, so we don't need to check the LRU cache explicitly.
-            if (holder.bitmapRef != null) {
-                holder.bitmap = holder.bitmapRef.get();
-                if (holder.bitmap != null) {
-                    return;
+            synchronized (holder) {
+                if (holder.bitmapRef != null) {
+                    holder.bitmap = holder.bitmapRef.get();
+                    if (holder.bitmap != null) {
+                        return;
+                    }
                 }
             }
         }
 
         try {
-            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
-
-            // TODO: As a temporary workaround while framework support is being added to
-            // clip non-square bitmaps into a perfect circle, manually crop the bitmap into
-            // into a square if it will be displayed as a thumbnail so that it can be cropped
-            // into a circle.
-            final int height = bitmap.getHeight();
-            final int width = bitmap.getWidth();
-
-            // The smaller dimension of a scaled bitmap can range from anywhere from 0 to just
-            // below twice the length of a thumbnail image due to the way we calculate the optimal
-            // sample size.
-            if (height != width && Math.min(height, width) <= mThumbnailSize * 2) {
-                final int dimension = Math.min(height, width);
-                bitmap = ThumbnailUtils.extractThumbnail(bitmap, dimension, dimension);
-            }
+            final long start = System.nanoTime();
+            Bitmap bitmap = cropThumbnail(
+                    BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize, mBitmapPool));
+            mMetrics.recordDecode(System.nanoTime() - start);
             // make bitmap mutable and draw size onto it
             if (DEBUG_SIZES) {
                 Bitmap original = bitmap;
@@ -1071,9 +1745,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 canvas.drawText(bitmap.getWidth() + "/" + sampleSize, 0, 15, paint);
             }
 
-            holder.decodedSampleSize = sampleSize;
-            holder.bitmap = bitmap;
-            holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+            synchronized (holder) {
+                holder.decodedSampleSize = sampleSize;
+                holder.bitmap = bitmap;
+                holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+                holder.ownsBitmap = true;
+            }
             if (DEBUG) {
                 Log.d(TAG, "inflateBitmap " + btk(bytes.length) + " -> "
                         + bitmap.getWidth() + "x" + bitmap.getHeight()
@@ -1084,11 +1761,36 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * Crops a freshly decoded bitmap into a square if it will be displayed as a thumbnail.
+     * The uncropped bitmap is not referenced anywhere else, so it goes back to the pool.
+     */
+    private Bitmap cropThumbnail(Bitmap bitmap) {
+        // TODO: As a temporary workaround while framework support is being added to
+        // clip non-square bitmaps into a perfect circle, manually crop the bitmap into
+        // into a square if it will be displayed as a thumbnail so that it can be cropped
+        // into a circle.
+        final int height = bitmap.getHeight();
+        final int width = bitmap.getWidth();
+
+        // The smaller dimension of a scaled bitmap can range from anywhere from 0 to just
+        // below twice the length of a thumbnail image due to the way we calculate the optimal
+        // sample size.
+        if (height != width && Math.min(height, width) <= mThumbnailSize * 2) {
+            return BitmapUtil.cropToSquare(bitmap, mBitmapPool);
+        }
+        return bitmap;
+    }
+
     public void clear() {
         if (DEBUG) Log.d(TAG, "clear");
-        mPendingRequests.clear();
+        cancelPendingRequests(null);
+        if (mLoader != null) {
+            mLoader.requestPrefetching(Collections.emptyList());
+        }
         mBitmapHolderCache.evictAll();
         mBitmapCache.evictAll();
+        mBitmapPool.evictAll();
     }
 
     @Override
@@ -1127,8 +1829,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             case MESSAGE_REQUEST_LOADING: {
                 mLoadingRequested = false;
                 if (!mPaused) {
-                    ensureLoaderThread();
-                    mLoaderThread.requestLoading();
+                    ensureLoader();
+                    mLoader.requestLoading();
                 }
                 return true;
             }
@@ -1140,14 +1842,25 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 if (DEBUG) dumpStats();
                 return true;
             }
+
+            case MESSAGE_PRELOAD_PHOTOS: {
+                ensureLoader();
+                if (mPaused || SystemClock.uptimeMillis() - mLastViewRequestTime
+                        < PRELOAD_SCROLL_IDLE_MILLIS) {
+                    // The list is scrolling; check again after the usual delay.
+                    mLoader.requestPreloading();
+                } else {
+                    mLoader.startPreloadBatch();
+                }
+                return true;
+            }
         }
         return false;
     }
 
-    public void ensureLoaderThread() {
-        if (mLoaderThread == null) {
-            mLoaderThread = new LoaderThread(mContext.getContentResolver());
-            mLoaderThread.start();
+    public void ensureLoader() {
+        if (mLoader == null) {
+            mLoader = new PhotoLoader(mContext.getContentResolver());
         }
     }
 
@@ -1162,9 +1875,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             Request key = mPendingRequests.get(view);
             // TODO: Temporarily disable contact photo fading in, until issues with
             // RoundedBitmapDrawables overlapping the default image drawables are resolved.
-            boolean loaded = loadCachedPhoto(view, key, false);
+            boolean loaded = loadCachedPhoto(view, key, false, false);
             if (loaded) {
                 iterator.remove();
+                detachUriRequest(key);
             }
         }
 
@@ -1189,6 +1903,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * Stores the supplied bitmap in cache.
      */
     private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent) {
+        cacheBitmap(key, bytes, false, preloading, requestedExtent);
+    }
+
+    /**
+     * Stores the supplied bitmap in cache.
+     *
+     * @param downsampled whether the bytes are a thumbnail rather than the photo itself, see
+     * {@link BitmapHolder#downsampled}.
+     */
+    private void cacheBitmap(Object key, byte[] bytes, boolean downsampled, boolean preloading,
+            int requestedExtent) {
         if (DEBUG) {
             BitmapHolder prev = mBitmapHolderCache.get(key);
             if (prev != null && prev.bytes != null) {
@@ -1202,17 +1927,141 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             Log.d(TAG, "Caching data: key=" + key + ", " +
                     (bytes == null ? "<null>" : btk(bytes.length)));
         }
-        BitmapHolder holder = new BitmapHolder(bytes,
-                bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes));
+        final BitmapHolder shared = findSharedHolder(key, bytes, downsampled);
+        if (shared != null) {
+            if (DEBUG) Log.d(TAG, "Sharing holder of " + shared.chargedKey + " with " + key);
+            mMetrics.recordSharedHolder();
+            if (!preloading) {
+                inflateBitmap(shared, requestedExtent);
+            }
+            cacheSharedHolder(key, shared);
+            return;
+        }
+
+        BitmapHolder holder = new BitmapHolder(key, bytes,
+                bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes), downsampled);
 
         // Unless this image is being preloaded, decode it right away while
         // we are still on the background thread.
         if (!preloading) {
             inflateBitmap(holder, requestedExtent);
+        } else if (bytes != null) {
+            holder.preloadedUnseen = true;
+            mMetrics.recordPreloaded();
         }
 
+        cacheHolder(key, holder);
+    }
+
+    /**
+     * Puts a new holder into {@link #mBitmapHolderCache} under the key it was created for, and
+     * makes it available for sharing.
+     */
+    private void cacheHolder(Object key, BitmapHolder holder) {
+        if (holder.bytes != null) {
+            synchronized (mHoldersByContent) {
+                mHoldersByContent.put(holder.contentHash, holder);
+            }
+        }
+        mBitmapHolderCache.put(key, holder);
+        mBitmapHolderCacheAllUnfresh = false;
+    }
+
+    /**
+     * Returns a fresh cached holder whose bytes are identical to the given ones, or null.
+     */
+    private BitmapHolder findSharedHolder(Object key, byte[] bytes, boolean downsampled) {
+        if (bytes == null) {
+            return null;
+        }
+        final BitmapHolder holder;
+        synchronized (mHoldersByContent) {
+            holder = mHoldersByContent.get(Arrays.hashCode(bytes));
+        }
+        if (holder == null || !holder.fresh || holder.downsampled != downsampled
+                || key.equals(holder.chargedKey) || !Arrays.equals(holder.bytes, bytes)) {
+            return null;
+        }
+        return holder;
+    }
+
+    /**
+     * Caches a holder found by {@link #findSharedHolder} under another key as well. If the
+     * holder leaves the cache meanwhile, the key is not cached and will be loaded again.
+     */
+    private void cacheSharedHolder(Object key, BitmapHolder holder) {
+        synchronized (mHoldersByContent) {
+            if (holder.released) {
+                return;
+            }
+            if (holder.sharedKeys == null) {
+                holder.sharedKeys = new ArrayList<Object>(2);
+            }
+            if (!holder.sharedKeys.contains(key)) {
+                holder.sharedKeys.add(key);
+            }
+        }
         mBitmapHolderCache.put(key, holder);
         mBitmapHolderCacheAllUnfresh = false;
+
+        final boolean released;
+        synchronized (mHoldersByContent) {
+            released = holder.released;
+        }
+        if (released && mBitmapHolderCache.get(key) == holder) {
+            // The charged key was evicted while we were adding this one.
+            mBitmapHolderCache.remove(key);
+        }
+    }
+
+    /**
+     * Called when a key leaves {@link #mBitmapHolderCache}. Once the key that is charged for
+     * a holder is gone, the keys sharing it go as well, so that its bytes are never held
+     * without being accounted for.
+     */
+    private void onHolderUncached(Object key, BitmapHolder holder) {
+        final ArrayList<Object> sharedKeys;
+        synchronized (mHoldersByContent) {
+            if (!key.equals(holder.chargedKey)) {
+                if (holder.sharedKeys != null) {
+                    holder.sharedKeys.remove(key);
+                }
+                return;
+            }
+            holder.released = true;
+            if (mHoldersByContent.get(holder.contentHash) == holder) {
+                mHoldersByContent.remove(holder.contentHash);
+            }
+            sharedKeys = holder.sharedKeys;
+            holder.sharedKeys = null;
+        }
+        if (sharedKeys != null) {
+            for (Object sharedKey : sharedKeys) {
+                if (mBitmapHolderCache.get(sharedKey) == holder) {
+                    mBitmapHolderCache.remove(sharedKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores a thumbnail that was decoded while the photo was streamed in, together with its
+     * re-encoded bytes, which stand in for the much bigger original photo.
+     */
+    private void cacheDownsampledBitmap(Object key, byte[] bytes, Bitmap bitmap) {
+        if (DEBUG) {
+            Log.d(TAG, "Caching thumbnail: key=" + key + ", " + btk(bytes.length) + ", "
+                    + bitmap.getWidth() + "x" + bitmap.getHeight());
+        }
+        final BitmapHolder holder = new BitmapHolder(key, bytes,
+                Math.min(bitmap.getWidth(), bitmap.getHeight()), true);
+        synchronized (holder) {
+            holder.decodedSampleSize = 1;
+            holder.bitmap = bitmap;
+            holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+            holder.ownsBitmap = true;
+        }
+        cacheHolder(key, holder);
     }
 
     @Override
@@ -1222,21 +2071,21 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         // requested
         Request request = Request.createFromUri(photoUri, smallerExtent, false /* darkTheme */,
                 false /* isCircular */ , DEFAULT_AVATAR);
-        BitmapHolder holder = new BitmapHolder(photoBytes, smallerExtent);
+        BitmapHolder holder = new BitmapHolder(request.getKey(), photoBytes, smallerExtent);
+        // The caller keeps using the bitmap, so it never goes to the pool.
         holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+        holder.ownsBitmap = false;
         mBitmapHolderCache.put(request.getKey(), holder);
         mBitmapHolderCacheAllUnfresh = false;
-        mBitmapCache.put(request.getKey(), bitmap);
+        mBitmapCache.put(request.getVariantKey(holder), bitmap);
     }
 
     /**
      * Populates an array of photo IDs that need to be loaded. Also decodes bitmaps that we have
      * already loaded
      */
-    private void obtainPhotoIdsAndUrisToLoad(Set<Long> photoIds,
-            Set<String> photoIdsAsStrings, Set<Request> uris) {
+    private void obtainPhotoIdsAndUrisToLoad(SortedLongSet photoIds, Set<Request> uris) {
         photoIds.clear();
-        photoIdsAsStrings.clear();
         uris.clear();
 
         boolean jpegsDecoded = false;
@@ -1253,18 +2102,19 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         while (iterator.hasNext()) {
             Request request = iterator.next();
             final BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
-            if (holder != null && holder.bytes != null && holder.fresh &&
+            final boolean usable = holder != null && holder.fresh
+                    && holder.covers(request.getRequestedExtent());
+            if (usable && holder.bytes != null &&
                     (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
                 // This was previously loaded but we don't currently have the inflated Bitmap
                 inflateBitmap(holder, request.getRequestedExtent());
                 jpegsDecoded = true;
             } else {
-                if (holder == null || !holder.fresh) {
+                if (!usable) {
                     if (request.isUriRequest()) {
                         uris.add(request);
                     } else {
                         photoIds.add(request.getId());
-                        photoIdsAsStrings.add(String.valueOf(request.mId));
                     }
                 }
             }
@@ -1274,12 +2124,21 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     /**
-     * The thread that performs loading of photos from the database.
+     * Performs loading of photos from the database and from uris on {@link #mLoaderPool}.
+     * <p>
+     * Thumbnails of visible views and preloaded thumbnails are loaded in batches by
+     * {@link #mLoadTask} and {@link #mPreloadTask}, which share the bookkeeping below and
+     * therefore hold the lock of this object while they run. Each photo requested by uri is
+     * loaded by its own {@link UriLoadTask}.
      */
-    private class LoaderThread extends HandlerThread implements Callback {
+    private class PhotoLoader {
         private static final int BUFFER_SIZE = 1024*16;
-        private static final int MESSAGE_PRELOAD_PHOTOS = 0;
-        private static final int MESSAGE_LOAD_PHOTOS = 1;
+
+        /**
+         * How far into a photo stream its header may reach for the bounds to be read before
+         * the photo is decoded. Photos with bigger headers are loaded without downsampling.
+         */
+        private static final int BOUNDS_READ_LIMIT = 1024*64;
 
         /**
          * A pause between preload batches that yields to the UI thread.
@@ -1287,9 +2146,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         private static final int PHOTO_PRELOAD_DELAY = 1000;
 
         /**
-         * Number of photos to preload per batch.
+         * How long one preload batch should take. Batches hold the loader while they run, so
+         * this bounds how long photos for the screen may have to wait for one.
          */
-        private static final int PRELOAD_BATCH = 25;
+        private static final int PRELOAD_BATCH_BUDGET_MILLIS = 40;
+
+        /** Bounds of the number of photos to preload per batch. */
+        private static final int MIN_PRELOAD_BATCH = 4;
+        private static final int MAX_PRELOAD_BATCH = 50;
 
         /**
          * Maximum number of photos to preload.  If the cache size is 2Mb and
@@ -1299,78 +2163,166 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
         private final ContentResolver mResolver;
         private final StringBuilder mStringBuilder = new StringBuilder();
-        private final Set<Long> mPhotoIds = Sets.newHashSet();
-        private final Set<String> mPhotoIdsAsStrings = Sets.newHashSet();
+        private final SortedLongSet mPhotoIds = new SortedLongSet();
+        /** Ids of {@link #mPhotoIds} that may be profile photos. */
+        private final SortedLongSet mProfilePhotoIds = new SortedLongSet();
         private final Set<Request> mPhotoUris = Sets.newHashSet();
-        private final List<Long> mPreloadPhotoIds = Lists.newArrayList();
+        /** Photo ids left to preload, in reverse order: the next one is the last. */
+        private final long[] mPreloadPhotoIds = new long[MAX_PHOTOS_TO_PRELOAD];
+        private int mPreloadPhotoCount;
+
+        /**
+         * Photo ids passed to {@link #setPreloadPhotoIds} that the next preload batch has yet
+         * to take over, or null. Handed over this way so that the UI thread never waits for a
+         * running batch.
+         */
+        private volatile long[] mNewPreloadPhotoIds;
+
+        /** Average time it took to preload one photo, used to size the next batch. */
+        private float mPreloadMillisPerPhoto = 2f;
+
+        private final ThreadLocal<byte[]> mBuffer = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[BUFFER_SIZE];
+            }
+        };
+
+        private final Runnable mLoadTask = new Runnable() {
+            @Override
+            public void run() {
+                loadPhotosInBackground();
+            }
+        };
+
+        private final Runnable mPreloadTask = new Runnable() {
+            @Override
+            public void run() {
+                preloadPhotosInBackground();
+            }
+        };
+
+        private final Runnable mPrefetchTask = new Runnable() {
+            @Override
+            public void run() {
+                prefetchPhotosInBackground();
+            }
+        };
 
-        private Handler mLoaderThreadHandler;
-        private byte mBuffer[];
+        /**
+         * Number of thumbnails loaded per query when prefetching, so that the rows closest to
+         * the viewport are ready first.
+         */
+        private static final int PREFETCH_BATCH = 6;
+
+        /**
+         * Photo ids and uri requests still to prefetch, closest to the viewport first.
+         * Guarded by {@link #mPrefetchLock} rather than by the loader, so that the UI thread
+         * never waits for a running query to replace it.
+         */
+        private ArrayDeque<Object> mPrefetchKeys = new ArrayDeque<Object>();
+        private final Object mPrefetchLock = new Object();
 
         private static final int PRELOAD_STATUS_NOT_STARTED = 0;
         private static final int PRELOAD_STATUS_IN_PROGRESS = 1;
         private static final int PRELOAD_STATUS_DONE = 2;
 
-        private int mPreloadStatus = PRELOAD_STATUS_NOT_STARTED;
+        private volatile int mPreloadStatus = PRELOAD_STATUS_NOT_STARTED;
 
-        public LoaderThread(ContentResolver resolver) {
-            super(LOADER_THREAD_NAME);
+        public PhotoLoader(ContentResolver resolver) {
             mResolver = resolver;
         }
 
-        public void ensureHandler() {
-            if (mLoaderThreadHandler == null) {
-                mLoaderThreadHandler = new Handler(getLooper(), this);
-            }
+        /**
+         * Replaces the photos to preload, closest to the viewport first.
+         */
+        public void setPreloadPhotoIds(long[] photoIds) {
+            mNewPreloadPhotoIds = photoIds;
+            mPreloadStatus = PRELOAD_STATUS_IN_PROGRESS;
+            requestPreloading();
         }
 
         /**
-         * Kicks off preloading of the next batch of photos on the background thread.
+         * Kicks off preloading of the next batch of photos in the background.
          * Preloading will happen after a delay: we want to yield to the UI thread
          * as much as possible.
          * <p>
          * If preloading is already complete, does nothing.
          */
         public void requestPreloading() {
-            if (mPreloadStatus == PRELOAD_STATUS_DONE) {
+            if (mPreloadStatus == PRELOAD_STATUS_DONE && mNewPreloadPhotoIds == null) {
                 return;
             }
 
-            ensureHandler();
-            if (mLoaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)) {
+            if (mLoaderPool.isQueued(mLoadTask)) {
+                // The load task will request preloading again when it is done.
                 return;
             }
 
-            mLoaderThreadHandler.sendEmptyMessageDelayed(
+            mMainThreadHandler.removeMessages(MESSAGE_PRELOAD_PHOTOS);
+            mMainThreadHandler.sendEmptyMessageDelayed(
                     MESSAGE_PRELOAD_PHOTOS, PHOTO_PRELOAD_DELAY);
         }
 
         /**
-         * Sends a message to this thread to load requested photos.  Cancels a preloading
-         * request, if any: we don't want preloading to impede loading of the photos
-         * we need to display now.
+         * Queues the next batch of preloading, once the delay requested by
+         * {@link #requestPreloading} has passed.
          */
-        public void requestLoading() {
-            ensureHandler();
-            mLoaderThreadHandler.removeMessages(MESSAGE_PRELOAD_PHOTOS);
-            mLoaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
+        public void startPreloadBatch() {
+            if (!mLoaderPool.isQueued(mPreloadTask)) {
+                mLoaderPool.execute(PRIORITY_PRELOAD, mPreloadTask);
+            }
         }
 
         /**
-         * Receives the above message, loads photos and then sends a message
-         * to the main thread to process them.
+         * Replaces the photos to prefetch and drops queued uri prefetches that are no longer
+         * among them. Called on the UI thread.
          */
-        @Override
-        public boolean handleMessage(Message msg) {
-            switch (msg.what) {
-                case MESSAGE_PRELOAD_PHOTOS:
-                    preloadPhotosInBackground();
-                    break;
-                case MESSAGE_LOAD_PHOTOS:
-                    loadPhotosInBackground();
-                    break;
+        public void requestPrefetching(Collection<?> keys) {
+            synchronized (mPrefetchLock) {
+                mPrefetchKeys = new ArrayDeque<Object>(keys);
+            }
+            synchronized (mUriTasks) {
+                final Iterator<UriLoadTask> iterator = mUriTasks.values().iterator();
+                while (iterator.hasNext()) {
+                    final UriLoadTask task = iterator.next();
+                    if (task.mPrefetch && task.mState == UriLoadTask.STATE_QUEUED
+                            && !keys.contains(task.mRequest) && mLoaderPool.remove(task)) {
+                        if (DEBUG) Log.d(TAG, "Canceled uri prefetch: " + task.mRequest.getUri());
+                        task.mState = UriLoadTask.STATE_IDLE;
+                        if (task.mWaiters == 0) {
+                            iterator.remove();
+                        }
+                    }
+                }
+            }
+            resumePrefetching();
+        }
+
+        /**
+         * Queues the next batch of prefetching, if there are photos left to prefetch.
+         */
+        private void resumePrefetching() {
+            final boolean pending;
+            synchronized (mPrefetchLock) {
+                pending = !mPrefetchKeys.isEmpty();
+            }
+            if (pending && !mLoaderPool.isQueued(mPrefetchTask)) {
+                mLoaderPool.execute(PRIORITY_PREFETCH, mPrefetchTask);
+            }
+        }
+
+        /**
+         * Queues loading of the requested photos.  Cancels a preloading
+         * request, if any: we don't want preloading to impede loading of the photos
+         * we need to display now.
+         */
+        public void requestLoading() {
+            mMainThreadHandler.removeMessages(MESSAGE_PRELOAD_PHOTOS);
+            mLoaderPool.remove(mPreloadTask);
+            if (!mLoaderPool.isQueued(mLoadTask)) {
+                mLoaderPool.execute(PRIORITY_VISIBLE, mLoadTask);
             }
-            return true;
         }
 
         /**
@@ -1379,14 +2331,33 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          * another cycle of preloading after a delay.  The whole process ends when
          * we either run out of photos to preload or fill up cache.
          */
-        private void preloadPhotosInBackground() {
-            if (mPreloadStatus == PRELOAD_STATUS_DONE) {
+        private synchronized void preloadPhotosInBackground() {
+            if (mPreloadStatus == PRELOAD_STATUS_DONE && mNewPreloadPhotoIds == null) {
+                return;
+            }
+
+            if (mLoaderPool.isQueued(mLoadTask)) {
+                // Photos for the screen take precedence; try again later.
+                requestPreloading();
                 return;
             }
 
-            if (mPreloadStatus == PRELOAD_STATUS_NOT_STARTED) {
+            final long[] newPhotoIds = mNewPreloadPhotoIds;
+            if (newPhotoIds != null) {
+                mNewPreloadPhotoIds = null;
+                mPreloadPhotoCount = 0;
+                // Insert them in reverse order, because we will be taking them from the end
+                // of the list for loading.
+                for (int i = Math.min(newPhotoIds.length, MAX_PHOTOS_TO_PRELOAD) - 1; i >= 0;
+                        i--) {
+                    if (newPhotoIds[i] != 0) {
+                        mPreloadPhotoIds[mPreloadPhotoCount++] = newPhotoIds[i];
+                    }
+                }
+                mPreloadStatus = PRELOAD_STATUS_IN_PROGRESS;
+            } else if (mPreloadStatus == PRELOAD_STATUS_NOT_STARTED) {
                 queryPhotosForPreload();
-                if (mPreloadPhotoIds.isEmpty()) {
+                if (mPreloadPhotoCount == 0) {
                     mPreloadStatus = PRELOAD_STATUS_DONE;
                 } else {
                     mPreloadStatus = PRELOAD_STATUS_IN_PROGRESS;
@@ -1401,22 +2372,31 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
 
             mPhotoIds.clear();
-            mPhotoIdsAsStrings.clear();
 
+            final int batchSize = Math.max(MIN_PRELOAD_BATCH, Math.min(MAX_PRELOAD_BATCH,
+                    (int) (PRELOAD_BATCH_BUDGET_MILLIS / mPreloadMillisPerPhoto)));
             int count = 0;
-            int preloadSize = mPreloadPhotoIds.size();
-            while(preloadSize > 0 && mPhotoIds.size() < PRELOAD_BATCH) {
-                preloadSize--;
+            while (mPreloadPhotoCount > 0 && mPhotoIds.size() < batchSize) {
+                final long photoId = mPreloadPhotoIds[--mPreloadPhotoCount];
+                final BitmapHolder holder = mBitmapHolderCache.get(photoId);
+                if (holder != null && holder.fresh) {
+                    // Already loaded, e.g. because it has been on screen.
+                    continue;
+                }
                 count++;
-                Long photoId = mPreloadPhotoIds.get(preloadSize);
                 mPhotoIds.add(photoId);
-                mPhotoIdsAsStrings.add(photoId.toString());
-                mPreloadPhotoIds.remove(preloadSize);
             }
 
-            loadThumbnails(true);
+            if (count > 0) {
+                final long start = SystemClock.elapsedRealtime();
+                loadThumbnails(true);
+                final float millisPerPhoto =
+                        (float) (SystemClock.elapsedRealtime() - start) / count;
+                mPreloadMillisPerPhoto =
+                        Math.max(0.1f, (mPreloadMillisPerPhoto + millisPerPhoto) / 2);
+            }
 
-            if (preloadSize == 0) {
+            if (mPreloadPhotoCount == 0) {
                 mPreloadStatus = PRELOAD_STATUS_DONE;
             }
 
@@ -1439,13 +2419,19 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                         null,
                         Contacts.STARRED + " DESC, " + Contacts.LAST_TIME_CONTACTED + " DESC");
 
+                mPreloadPhotoCount = 0;
                 if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        // Insert them in reverse order, because we will be taking
-                        // them from the end of the list for loading.
-                        mPreloadPhotoIds.add(0, cursor.getLong(0));
+                    while (cursor.moveToNext() && mPreloadPhotoCount < MAX_PHOTOS_TO_PRELOAD) {
+                        mPreloadPhotoIds[mPreloadPhotoCount++] = cursor.getLong(0);
                     }
                 }
+                // Reverse them, because we will be taking them from the end of the list for
+                // loading.
+                for (int i = 0, j = mPreloadPhotoCount - 1; i < j; i++, j--) {
+                    final long photoId = mPreloadPhotoIds[i];
+                    mPreloadPhotoIds[i] = mPreloadPhotoIds[j];
+                    mPreloadPhotoIds[j] = photoId;
+                }
             } finally {
                 if (cursor != null) {
                     cursor.close();
@@ -1453,11 +2439,65 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
         }
 
+        /**
+         * Loads the next few photos to prefetch and queues itself again for the rest. Photos
+         * by uri are handed to their own tasks of the same priority.
+         */
+        private void prefetchPhotosInBackground() {
+            if (mLoaderPool.isQueued(mLoadTask)) {
+                // Photos for the screen take precedence; the load task resumes prefetching.
+                return;
+            }
+
+            synchronized (this) {
+                mPhotoIds.clear();
+                synchronized (mPrefetchLock) {
+                    while (mPhotoIds.size() < PREFETCH_BATCH && !mPrefetchKeys.isEmpty()) {
+                        final Object key = mPrefetchKeys.poll();
+                        if (mBitmapHolderCache.get(key instanceof Request
+                                ? ((Request) key).getKey() : key) != null) {
+                            // Loaded for a view in the meantime.
+                            continue;
+                        }
+                        if (key instanceof Request) {
+                            queueUriPrefetch((Request) key);
+                        } else {
+                            mPhotoIds.add((Long) key);
+                        }
+                    }
+                }
+                if (DEBUG) Log.d(TAG, "Prefetching " + mPhotoIds.size() + " thumbnails");
+                loadThumbnails(false);
+            }
+            resumePrefetching();
+        }
+
         private void loadPhotosInBackground() {
-            obtainPhotoIdsAndUrisToLoad(mPhotoIds, mPhotoIdsAsStrings, mPhotoUris);
-            loadThumbnails(false);
-            loadUriBasedPhotos();
+            synchronized (this) {
+                obtainPhotoIdsAndUrisToLoad(mPhotoIds, mPhotoUris);
+                loadThumbnails(false);
+                for (Request uriRequest : mPhotoUris) {
+                    queueUriLoad(uriRequest);
+                }
+            }
             requestPreloading();
+            resumePrefetching();
+        }
+
+        /**
+         * Queues a prefetch of a photo by uri, unless the photo is being loaded for a view
+         * already.
+         */
+        private void queueUriPrefetch(Request request) {
+            synchronized (mUriTasks) {
+                if (mUriTasks.containsKey(request.getKey())) {
+                    return;
+                }
+                final UriLoadTask task = new UriLoadTask(request, true);
+                task.mState = UriLoadTask.STATE_QUEUED;
+                mUriTasks.put(request.getKey(), task);
+                mLoaderPool.execute(PRIORITY_PREFETCH, task);
+            }
         }
 
         /** Loads thumbnail photos with ids */
@@ -1469,37 +2509,38 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // Remove loaded photos from the preload queue: we don't want
             // the preloading process to load them again.
             if (!preloading && mPreloadStatus == PRELOAD_STATUS_IN_PROGRESS) {
-                for (Long id : mPhotoIds) {
-                    mPreloadPhotoIds.remove(id);
+                int kept = 0;
+                for (int i = 0; i < mPreloadPhotoCount; i++) {
+                    final long photoId = mPreloadPhotoIds[i];
+                    if (!mPhotoIds.contains(photoId)) {
+                        mPreloadPhotoIds[kept++] = photoId;
+                    }
                 }
-                if (mPreloadPhotoIds.isEmpty()) {
+                mPreloadPhotoCount = kept;
+                if (mPreloadPhotoCount == 0) {
                     mPreloadStatus = PRELOAD_STATUS_DONE;
                 }
             }
 
-            mStringBuilder.setLength(0);
-            mStringBuilder.append(Photo._ID + " IN(");
-            for (int i = 0; i < mPhotoIds.size(); i++) {
-                if (i != 0) {
-                    mStringBuilder.append(',');
-                }
-                mStringBuilder.append('?');
+            loadThumbnailsFromDiskCache(preloading);
+            if (mPhotoIds.isEmpty()) {
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                return;
             }
-            mStringBuilder.append(')');
 
             Cursor cursor = null;
+            final int batchSize = mPhotoIds.size();
+            final long start = System.nanoTime();
             try {
-                if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", mPhotoIdsAsStrings));
-                cursor = mResolver.query(Data.CONTENT_URI,
-                        COLUMNS,
-                        mStringBuilder.toString(),
-                        mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
-                        null);
+                final String selection = buildPhotoIdSelection(mPhotoIds);
+                if (DEBUG) Log.d(TAG, "Loading " + selection);
+                cursor = mResolver.query(Data.CONTENT_URI, COLUMNS, selection, null, null);
 
                 if (cursor != null) {
                     while (cursor.moveToNext()) {
-                        Long id = cursor.getLong(0);
+                        final long id = cursor.getLong(0);
                         byte[] bytes = cursor.getBlob(1);
+                        mDiskCache.put(id, cursor.getLong(2), bytes);
                         cacheBitmap(id, bytes, preloading, -1);
                         mPhotoIds.remove(id);
                     }
@@ -1508,87 +2549,357 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 if (cursor != null) {
                     cursor.close();
                 }
+                mMetrics.recordQuery(batchSize, System.nanoTime() - start);
             }
 
             // Remaining photos were not found in the contacts database (but might be in profile).
-            for (Long id : mPhotoIds) {
+            mProfilePhotoIds.clear();
+            for (int i = 0; i < mPhotoIds.size(); i++) {
+                final long id = mPhotoIds.get(i);
                 if (ContactsContract.isProfileId(id)) {
-                    Cursor profileCursor = null;
+                    mProfilePhotoIds.add(id);
+                }
+            }
+            if (!mProfilePhotoIds.isEmpty()) {
+                loadProfileThumbnails(preloading);
+            }
+
+            // Not found anywhere - mark the cache accordingly
+            for (int i = 0; i < mPhotoIds.size(); i++) {
+                final long id = mPhotoIds.get(i);
+                mDiskCache.remove(id);
+                cacheBitmap(id, null, preloading, -1);
+            }
+
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        }
+
+        /**
+         * Loads the photos in {@link #mProfilePhotoIds} from the profile with one query, and
+         * removes those that were found from {@link #mPhotoIds}.
+         */
+        private void loadProfileThumbnails(boolean preloading) {
+            Cursor cursor = null;
+            try {
+                cursor = mResolver.query(PROFILE_DATA_URI, COLUMNS,
+                        buildPhotoIdSelection(mProfilePhotoIds), null, null);
+                if (cursor != null) {
+                    while (cursor.moveToNext()) {
+                        final long id = cursor.getLong(0);
+                        final byte[] bytes = cursor.getBlob(1);
+                        mDiskCache.put(id, cursor.getLong(2), bytes);
+                        cacheBitmap(id, bytes, preloading, -1);
+                        mPhotoIds.remove(id);
+                    }
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        /**
+         * Builds a "_id IN(...)" selection for the given ids. The ids are numbers and are
+         * written into the selection rather than passed as arguments, which would take one
+         * string per id.
+         */
+        private String buildPhotoIdSelection(SortedLongSet photoIds) {
+            mStringBuilder.setLength(0);
+            mStringBuilder.append(Photo._ID + " IN(");
+            for (int i = 0; i < photoIds.size(); i++) {
+                if (i != 0) {
+                    mStringBuilder.append(',');
+                }
+                mStringBuilder.append(photoIds.get(i));
+            }
+            mStringBuilder.append(')');
+            return mStringBuilder.toString();
+        }
+
+        /**
+         * Serves photos in {@link #mPhotoIds} from the disk cache where possible, and removes
+         * them from {@link #mPhotoIds}. Only the versions of
+         * the photo rows are queried from the provider, which is much cheaper than fetching
+         * the blobs; an entry whose version no longer matches is dropped and reloaded.
+         */
+        private void loadThumbnailsFromDiskCache(boolean preloading) {
+            final int requested = mPhotoIds.size();
+            boolean anyCached = false;
+            for (int i = 0; i < mPhotoIds.size(); i++) {
+                if (mDiskCache.contains(mPhotoIds.get(i))) {
+                    anyCached = true;
+                    break;
+                }
+            }
+            if (!anyCached) {
+                mMetrics.recordMisses(ContactPhotoMetrics.TIER_DISK, requested);
+                return;
+            }
+
+            Cursor cursor = null;
+            try {
+                cursor = mResolver.query(Data.CONTENT_URI, VERSION_COLUMNS,
+                        buildPhotoIdSelection(mPhotoIds), null, null);
+                if (cursor == null) {
+                    return;
+                }
+                while (cursor.moveToNext()) {
+                    final long id = cursor.getLong(0);
+                    final byte[] bytes = mDiskCache.get(id, cursor.getLong(1));
+                    if (bytes != null) {
+                        if (DEBUG) Log.d(TAG, "Disk cache hit: " + id);
+                        cacheBitmap(id, bytes, preloading, -1);
+                        mPhotoIds.remove(id);
+                        mMetrics.recordHit(ContactPhotoMetrics.TIER_DISK);
+                    }
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                mMetrics.recordMisses(ContactPhotoMetrics.TIER_DISK, mPhotoIds.size());
+            }
+        }
+
+        /**
+         * Returns true if photos with the given uri should be kept in {@link #mDiskCache}.
+         * Local files and display photos of the contacts provider are already stored on disk,
+         * and remote photos are kept by {@link ContactPhotoFetcher}, which revalidates them.
+         */
+        private boolean isDiskCacheable(Uri uri, boolean remote) {
+            return !remote && !ContentResolver.SCHEME_FILE.equals(uri.getScheme())
+                    && !ContactsContract.AUTHORITY.equals(uri.getAuthority());
+        }
+
+        /**
+         * Loads a photo referenced with a Uri. Those can be remote thumbnails
+         * (from directory searches), display photos etc. Runs on any loader thread.
+         */
+        private void loadUriBasedPhoto(Request uriRequest) {
+            // Keep the original URI and use this to key into the cache.  Failure to do so will
+            // result in an image being continually reloaded into cache if the original URI
+            // has a contact type encodedFragment (eg nearby places business photo URLs).
+            Uri originalUri = uriRequest.getUri();
+
+            // Strip off the "contact type" we added to the URI to ensure it was identifiable as
+            // a business photo -- there is no need to pass this on to the server.
+            Uri uri = ContactPhotoManager.removeContactType(originalUri);
+
+            final int requestedExtent = uriRequest.getRequestedExtent();
+            long fetchStart = 0;
+            try {
+                if (DEBUG) Log.d(TAG, "Loading " + uri);
+                final boolean remote = isRemoteUri(uri);
+                final boolean diskCacheable = isDiskCacheable(uri, remote);
+                if (diskCacheable) {
+                    final ContactPhotoDiskCache.Entry cached = mDiskCache.get(originalUri, -1);
+                    // A thumbnail made for a smaller view is not good enough for this one.
+                    if (cached != null && (!cached.isThumbnail() || requestedExtent * 0.8f
+                            <= BitmapUtil.getSmallerExtentFromBytes(cached.bytes))) {
+                        mMetrics.recordHit(ContactPhotoMetrics.TIER_DISK);
+                        cacheBitmap(originalUri, cached.bytes, cached.isThumbnail(), false,
+                                requestedExtent);
+                        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                        return;
+                    }
+                    mMetrics.recordMiss(ContactPhotoMetrics.TIER_DISK);
+                }
+                fetchStart = System.nanoTime();
+                InputStream is = openPhotoStream(uri, remote);
+                int smallerExtent = 0;
+                if (is != null && requestedExtent > 0) {
+                    smallerExtent = BitmapUtil.getSmallerExtentFromStream(is, BOUNDS_READ_LIMIT);
+                    if (smallerExtent == Integer.MIN_VALUE) {
+                        // The header was too big to rewind over; start again and keep the
+                        // photo as it is.
+                        is.close();
+                        is = openPhotoStream(uri, remote);
+                    }
+                }
+                if (is != null) {
+                    final int sampleSize =
+                            BitmapUtil.findOptimalSampleSize(smallerExtent, requestedExtent);
                     try {
-                        profileCursor = mResolver.query(
-                                ContentUris.withAppendedId(Data.CONTENT_URI, id),
-                                COLUMNS, null, null, null);
-                        if (profileCursor != null && profileCursor.moveToFirst()) {
-                            cacheBitmap(profileCursor.getLong(0), profileCursor.getBlob(1),
-                                    preloading, -1);
+                        if (sampleSize > 1) {
+                            loadDownsampledPhoto(originalUri, is, sampleSize, diskCacheable);
                         } else {
-                            // Couldn't load a photo this way either.
-                            cacheBitmap(id, null, preloading, -1);
+                            final byte[] bytes = readFully(is);
+                            if (diskCacheable) {
+                                mDiskCache.put(originalUri, bytes, false);
+                            }
+                            cacheBitmap(originalUri, bytes, false, requestedExtent);
                         }
                     } finally {
-                        if (profileCursor != null) {
-                            profileCursor.close();
-                        }
+                        is.close();
                     }
+                    mMetrics.recordUriFetch(true, System.nanoTime() - fetchStart);
+                    mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
                 } else {
-                    // Not a profile photo and not found - mark the cache accordingly
-                    cacheBitmap(id, null, preloading, -1);
+                    Log.v(TAG, "Cannot load photo " + uri);
+                    mMetrics.recordUriFetch(false, System.nanoTime() - fetchStart);
+                    cacheBitmap(originalUri, null, false, requestedExtent);
                 }
+            } catch (final Exception | OutOfMemoryError ex) {
+                Log.v(TAG, "Cannot load photo " + uri, ex);
+                if (fetchStart != 0) {
+                    mMetrics.recordUriFetch(false, System.nanoTime() - fetchStart);
+                }
+                cacheBitmap(originalUri, null, false, requestedExtent);
+            }
+        }
+
+        /**
+         * Opens a buffered stream on the photo, which supports {@link InputStream#mark} so
+         * that its bounds can be read first.
+         *
+         * @return the stream, or null if the provider has no photo for the uri.
+         */
+        private InputStream openPhotoStream(Uri uri, boolean remote) throws IOException {
+            final InputStream is;
+            if (remote) {
+                is = ContactPhotoFetcher.getInstance(mContext).open(uri);
+            } else {
+                is = mResolver.openInputStream(uri);
             }
+            return is == null ? null : new BufferedInputStream(is, BUFFER_SIZE);
+        }
 
-            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        private byte[] readFully(InputStream is) throws IOException {
+            final byte[] buffer = mBuffer.get();
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            int size;
+            while ((size = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, size);
+            }
+            return baos.toByteArray();
         }
 
         /**
-         * Loads photos referenced with Uris. Those can be remote thumbnails
-         * (from directory searches), display photos etc
+         * Decodes a photo that is much bigger than requested straight from the stream at the
+         * given sample size, and caches the thumbnail and its re-encoded bytes in place of the
+         * photo, so that the full-size bytes are never held in memory.
          */
-        private void loadUriBasedPhotos() {
-            for (Request uriRequest : mPhotoUris) {
-                // Keep the original URI and use this to key into the cache.  Failure to do so will
-                // result in an image being continually reloaded into cache if the original URI
-                // has a contact type encodedFragment (eg nearby places business photo URLs).
-                Uri originalUri = uriRequest.getUri();
-
-                // Strip off the "contact type" we added to the URI to ensure it was identifiable as
-                // a business photo -- there is no need to pass this on to the server.
-                Uri uri = ContactPhotoManager.removeContactType(originalUri);
-
-                if (mBuffer == null) {
-                    mBuffer = new byte[BUFFER_SIZE];
+        private void loadDownsampledPhoto(Uri originalUri, InputStream is, int sampleSize,
+                boolean diskCacheable) throws IOException {
+            final long start = System.nanoTime();
+            final Bitmap decoded = BitmapUtil.decodeBitmapFromStream(is, sampleSize);
+            if (decoded == null) {
+                throw new IOException("Cannot decode photo");
+            }
+            final Bitmap bitmap = cropThumbnail(decoded);
+            mMetrics.recordDecode(System.nanoTime() - start);
+            final byte[] bytes = BitmapUtil.compressThumbnail(bitmap);
+            if (diskCacheable) {
+                mDiskCache.put(originalUri, bytes, true);
+            }
+            cacheDownsampledBitmap(originalUri, bytes, bitmap);
+        }
+    }
+
+    /**
+     * Loads one photo by uri on {@link #mLoaderPool}, for every view that waits for it. Stays
+     * in {@link #mUriTasks} while a view waits or the load is queued or running, and may be
+     * queued again if a view needs the photo bigger than it was loaded. Does nothing if, by
+     * the time it runs, no view waits for the photo any more, or, when prefetching, if the
+     * photo has been loaded already. All fields are guarded by {@link #mUriTasks}.
+     */
+    private class UriLoadTask implements Runnable {
+        static final int STATE_IDLE = 0;
+        static final int STATE_QUEUED = 1;
+        static final int STATE_RUNNING = 2;
+
+        /** The waiting request with the largest extent, which the photo is loaded for. */
+        Request mRequest;
+        /** The number of views waiting for the photo. */
+        int mWaiters;
+        /** Whether the task is queued at prefetch priority. */
+        boolean mPrefetch;
+        int mState = STATE_IDLE;
+
+        public UriLoadTask(Request request, boolean prefetch) {
+            mRequest = request;
+            mPrefetch = prefetch;
+        }
+
+        @Override
+        public void run() {
+            final Object key;
+            synchronized (mUriTasks) {
+                key = mRequest.getKey();
+            }
+            final boolean cached = mBitmapHolderCache.get(key) != null;
+            final Request request;
+            synchronized (mUriTasks) {
+                if (mPrefetch ? cached : mWaiters == 0) {
+                    if (DEBUG) Log.d(TAG, "Skipping unwanted uri load: " + mRequest.getUri());
+                    finishLocked(key);
+                    return;
                 }
-                try {
-                    if (DEBUG) Log.d(TAG, "Loading " + uri);
-                    final String scheme = uri.getScheme();
-                    InputStream is = null;
-                    if (scheme.equals("http") || scheme.equals("https")) {
-                        is = new URL(uri.toString()).openStream();
-                    } else {
-                        is = mResolver.openInputStream(uri);
-                    }
-                    if (is != null) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        try {
-                            int size;
-                            while ((size = is.read(mBuffer)) != -1) {
-                                baos.write(mBuffer, 0, size);
-                            }
-                        } finally {
-                            is.close();
-                        }
-                        cacheBitmap(originalUri, baos.toByteArray(), false,
-                                uriRequest.getRequestedExtent());
-                        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
-                    } else {
-                        Log.v(TAG, "Cannot load photo " + uri);
-                        cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
-                    }
-                } catch (final Exception | OutOfMemoryError ex) {
-                    Log.v(TAG, "Cannot load photo " + uri, ex);
-                    cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+                mState = STATE_RUNNING;
+                request = mRequest;
+            }
+            try {
+                mLoader.loadUriBasedPhoto(request);
+            } finally {
+                synchronized (mUriTasks) {
+                    finishLocked(key);
                 }
             }
         }
+
+        private void finishLocked(Object key) {
+            mState = STATE_IDLE;
+            if (mWaiters == 0 && mUriTasks.get(key) == this) {
+                mUriTasks.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Identifies a display-ready bitmap in {@link ContactPhotoManagerImpl#mBitmapCache}: a
+     * photo as decoded from one particular {@link BitmapHolder}, for one requested extent, and
+     * either rounded or not. The theme is not part of the key because it only affects default
+     * images, which are never cached here. Neither is the photo key, so that keys sharing a
+     * holder also share its display bitmaps.
+     */
+    private static final class VariantKey {
+        private final int mHolderId;
+        private final int mRequestedExtent;
+        private final boolean mIsCircular;
+
+        public VariantKey(int holderId, int requestedExtent, boolean isCircular) {
+            mHolderId = holderId;
+            mRequestedExtent = requestedExtent;
+            mIsCircular = isCircular;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + mHolderId;
+            result = prime * result + mRequestedExtent;
+            result = prime * result + (mIsCircular ? 1 : 0);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (obj == null) return false;
+            if (getClass() != obj.getClass()) return false;
+            final VariantKey that = (VariantKey) obj;
+            return mHolderId == that.mHolderId
+                    && mRequestedExtent == that.mRequestedExtent
+                    && mIsCircular == that.mIsCircular;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + mHolderId + "/" + mRequestedExtent
+                    + (mIsCircular ? "/circular" : "");
+        }
     }
 
     /**
@@ -1673,6 +2984,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             return mUri == null ? mId : mUri;
         }
 
+        /**
+         * Returns the key under which the bitmap displayed for this request is cached, once
+         * made from the given holder.
+         */
+        public VariantKey getVariantKey(BitmapHolder holder) {
+            return new VariantKey(holder.id, mRequestedExtent, mIsCircular);
+        }
+
         /**
          * Applies the default image to the current view. If the request is URI-based, looks for
          * the contact type encoded fragment to determine if this is a request for a business photo,
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how well the caches of a {@link ContactPhotoManager} work. They are
+ * always collected: every update is a few atomic operations, so they can be read in
+ * production to tune the cache sizes.
+ */
+public class ContactPhotoMetrics {
+    /** Encoded photos kept in memory. */
+    public static final int TIER_HOLDER = 0;
+    /** Decoded bitmaps, ready for display. */
+    public static final int TIER_BITMAP = 1;
+    /** Encoded photos kept on disk. */
+    public static final int TIER_DISK = 2;
+
+    private static final String[] TIER_NAMES = { "holder", "bitmap", "disk" };
+
+    /**
+     * Number, total and maximum duration of an operation.
+     */
+    public static final class Timer {
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        public synchronized void record(long nanos) {
+            mCount++;
+            mTotalNanos += nanos;
+            if (nanos > mMaxNanos) {
+                mMaxNanos = nanos;
+            }
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized double getAverageMillis() {
+            return mCount == 0 ? 0 : mTotalNanos / 1e6 / mCount;
+        }
+
+        public synchronized double getMaxMillis() {
+            return mMaxNanos / 1e6;
+        }
+
+        synchronized void reset() {
+            mCount = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "n=%d avg=%.2fms max=%.2fms",
+                    mCount, getAverageMillis(), getMaxMillis());
+        }
+    }
+
+    private final AtomicLong[] mHits = newCounters(TIER_NAMES.length);
+    private final AtomicLong[] mMisses = newCounters(TIER_NAMES.length);
+    private final AtomicLong[] mEvictions = newCounters(TIER_NAMES.length);
+
+    private final Timer mDecodeTimer = new Timer();
+    private final Timer mQueryTimer = new Timer();
+    private final AtomicLong mQueriedPhotos = new AtomicLong();
+    private final AtomicLong mMaxQueryBatch = new AtomicLong();
+    private final Timer mUriFetchTimer = new Timer();
+    private final AtomicLong mUriFetchFailures = new AtomicLong();
+    private final AtomicLong mPreloaded = new AtomicLong();
+    private final AtomicLong mPreloadedShown = new AtomicLong();
+    private final AtomicLong mSharedHolders = new AtomicLong();
+
+    /** Trim level to {number of trims, bytes dropped}. Guarded by itself. */
+    private final TreeMap<Integer, long[]> mTrims = new TreeMap<Integer, long[]>();
+
+    private static AtomicLong[] newCounters(int count) {
+        final AtomicLong[] counters = new AtomicLong[count];
+        for (int i = 0; i < count; i++) {
+            counters[i] = new AtomicLong();
+        }
+        return counters;
+    }
+
+    public void recordHit(int tier) {
+        mHits[tier].incrementAndGet();
+    }
+
+    public void recordMiss(int tier) {
+        mMisses[tier].incrementAndGet();
+    }
+
+    public void recordMisses(int tier, int count) {
+        mMisses[tier].addAndGet(count);
+    }
+
+    /** Records that a tier dropped an entry to stay within its size. */
+    public void recordEviction(int tier) {
+        mEvictions[tier].incrementAndGet();
+    }
+
+    public void recordDecode(long nanos) {
+        mDecodeTimer.record(nanos);
+    }
+
+    /** Records one query for the blobs of {@code batchSize} thumbnails. */
+    public void recordQuery(int batchSize, long nanos) {
+        mQueryTimer.record(nanos);
+        mQueriedPhotos.addAndGet(batchSize);
+        long max;
+        while (batchSize > (max = mMaxQueryBatch.get())) {
+            if (mMaxQueryBatch.compareAndSet(max, batchSize)) {
+                break;
+            }
+        }
+    }
+
+    public void recordUriFetch(boolean success, long nanos) {
+        mUriFetchTimer.record(nanos);
+        if (!success) {
+            mUriFetchFailures.incrementAndGet();
+        }
+    }
+
+    /** Records a call to {@link ContactPhotoManager#onTrimMemory} and what it freed. */
+    public void recordTrim(int level, long bytesDropped) {
+        synchronized (mTrims) {
+            long[] trim = mTrims.get(level);
+            if (trim == null) {
+                trim = new long[2];
+                mTrims.put(level, trim);
+            }
+            trim[0]++;
+            trim[1] += bytesDropped;
+        }
+    }
+
+    public void recordPreloaded() {
+        mPreloaded.incrementAndGet();
+    }
+
+    /** Records that a preloaded photo was shown for the first time. */
+    public void recordPreloadedShown() {
+        mPreloadedShown.incrementAndGet();
+    }
+
+    /** Records that a photo was cached by sharing the bytes of an identical cached photo. */
+    public void recordSharedHolder() {
+        mSharedHolders.incrementAndGet();
+    }
+
+    public long getHits(int tier) {
+        return mHits[tier].get();
+    }
+
+    public long getMisses(int tier) {
+        return mMisses[tier].get();
+    }
+
+    public long getEvictions(int tier) {
+        return mEvictions[tier].get();
+    }
+
+    /** Returns the fraction of lookups in the tier that were hits, or 0 if there were none. */
+    public double getHitRate(int tier) {
+        final long hits = getHits(tier);
+        final long total = hits + getMisses(tier);
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public Timer getDecodeTimer() {
+        return mDecodeTimer;
+    }
+
+    public Timer getQueryTimer() {
+        return mQueryTimer;
+    }
+
+    public double getAverageQueryBatch() {
+        final long queries = mQueryTimer.getCount();
+        return queries == 0 ? 0 : (double) mQueriedPhotos.get() / queries;
+    }
+
+    public long getMaxQueryBatch() {
+        return mMaxQueryBatch.get();
+    }
+
+    public Timer getUriFetchTimer() {
+        return mUriFetchTimer;
+    }
+
+    public long getUriFetchFailures() {
+        return mUriFetchFailures.get();
+    }
+
+    public long getTrimCount(int level) {
+        synchronized (mTrims) {
+            final long[] trim = mTrims.get(level);
+            return trim == null ? 0 : trim[0];
+        }
+    }
+
+    public long getTrimBytesDropped(int level) {
+        synchronized (mTrims) {
+            final long[] trim = mTrims.get(level);
+            return trim == null ? 0 : trim[1];
+        }
+    }
+
+    public long getPreloaded() {
+        return mPreloaded.get();
+    }
+
+    public long getPreloadedShown() {
+        return mPreloadedShown.get();
+    }
+
+    public long getSharedHolders() {
+        return mSharedHolders.get();
+    }
+
+    /** Sets all counters back to zero. */
+    public void reset() {
+        for (int i = 0; i < TIER_NAMES.length; i++) {
+            mHits[i].set(0);
+            mMisses[i].set(0);
+            mEvictions[i].set(0);
+        }
+        mDecodeTimer.reset();
+        mQueryTimer.reset();
+        mQueriedPhotos.set(0);
+        mMaxQueryBatch.set(0);
+        mUriFetchTimer.reset();
+        mUriFetchFailures.set(0);
+        mPreloaded.set(0);
+        mPreloadedShown.set(0);
+        mSharedHolders.set(0);
+        synchronized (mTrims) {
+            mTrims.clear();
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        for (int i = 0; i < TIER_NAMES.length; i++) {
+            writer.println(String.format(Locale.US, "%s%s: hits=%d misses=%d (%.1f%%)"
+                    + " evictions=%d", prefix, TIER_NAMES[i], getHits(i), getMisses(i),
+                    getHitRate(i) * 100, getEvictions(i)));
+        }
+        writer.println(prefix + "decode: " + mDecodeTimer);
+        writer.println(String.format(Locale.US, "%squery: %s batch avg=%.1f max=%d", prefix,
+                mQueryTimer, getAverageQueryBatch(), getMaxQueryBatch()));
+        writer.println(prefix + "uri fetch: " + mUriFetchTimer
+                + " failures=" + getUriFetchFailures());
+        writer.println(prefix + "preload: loaded=" + getPreloaded()
+                + " shown=" + getPreloadedShown());
+        writer.println(prefix + "shared holders: " + getSharedHolders());
+        synchronized (mTrims) {
+            for (Map.Entry<Integer, long[]> trim : mTrims.entrySet()) {
+                writer.println(prefix + "trim level " + trim.getKey() + ": count="
+                        + trim.getValue()[0] + " dropped=" + trim.getValue()[1] + "B");
+            }
+        }
+    }
+}
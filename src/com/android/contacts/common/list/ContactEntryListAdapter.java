@@ -81,6 +81,15 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
 
     private ContactPhotoManager mPhotoLoader;
 
+    private final CursorPhotoPrefetcher mPhotoPrefetcher = new CursorPhotoPrefetcher();
+    private int mPhotoPrefetchPartition = -1;
+    /**
+     * Whether the photos of the cursor of {@link #mPhotoPrefetchPartition} have been handed to
+     * the photo manager for preloading. A flag rather than the cursor, so that the adapter does
+     * not hold on to a cursor once its photo ids have been read.
+     */
+    private boolean mPhotosPreloaded;
+
     private String mQueryString;
     private String mUpperCaseQueryString;
     private boolean mSearchMode;
@@ -469,6 +478,10 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
 
         // When the cursor changes, cancel any pending asynchronous photo loads.
         mPhotoLoader.cancelPendingRequests(mFragmentRootView);
+        if (partitionIndex == mPhotoPrefetchPartition) {
+            mPhotoPrefetcher.reset();
+            mPhotosPreloaded = false;
+        }
     }
 
     public void changeCursor(Cursor cursor) {
@@ -747,7 +760,59 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
             getPhotoLoader().loadPhoto(quickContact, photoUri, account, -1,
                     mDarkTheme, mCircularPhotos, request);
         }
+        prefetchPhotos(partitionIndex, cursor, photoIdColumn, photoUriColumn);
+    }
+
+    /**
+     * Prefetches the photos of the rows that follow the cursor's current row in the direction
+     * the list is scrolling, so they are cached by the time the rows are bound. The first time
+     * a cursor is bound, the photos around the bound row are also handed to the photo manager
+     * for preloading, in the order of the cursor. Call this when binding a photo; the cursor
+     * is left on its current row.
+     *
+     * @param photoUriColumn Index of the photo uri column. Optional: Can be -1
+     */
+    protected void prefetchPhotos(int partitionIndex, Cursor cursor, int photoIdColumn,
+            int photoUriColumn) {
+        if (partitionIndex != mPhotoPrefetchPartition) {
+            mPhotoPrefetchPartition = partitionIndex;
+            mPhotoPrefetcher.reset();
+            mPhotosPreloaded = false;
+        }
+        final int position = cursor.getPosition();
+        mPhotoPrefetcher.mCursor = cursor;
+        mPhotoPrefetcher.mPhotoIdColumn = photoIdColumn;
+        mPhotoPrefetcher.mPhotoUriColumn = photoUriColumn;
+        try {
+            if (!mPhotosPreloaded) {
+                mPhotosPreloaded = true;
+                mPhotoPrefetcher.preload(mPhotoLoader, position, cursor.getCount());
+            }
+            mPhotoPrefetcher.onBind(mPhotoLoader, position, cursor.getCount());
+        } finally {
+            cursor.moveToPosition(position);
+            mPhotoPrefetcher.mCursor = null;
+        }
+    }
+
+    private static class CursorPhotoPrefetcher extends PhotoPrefetcher {
+        Cursor mCursor;
+        int mPhotoIdColumn;
+        int mPhotoUriColumn;
 
+        @Override
+        protected void getPhoto(int position, long[] photoIds, Uri[] photoUris, int index) {
+            if (!mCursor.moveToPosition(position)) {
+                return;
+            }
+            if (!mCursor.isNull(mPhotoIdColumn)) {
+                photoIds[index] = mCursor.getLong(mPhotoIdColumn);
+            }
+            if (photoIds[index] == 0 && mPhotoUriColumn != -1) {
+                final String photoUriString = mCursor.getString(mPhotoUriColumn);
+                photoUris[index] = photoUriString == null ? null : Uri.parse(photoUriString);
+            }
+        }
     }
 
     @Override
@@ -264,6 +264,8 @@ public abstract class ContactListAdapter extends ContactEntryListAdapter {
             getPhotoLoader().loadDirectoryPhoto(view.getPhotoView(), photoUri, account, false,
                     getCircularPhotos(), request);
         }
+        prefetchPhotos(partitionIndex, cursor, ContactQuery.CONTACT_PHOTO_ID,
+                ContactQuery.CONTACT_PHOTO_URI);
     }
 
     protected void bindNameAndViewId(final ContactListItemView view, Cursor cursor) {
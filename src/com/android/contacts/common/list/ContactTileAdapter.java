@@ -53,6 +53,16 @@ public class ContactTileAdapter extends BaseAdapter {
     private ContactPhotoManager mPhotoManager;
     protected int mNumFrequents;
 
+    private final PhotoPrefetcher mPhotoPrefetcher = new PhotoPrefetcher() {
+        @Override
+        protected void getPhoto(int position, long[] photoIds, Uri[] photoUris, int index) {
+            if (mContactCursor.moveToPosition(position)) {
+                final String photoUri = mContactCursor.getString(mPhotoUriIndex);
+                photoUris[index] = photoUri == null ? null : Uri.parse(photoUri);
+            }
+        }
+    };
+
     /**
      * Index of the first NON starred contact in the {@link Cursor}
      * Only valid when {@link DisplayType#STREQUENT} is true
@@ -196,6 +206,7 @@ public class ContactTileAdapter extends BaseAdapter {
         }
         mContactCursor = cursor;
         mDividerPosition = getDividerPosition(cursor);
+        mPhotoPrefetcher.reset();
 
         saveNumFrequentsFromCursor(cursor);
 
@@ -415,9 +426,31 @@ public class ContactTileAdapter extends BaseAdapter {
         }
 
         contactTileRowView.configureRow(contactList, position == getCount() - 1);
+        mPhotoPrefetcher.onBind(mPhotoManager, getFirstContactIndex(position),
+                mContactCursor.getCount());
         return contactTileRowView;
     }
 
+    /**
+     * Returns the index in {@link #mContactCursor} of the first contact on the given row,
+     * which must not be the divider.
+     */
+    private int getFirstContactIndex(int position) {
+        switch (mDisplayType) {
+            case FREQUENT_ONLY:
+                return position;
+            case STREQUENT:
+                final int starredRowCount = getRowCount(mDividerPosition);
+                if (position >= starredRowCount) {
+                    // Skip the divider row, as in getItem().
+                    return position - starredRowCount - 1 + mDividerPosition;
+                }
+                return position * mColumnCount;
+            default:
+                return position * mColumnCount;
+        }
+    }
+
     /**
      * Divider uses a list_seperator.xml along with text to denote
      * the most frequently contacted contacts.
@@ -479,6 +479,7 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
             getPhotoLoader().loadDirectoryPhoto(view.getPhotoView(), photoUri, account, false,
                     getCircularPhotos(), request);
         }
+        prefetchPhotos(partitionIndex, cursor, PhoneQuery.PHOTO_ID, PhoneQuery.PHOTO_URI);
     }
 
     public void setPhotoPosition(ContactListItemView.PhotoPosition photoPosition) {
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.android.contacts.common.ContactPhotoManager;
+
+/**
+ * Tells a {@link ContactPhotoManager} which photos to prefetch while a list is scrolled.
+ * The scroll direction and velocity are derived from the positions the adapter binds, so no
+ * scroll listener is needed.
+ */
+abstract class PhotoPrefetcher {
+    /** Number of upcoming rows offered to {@link ContactPhotoManager#prefetchPhotos}. */
+    private static final int PREFETCH_ROWS = 16;
+
+    /**
+     * The rows offered are refreshed whenever the list has moved by this many rows, so that
+     * the manager is not called for every bind.
+     */
+    private static final int REFRESH_ROWS = 4;
+
+    /** Number of rows offered to {@link ContactPhotoManager#setPreloadPhotoIds}. */
+    private static final int PRELOAD_ROWS = 100;
+
+    /** Position jumps larger than this are not counted as scrolling. */
+    private static final int MAX_SCROLL_STEP = 2 * PREFETCH_ROWS;
+
+    private final long[] mPhotoIds = new long[PREFETCH_ROWS];
+    private final Uri[] mPhotoUris = new Uri[PREFETCH_ROWS];
+
+    private int mLastPosition = -1;
+    private long mLastBindTime;
+    private int mDirection = ContactPhotoManager.SCROLL_DIRECTION_DOWN;
+    /** Smoothed scroll velocity, in rows per second. */
+    private float mVelocity;
+    private int mLastPrefetchPosition = -1;
+    private int mLastPrefetchDirection;
+
+    /**
+     * Reads the photo of a row. Callers of {@link #onBind} must restore the position of any
+     * cursor this moves.
+     *
+     * @param photoIds receives the photo id at {@code index}, or 0.
+     * @param photoUris receives the photo uri at {@code index}, or null.
+     */
+    protected abstract void getPhoto(int position, long[] photoIds, Uri[] photoUris,
+            int index);
+
+    /**
+     * Forgets the scroll state, e.g. because the rows have changed.
+     */
+    public void reset() {
+        mLastPosition = -1;
+        mVelocity = 0;
+        mLastPrefetchPosition = -1;
+    }
+
+    /**
+     * Hands the photos of the rows around {@code position} to the manager for preloading:
+     * first the rows from there to the end, which come into view as the list is scrolled
+     * down, then the rows above it, closest first.
+     *
+     * @param count the number of rows.
+     */
+    public void preload(ContactPhotoManager photoManager, int position, int count) {
+        if (photoManager == null) {
+            return;
+        }
+        final int rows = Math.min(count, PRELOAD_ROWS);
+        final long[] photoIds = new long[rows];
+        final Uri[] photoUris = new Uri[rows];
+        int index = 0;
+        for (int row = position; row < count && index < rows; row++) {
+            getPhoto(row, photoIds, photoUris, index++);
+        }
+        for (int row = position - 1; row >= 0 && index < rows; row--) {
+            getPhoto(row, photoIds, photoUris, index++);
+        }
+        photoManager.setPreloadPhotoIds(photoIds);
+    }
+
+    /**
+     * Called when the row at {@code position} is bound. Prefetches photos of the rows after it
+     * in the direction of scrolling.
+     *
+     * @param count the number of rows.
+     */
+    public void onBind(ContactPhotoManager photoManager, int position, int count) {
+        if (photoManager == null) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (mLastPosition != -1 && position != mLastPosition) {
+            final int step = position - mLastPosition;
+            if (Math.abs(step) > MAX_SCROLL_STEP) {
+                mVelocity = 0;
+            } else {
+                mDirection = step > 0 ? ContactPhotoManager.SCROLL_DIRECTION_DOWN
+                        : ContactPhotoManager.SCROLL_DIRECTION_UP;
+                final long elapsed = Math.max(1, now - mLastBindTime);
+                mVelocity = (mVelocity + Math.abs(step) * 1000f / elapsed) / 2;
+            }
+        }
+        mLastPosition = position;
+        mLastBindTime = now;
+
+        if (mLastPrefetchPosition != -1 && mDirection == mLastPrefetchDirection
+                && Math.abs(position - mLastPrefetchPosition) < REFRESH_ROWS) {
+            return;
+        }
+        mLastPrefetchPosition = position;
+        mLastPrefetchDirection = mDirection;
+
+        final int first;
+        final int end;
+        if (mDirection == ContactPhotoManager.SCROLL_DIRECTION_DOWN) {
+            first = position + 1;
+            end = Math.min(count, first + PREFETCH_ROWS);
+        } else {
+            end = position;
+            first = Math.max(0, end - PREFETCH_ROWS);
+        }
+        final int rows = Math.max(0, end - first);
+        final long[] photoIds;
+        final Uri[] photoUris;
+        if (rows == PREFETCH_ROWS) {
+            photoIds = mPhotoIds;
+            photoUris = mPhotoUris;
+        } else {
+            photoIds = new long[rows];
+            photoUris = new Uri[rows];
+        }
+        for (int i = 0; i < rows; i++) {
+            photoIds[i] = 0;
+            photoUris[i] = null;
+            getPhoto(first + i, photoIds, photoUris, i);
+        }
+        photoManager.prefetchPhotos(photoIds, photoUris, mDirection, mVelocity);
+    }
+}
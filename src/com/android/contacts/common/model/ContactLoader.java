@@ -38,6 +38,7 @@ import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.contacts.common.ContactPhotoFetcher;
 import com.android.contacts.common.GeoUtil;
 import com.android.contacts.common.GroupMetaData;
 import com.android.contacts.common.model.account.AccountType;
@@ -61,7 +62,6 @@ import org.json.JSONObject;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -531,7 +531,7 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
                 final String scheme = uri.getScheme();
                 if ("http".equals(scheme) || "https".equals(scheme)) {
                     // Support HTTP urls that might come from extended directories
-                    inputStream = new URL(photoUri).openStream();
+                    inputStream = ContactPhotoFetcher.getInstance(getContext()).open(uri);
                     fd = null;
                 } else {
                     fd = getContext().getContentResolver().openAssetFileDescriptor(uri, "r");
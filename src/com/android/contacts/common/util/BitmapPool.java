@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded pool of unused mutable bitmaps, bucketed by width, height and config, from
+ * which bitmaps can be taken for reuse by decoding with
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} or by drawing into them.
+ * <p>
+ * A bitmap must only be put into the pool when nothing else references it any more. When the
+ * pool is full, the least recently used bucket is trimmed first.
+ */
+public class BitmapPool {
+    private final LinkedHashMap<Long, ArrayList<Bitmap>> mBuckets =
+            new LinkedHashMap<Long, ArrayList<Bitmap>>(16, 0.75f, true);
+    private int mMaxSize;
+    private int mSize;
+
+    /**
+     * @param maxSize the maximum number of bytes of all pooled bitmaps together.
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Removes and returns a pooled bitmap with exactly the given dimensions and config, or
+     * returns null if there is none. The content of the returned bitmap is undefined.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        final ArrayList<Bitmap> bucket = mBuckets.get(getKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        final Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        mSize -= bitmap.getByteCount();
+        return bitmap;
+    }
+
+    /**
+     * Adds an unused bitmap to the pool. Immutable, recycled and oversized bitmaps are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null || bitmap.getByteCount() > mMaxSize / 4) {
+            return;
+        }
+        final Long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(key, bucket);
+        } else if (bucket.contains(bitmap)) {
+            return;
+        }
+        bucket.add(bitmap);
+        mSize += bitmap.getByteCount();
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Drops pooled bitmaps until the pool holds at most {@code maxSize} bytes.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        final Iterator<Map.Entry<Long, ArrayList<Bitmap>>> iterator =
+                mBuckets.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final ArrayList<Bitmap> bucket = iterator.next().getValue();
+            while (mSize > maxSize && !bucket.isEmpty()) {
+                mSize -= bucket.remove(0).getByteCount();
+            }
+            if (bucket.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void evictAll() {
+        mBuckets.clear();
+        mSize = 0;
+    }
+
+    /** Returns the number of bytes of all pooled bitmaps together. */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    private static Long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+}
@@ -18,14 +18,26 @@ package com.android.contacts.common.util;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.BitmapDrawable;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * Provides static functions to decode bitmaps at the optimal size
  */
 public class BitmapUtil {
+    private static final int THUMBNAIL_JPEG_QUALITY = 90;
+
     private BitmapUtil() {}
 
     /**
@@ -84,6 +96,142 @@ public class BitmapUtil {
         return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
     }
 
+    /**
+     * Decodes the bitmap with the given sample size, reusing a bitmap of the resulting size
+     * from the pool if there is one. The returned bitmap is mutable, so that it can be put back
+     * into the pool once it is no longer used.
+     */
+    public static Bitmap decodeBitmapFromBytes(byte[] bytes, int sampleSize, BitmapPool pool) {
+        if (pool == null) {
+            return decodeBitmapFromBytes(bytes, sampleSize);
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = Math.max(1, sampleSize);
+
+        // With inSampleSize set, the bounds are reported for the sampled bitmap.
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        if (options.outWidth > 0 && options.outHeight > 0) {
+            options.inBitmap = pool.get(options.outWidth, options.outHeight,
+                    Bitmap.Config.ARGB_8888);
+        }
+        try {
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not be reused for this image.
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+    }
+
+    /**
+     * Returns Width or Height of the picture at the start of the stream, depending on which
+     * size is smaller, without decoding the picture. Only the header is read; the stream is
+     * reset to where it was afterwards.
+     *
+     * @param in a stream that supports {@link InputStream#mark}.
+     * @param readLimit the number of bytes the header may take up.
+     * @return the smaller extent, 0 or smaller if the picture could not be parsed, or
+     * {@link Integer#MIN_VALUE} if the header did not fit into {@code readLimit} bytes, in
+     * which case the stream cannot be used any more.
+     */
+    public static int getSmallerExtentFromStream(InputStream in, int readLimit) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        in.mark(readLimit);
+        BitmapFactory.decodeStream(in, null, options);
+        try {
+            in.reset();
+        } catch (IOException e) {
+            return Integer.MIN_VALUE;
+        }
+        return Math.min(options.outWidth, options.outHeight);
+    }
+
+    /**
+     * Decodes the bitmap from a stream with the given sample size, so that the full-size
+     * picture never has to be held in memory. The returned bitmap is mutable, so that it can
+     * be put into a {@link BitmapPool} once it is no longer used.
+     *
+     * @return the bitmap, or null if the stream could not be decoded.
+     */
+    public static Bitmap decodeBitmapFromStream(InputStream in, int sampleSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = Math.max(1, sampleSize);
+        options.inMutable = true;
+        return BitmapFactory.decodeStream(in, null, options);
+    }
+
+    /**
+     * Encodes a decoded thumbnail so that it can be cached in place of the photo it was made
+     * from. Bitmaps with transparency are stored losslessly.
+     */
+    public static byte[] compressThumbnail(Bitmap bitmap) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                bitmap.getWidth() * bitmap.getHeight() / 8);
+        if (bitmap.hasAlpha()) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } else {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_JPEG_QUALITY, out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Crops the center square out of a bitmap, drawing into a bitmap from the pool if there is
+     * one. The source bitmap is put into the pool, so the caller must not use it afterwards.
+     */
+    public static Bitmap cropToSquare(Bitmap source, BitmapPool pool) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final int dimension = Math.min(width, height);
+        final Bitmap.Config config =
+                source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap square = pool != null ? pool.get(dimension, dimension, config) : null;
+        if (square == null) {
+            square = Bitmap.createBitmap(dimension, dimension, config);
+        } else {
+            square.eraseColor(Color.TRANSPARENT);
+        }
+        final int left = (width - dimension) / 2;
+        final int top = (height - dimension) / 2;
+        final Canvas canvas = new Canvas(square);
+        canvas.drawBitmap(source, new Rect(left, top, left + dimension, top + dimension),
+                new Rect(0, 0, dimension, dimension), new Paint(Paint.FILTER_BITMAP_FLAG));
+        canvas.setBitmap(null);
+        if (pool != null) {
+            pool.put(source);
+        }
+        return square;
+    }
+
+    /**
+     * Returns a copy of the bitmap with its corners rounded to the given radius, drawn
+     * anti-aliased onto a transparent background, so it can be displayed as is without
+     * clipping at draw time. The destination is taken from the pool if possible; the source
+     * is left untouched.
+     */
+    public static Bitmap createRoundedBitmap(Bitmap source, float cornerRadius,
+            BitmapPool pool) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        Bitmap rounded = pool != null ? pool.get(width, height, Bitmap.Config.ARGB_8888) : null;
+        if (rounded == null) {
+            rounded = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        } else {
+            rounded.eraseColor(Color.TRANSPARENT);
+        }
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        paint.setShader(new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+        final Canvas canvas = new Canvas(rounded);
+        canvas.drawRoundRect(new RectF(0, 0, width, height), cornerRadius, cornerRadius, paint);
+        canvas.setBitmap(null);
+        return rounded;
+    }
+
     /**
      * Retrieves a copy of the specified drawable resource, rotated by a specified angle.
      *
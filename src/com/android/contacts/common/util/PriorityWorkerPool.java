@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small, fixed pool of worker threads running tasks by priority class.
+ * <p>
+ * Priority classes are numbered from 0 (highest) upwards. A free worker always takes the
+ * oldest task of the highest priority class that has not reached its concurrency limit, so
+ * work of a lower class never delays work of a higher class, and a class can never occupy
+ * more workers than its limit. Queued tasks can be removed before they start running.
+ * <p>
+ * One worker is kept for the highest class: the lower classes together never occupy more than
+ * all workers but one, so that slow lower-priority tasks cannot make a task of the highest
+ * class wait for a worker. A pool of a single thread keeps none.
+ * <p>
+ * Threads are created on the first call to {@link #execute}.
+ */
+public class PriorityWorkerPool {
+    private static final String TAG = "PriorityWorkerPool";
+
+    private final String mName;
+    private final int mThreadCount;
+    private final int[] mLimits;
+    private final int[] mRunning;
+    /** Maximum number of tasks of the lower classes, together, running at the same time. */
+    private final int mLowerClassesLimit;
+    private final List<ArrayDeque<Runnable>> mQueues;
+    private final List<Thread> mWorkers = new ArrayList<Thread>();
+    private final Object mLock = new Object();
+
+    private boolean mShutdown;
+
+    /**
+     * @param name prefix of the worker thread names.
+     * @param threadCount number of worker threads.
+     * @param limits maximum number of tasks of each priority class that may run at the same
+     * time. The length of this array is the number of priority classes.
+     */
+    public PriorityWorkerPool(String name, int threadCount, int... limits) {
+        if (threadCount < 1 || limits.length == 0) {
+            throw new IllegalArgumentException("Need at least one thread and one class");
+        }
+        mName = name;
+        mThreadCount = threadCount;
+        mLimits = limits.clone();
+        mRunning = new int[limits.length];
+        mLowerClassesLimit = Math.max(1, threadCount - 1);
+        mQueues = new ArrayList<ArrayDeque<Runnable>>(limits.length);
+        for (int i = 0; i < limits.length; i++) {
+            mQueues.add(new ArrayDeque<Runnable>());
+        }
+    }
+
+    /**
+     * Queues a task in the given priority class. Does nothing after {@link #shutdown}.
+     */
+    public void execute(int priorityClass, Runnable task) {
+        synchronized (mLock) {
+            if (mShutdown) {
+                return;
+            }
+            mQueues.get(priorityClass).add(task);
+            ensureWorkersLocked();
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Removes a task that has not started running yet.
+     *
+     * @return true if the task was queued and will not run.
+     */
+    public boolean remove(Runnable task) {
+        synchronized (mLock) {
+            for (ArrayDeque<Runnable> queue : mQueues) {
+                if (queue.remove(task)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the task is queued and has not started running yet.
+     */
+    public boolean isQueued(Runnable task) {
+        synchronized (mLock) {
+            for (ArrayDeque<Runnable> queue : mQueues) {
+                if (queue.contains(task)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if there is any queued or running task in the given priority class.
+     */
+    public boolean isBusy(int priorityClass) {
+        synchronized (mLock) {
+            return mRunning[priorityClass] > 0 || !mQueues.get(priorityClass).isEmpty();
+        }
+    }
+
+    /**
+     * Stops the workers once their current tasks are done. Queued tasks are dropped.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            for (ArrayDeque<Runnable> queue : mQueues) {
+                queue.clear();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    private void ensureWorkersLocked() {
+        while (mWorkers.size() < mThreadCount) {
+            final Thread worker = new Worker(mName + "-" + mWorkers.size());
+            mWorkers.add(worker);
+            worker.start();
+        }
+    }
+
+    private int getLowerClassesRunningLocked() {
+        int running = 0;
+        for (int i = 1; i < mRunning.length; i++) {
+            running += mRunning[i];
+        }
+        return running;
+    }
+
+    private class Worker extends Thread {
+        public Worker(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Runnable task;
+                int priorityClass = -1;
+                synchronized (mLock) {
+                    Runnable next = null;
+                    while (next == null) {
+                        if (mShutdown) {
+                            return;
+                        }
+                        for (int i = 0; i < mLimits.length; i++) {
+                            if (i > 0 && getLowerClassesRunningLocked() >= mLowerClassesLimit) {
+                                break;
+                            }
+                            if (mRunning[i] < mLimits[i] && !mQueues.get(i).isEmpty()) {
+                                next = mQueues.get(i).poll();
+                                priorityClass = i;
+                                break;
+                            }
+                        }
+                        if (next == null) {
+                            try {
+                                mLock.wait();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                    mRunning[priorityClass]++;
+                    task = next;
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // Keep the worker alive for the remaining tasks.
+                    Log.e(TAG, "Task failed in " + getName(), e);
+                } finally {
+                    synchronized (mLock) {
+                        mRunning[priorityClass]--;
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs kept in a sorted array, so that adding, removing and iterating
+ * ids does not allocate once the array has grown to its working size. Lookups are binary
+ * searches, which is fast for the few hundred elements it is meant for. Not thread-safe.
+ */
+public class SortedLongSet {
+    private long[] mValues;
+    private int mSize;
+
+    public SortedLongSet() {
+        this(16);
+    }
+
+    public SortedLongSet(int initialCapacity) {
+        mValues = new long[Math.max(1, initialCapacity)];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /** Returns the element at the given index, in ascending order. */
+    public long get(int index) {
+        if (index >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return mValues[index];
+    }
+
+    public boolean contains(long value) {
+        return Arrays.binarySearch(mValues, 0, mSize, value) >= 0;
+    }
+
+    /**
+     * Adds the value.
+     *
+     * @return false if it was in the set already.
+     */
+    public boolean add(long value) {
+        int index = Arrays.binarySearch(mValues, 0, mSize, value);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (mSize == mValues.length) {
+            mValues = Arrays.copyOf(mValues, mSize * 2);
+        }
+        System.arraycopy(mValues, index, mValues, index + 1, mSize - index);
+        mValues[index] = value;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Removes the value.
+     *
+     * @return false if it was not in the set.
+     */
+    public boolean remove(long value) {
+        final int index = Arrays.binarySearch(mValues, 0, mSize, value);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+        mSize--;
+        return true;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < mSize; i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(mValues[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -21,9 +21,12 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.RawContactsEntity;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -33,10 +36,17 @@ import com.android.vcard.VCardConfig;
 
 import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Class for processing one export request from a user. Dropped after exporting requested Uri(s).
@@ -46,19 +56,35 @@ public class ExportProcessor extends ProcessorBase {
     private static final String LOG_TAG = "VCardExport";
     private static final boolean DEBUG = VCardService.DEBUG;
 
+    /**
+     * Address books at least this big are composed on several threads. Below that, the
+     * threads would not pay off.
+     */
+    private static final int PARALLEL_EXPORT_MIN_CONTACTS = 500;
+
+    private static final int MAX_EXPORT_THREADS = 4;
+
     private final VCardService mService;
+    /** Limits progress notifications to a few a second. */
+    private final VCardProgressReporter mProgressReporter = new VCardProgressReporter();
+    private final VCardStageTimings mTimings = new VCardStageTimings();
+    private CountingOutputStream mCountingStream;
+    /** Selection of the contacts to export, set by {@link #resolveSelection}. */
+    private String mSelection;
+    private String[] mSelectionArgs;
     private final ContentResolver mResolver;
     private final NotificationManager mNotificationManager;
     private final ExportRequest mExportRequest;
     private final int mJobId;
     private final String mCallingActivity;
+    private final VCardImportExportListener mListener;
 
 
     private volatile boolean mCanceled;
     private volatile boolean mDone;
 
-    public ExportProcessor(VCardService service, ExportRequest exportRequest, int jobId,
-            String callingActivity) {
+    public ExportProcessor(VCardService service, VCardImportExportListener listener,
+            ExportRequest exportRequest, int jobId, String callingActivity) {
         mService = service;
         mResolver = service.getContentResolver();
         mNotificationManager =
@@ -66,6 +92,7 @@ public class ExportProcessor extends ProcessorBase {
         mExportRequest = exportRequest;
         mJobId = jobId;
         mCallingActivity = callingActivity;
+        mListener = listener;
     }
 
     @Override
@@ -82,6 +109,11 @@ public class ExportProcessor extends ProcessorBase {
             if (isCancelled()) {
                 doCancelNotification();
             }
+            Log.i(LOG_TAG, String.format("vCard export (id: %d) timings: %s", mJobId, mTimings));
+            mService.addStageTimings(mTimings);
+            if (mListener != null) {
+                mListener.onStageTimings(VCardService.TYPE_EXPORT, mJobId, mTimings);
+            }
         } catch (OutOfMemoryError e) {
             Log.e(LOG_TAG, "OutOfMemoryError thrown during import", e);
             throw e;
@@ -98,7 +130,6 @@ public class ExportProcessor extends ProcessorBase {
     private void runInternal() {
         if (DEBUG) Log.d(LOG_TAG, String.format("vCard export (id: %d) has started.", mJobId));
         final ExportRequest request = mExportRequest;
-        VCardComposer composer = null;
         Writer writer = null;
         boolean successful = false;
         try {
@@ -108,8 +139,10 @@ public class ExportProcessor extends ProcessorBase {
             }
             final Uri uri = request.destUri;
             final OutputStream outputStream;
+            final long openStart = System.nanoTime();
             try {
                 outputStream = mResolver.openOutputStream(uri);
+                mTimings.record(VCardStageTimings.STAGE_OPEN, System.nanoTime() - openStart);
             } catch (FileNotFoundException e) {
                 Log.w(LOG_TAG, "FileNotFoundException thrown", e);
                 // Need concise title.
@@ -130,64 +163,30 @@ public class ExportProcessor extends ProcessorBase {
                 vcardType = VCardConfig.getVCardTypeFromString(exportType);
             }
 
-            composer = new VCardComposer(mService, vcardType, true);
-
             // for test
             // int vcardType = (VCardConfig.VCARD_TYPE_V21_GENERIC |
             //     VCardConfig.FLAG_USE_QP_TO_PRIMARY_PROPERTIES);
             // composer = new VCardComposer(ExportVCardActivity.this, vcardType, true);
 
-            writer = new BufferedWriter(new OutputStreamWriter(outputStream));
-            final Uri contentUriForRawContactsEntity = RawContactsEntity.CONTENT_URI;
-            // TODO: should provide better selection.
-            if (!composer.init(Contacts.CONTENT_URI, new String[] {Contacts._ID},
-                    null, null,
-                    null, contentUriForRawContactsEntity)) {
-                final String errorReason = composer.getErrorReason();
-                Log.e(LOG_TAG, "initialization of vCard composer failed: " + errorReason);
-                final String translatedErrorReason =
-                        translateComposerError(errorReason);
-                final String title =
-                        mService.getString(R.string.fail_reason_could_not_initialize_exporter,
-                                translatedErrorReason);
-                doFinishNotification(title, null);
-                return;
-            }
+            mCountingStream = new CountingOutputStream(outputStream);
+            writer = new BufferedWriter(new OutputStreamWriter(mCountingStream));
 
-            final int total = composer.getCount();
-            if (total == 0) {
-                final String title =
-                        mService.getString(R.string.fail_reason_no_exportable_contact);
-                doFinishNotification(title, null);
-                return;
-            }
+            resolveSelection(request);
 
-            int current = 1;  // 1-origin
-            while (!composer.isAfterLast()) {
-                if (isCancelled()) {
-                    Log.i(LOG_TAG, "Export request is cancelled during composing vCard");
-                    return;
-                }
-                try {
-                    writer.write(composer.createOneEntry());
-                } catch (IOException e) {
-                    final String errorReason = composer.getErrorReason();
-                    Log.e(LOG_TAG, "Failed to read a contact: " + errorReason);
-                    final String translatedErrorReason =
-                            translateComposerError(errorReason);
-                    final String title =
-                            mService.getString(R.string.fail_reason_error_occurred_during_export,
-                                    translatedErrorReason);
-                    doFinishNotification(title, null);
-                    return;
-                }
-
-                // vCard export is quite fast (compared to import), and frequent notifications
-                // bother notification bar too much.
-                if (current % 100 == 1) {
-                    doProgressNotification(uri, total, current);
-                }
-                current++;
+            final ComposerCallback callback = new ComposerCallback(uri);
+            final VCardExportComposer composer = new VCardExportComposer(mService, vcardType,
+                    mTimings, callback);
+            // DoCoMo vCards start with a dummy entry, which every composer would emit once.
+            final long[] contactIds = VCardConfig.isDoCoMo(vcardType) ? null : queryContactIds();
+            final boolean exported;
+            if (contactIds != null && contactIds.length >= PARALLEL_EXPORT_MIN_CONTACTS) {
+                exported = exportInParallel(composer, contactIds, writer);
+            } else {
+                exported = exportSerially(composer, writer);
+            }
+            callback.flushProgress();
+            if (!exported) {
+                return;
             }
             Log.i(LOG_TAG, "Successfully finished exporting vCard " + request.destUri);
 
@@ -202,20 +201,240 @@ public class ExportProcessor extends ProcessorBase {
                     filename);
             doFinishNotification(title, null);
         } finally {
-            if (composer != null) {
-                composer.terminate();
-            }
             if (writer != null) {
+                final long closeStart = System.nanoTime();
                 try {
                     writer.close();
                 } catch (IOException e) {
                     Log.w(LOG_TAG, "IOException is thrown during close(). Ignored. " + e);
                 }
+                mTimings.record(VCardStageTimings.STAGE_WRITE, System.nanoTime() - closeStart);
             }
             mService.handleFinishExportNotification(mJobId, successful);
         }
     }
 
+    /**
+     * Composes and writes all contacts with one {@link VCardComposer}.
+     *
+     * @return false if the export failed or was cancelled. Failures have been notified.
+     */
+    private boolean exportSerially(VCardExportComposer composer, Writer writer) {
+        final int written;
+        try {
+            written = composer.composeSerially(mSelection, mSelectionArgs, writer);
+        } catch (VCardExportComposer.ComposerException e) {
+            final String errorReason = e.getMessage();
+            Log.e(LOG_TAG, "initialization of vCard composer failed: " + errorReason);
+            final String translatedErrorReason = translateComposerError(errorReason);
+            final String title =
+                    mService.getString(R.string.fail_reason_could_not_initialize_exporter,
+                            translatedErrorReason);
+            doFinishNotification(title, null);
+            return false;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write contacts", e);
+            doExportErrorNotification(e.getMessage());
+            return false;
+        }
+        if (written < 0) {
+            Log.i(LOG_TAG, "Export request is cancelled during composing vCard");
+            return false;
+        }
+        if (written == 0) {
+            final String title = mService.getString(R.string.fail_reason_no_exportable_contact);
+            doFinishNotification(title, null);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the ids of the contacts to export, in the order in which
+     * {@link #exportSerially} visits them, or null if they cannot be queried.
+     */
+    private long[] queryContactIds() {
+        // The same query VCardComposer#init() makes for the serial export.
+        final Cursor cursor = mResolver.query(Contacts.CONTENT_URI,
+                new String[] {Contacts._ID}, mSelection, mSelectionArgs,
+                VCardExportComposer.SORT_ORDER);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final long[] ids = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext() && i < ids.length) {
+                ids[i++] = cursor.getLong(0);
+            }
+            return i == ids.length ? ids : Arrays.copyOf(ids, i);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Turns the filters of the request into a selection over {@link Contacts#CONTENT_URI}.
+     * Filters on the account and the group are resolved to contact ids beforehand, as the
+     * contacts table has neither.
+     */
+    private void resolveSelection(ExportRequest request) {
+        Set<Long> contactIds = null;
+        if (request.contactIds != null) {
+            contactIds = new HashSet<Long>();
+            for (long contactId : request.contactIds) {
+                contactIds.add(contactId);
+            }
+        }
+        if (request.account != null) {
+            contactIds = retainContactIds(contactIds, RawContacts.CONTENT_URI,
+                    RawContacts.CONTACT_ID,
+                    RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=? AND "
+                            + RawContacts.DELETED + "=0",
+                    new String[] {request.account.name, request.account.type});
+        }
+        if (request.groupId != ExportRequest.NO_GROUP) {
+            contactIds = retainContactIds(contactIds, Data.CONTENT_URI, Data.CONTACT_ID,
+                    Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
+                    new String[] {GroupMembership.CONTENT_ITEM_TYPE,
+                            String.valueOf(request.groupId)});
+        }
+
+        final List<String> selectionArgs = new ArrayList<String>();
+        mSelection = buildSelection(contactIds, request.starredOnly, request.updatedSince,
+                selectionArgs);
+        mSelectionArgs = selectionArgs.isEmpty()
+                ? null : selectionArgs.toArray(new String[selectionArgs.size()]);
+    }
+
+    /**
+     * Returns the contact ids in the given column of the rows that match the selection, keeping
+     * only those in {@code contactIds} unless it is null.
+     */
+    private Set<Long> retainContactIds(Set<Long> contactIds, Uri uri, String column,
+            String selection, String[] selectionArgs) {
+        final Set<Long> result = new HashSet<Long>();
+        final Cursor cursor = mResolver.query(uri, new String[] {column}, selection,
+                selectionArgs, null);
+        if (cursor == null) {
+            Log.w(LOG_TAG, "Failed to query " + uri + "; no contact is exported");
+            return result;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final long contactId = cursor.getLong(0);
+                if (contactIds == null || contactIds.contains(contactId)) {
+                    result.add(contactId);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Builds a selection over {@link Contacts#CONTENT_URI}, adding its arguments to
+     * {@code selectionArgs}.
+     *
+     * @param contactIds the only contacts that may be selected, or null for any.
+     * @param updatedSince {@link ExportRequest#NO_TIMESTAMP} not to filter by update time.
+     * @return the selection, or null to select all contacts.
+     */
+    /* package */ static String buildSelection(Set<Long> contactIds, boolean starredOnly,
+            long updatedSince, List<String> selectionArgs) {
+        final List<String> clauses = new ArrayList<String>();
+        if (contactIds != null) {
+            if (contactIds.isEmpty()) {
+                return "0";
+            }
+            // Ids are inlined rather than bound, as there may be more than SQLite's limit of
+            // bound arguments.
+            clauses.add(Contacts._ID + " IN (" + TextUtils.join(",", new TreeSet<Long>(contactIds))
+                    + ")");
+        }
+        if (starredOnly) {
+            clauses.add(Contacts.STARRED + "=1");
+        }
+        if (updatedSince != ExportRequest.NO_TIMESTAMP) {
+            clauses.add(Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">?");
+            selectionArgs.add(String.valueOf(updatedSince));
+        }
+        return clauses.isEmpty() ? null : TextUtils.join(" AND ", clauses);
+    }
+
+    /**
+     * Composes the contacts on several threads, each with its own {@link VCardComposer}, and
+     * writes them in order. The output is the same as that of {@link #exportSerially}.
+     *
+     * @return false if the export failed or was cancelled. Failures have been notified.
+     */
+    private boolean exportInParallel(VCardExportComposer composer, long[] contactIds,
+            Writer writer) {
+        final int threadCount = Math.max(1, Math.min(MAX_EXPORT_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        try {
+            if (!composer.composeInParallel(contactIds, threadCount, writer)) {
+                Log.i(LOG_TAG, "Export request is cancelled during composing vCard");
+                return false;
+            }
+            return true;
+        } catch (VCardExportComposer.ComposerException e) {
+            final String errorReason = e.getMessage();
+            Log.e(LOG_TAG, "Failed to compose contacts: " + errorReason);
+            doExportErrorNotification(errorReason);
+            return false;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write contacts", e);
+            doExportErrorNotification(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Updates the progress notification as contacts are written, and stops the composer once
+     * the export is cancelled.
+     */
+    private class ComposerCallback implements VCardExportComposer.Callback {
+        private final Uri mUri;
+        private int mWrittenCount;
+        private int mTotalCount;
+
+        public ComposerCallback(Uri uri) {
+            mUri = uri;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return ExportProcessor.this.isCancelled();
+        }
+
+        @Override
+        public void onWritten(int writtenCount, int totalCount) {
+            mWrittenCount = writtenCount;
+            mTotalCount = totalCount;
+            // vCard export is quite fast (compared to import), and frequent notifications
+            // bother notification bar too much.
+            if (mProgressReporter.update(writtenCount, mCountingStream.getCount())) {
+                doProgressNotification(mUri, totalCount, writtenCount);
+            }
+        }
+
+        /** Notifies the progress that was coalesced since the last notification. */
+        public void flushProgress() {
+            if (mProgressReporter.hasPendingUpdate()) {
+                doProgressNotification(mUri, mTotalCount, mWrittenCount);
+            }
+        }
+    }
+
+    private void doExportErrorNotification(String errorReason) {
+        final String translatedErrorReason = translateComposerError(errorReason);
+        final String title = mService.getString(R.string.fail_reason_error_occurred_during_export,
+                translatedErrorReason);
+        doFinishNotification(title, null);
+    }
+
     private String translateComposerError(String errorMessage) {
         final Resources resources = mService.getResources();
         if (VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO.equals(errorMessage)) {
@@ -238,11 +457,38 @@ public class ExportProcessor extends ProcessorBase {
         final Notification notification =
                 NotificationImportExportListener.constructProgressNotification(mService,
                         VCardService.TYPE_EXPORT, description, tickerText, mJobId, displayName,
-                        totalCount, currentCount);
+                        totalCount, currentCount, mProgressReporter);
         mNotificationManager.notify(NotificationImportExportListener.DEFAULT_NOTIFICATION_TAG,
                 mJobId, notification);
     }
 
+    /**
+     * Counts the bytes written to the destination, for the throughput of the export.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+            mCount += count;
+        }
+    }
+
     private void doCancelNotification() {
         if (DEBUG) Log.d(LOG_TAG, "send cancel notification");
         final String description = mService.getString(R.string.exporting_vcard_canceled_title,
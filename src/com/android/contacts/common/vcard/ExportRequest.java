@@ -15,21 +15,69 @@
  */
 package com.android.contacts.common.vcard;
 
+import android.accounts.Account;
 import android.net.Uri;
 
+/**
+ * Class representing one request for exporting contacts to a vCard file.
+ *
+ * By default all contacts are exported. The filters below narrow that down; a contact is
+ * exported only if it passes all of the filters that are set.
+ */
 public class ExportRequest {
+    /** Value of {@link #groupId} when contacts are not filtered by group. */
+    public static final long NO_GROUP = -1;
+    /** Value of {@link #updatedSince} when contacts are not filtered by update time. */
+    public static final long NO_TIMESTAMP = -1;
+
     public final Uri destUri;
     /**
      * Can be null.
      */
     public final String exportType;
 
+    /**
+     * Only contacts with a raw contact in this account are exported. Null for any account.
+     */
+    public final Account account;
+
+    /**
+     * Only members of the group with this id are exported, or {@link #NO_GROUP}.
+     */
+    public final long groupId;
+
+    /**
+     * Whether only starred contacts are exported.
+     */
+    public final boolean starredOnly;
+
+    /**
+     * Only the contacts with these ids are exported. Null for any contact.
+     */
+    public final long[] contactIds;
+
+    /**
+     * Only contacts changed after this time, in milliseconds since the epoch, are exported,
+     * or {@link #NO_TIMESTAMP}. Used for incremental backups.
+     */
+    public final long updatedSince;
+
     public ExportRequest(Uri destUri) {
         this(destUri, null);
     }
 
     public ExportRequest(Uri destUri, String exportType) {
+        this(destUri, exportType, null, NO_GROUP, false, null, NO_TIMESTAMP);
+    }
+
+    public ExportRequest(Uri destUri, String exportType, Account account, long groupId,
+            boolean starredOnly, long[] contactIds, long updatedSince) {
         this.destUri = destUri;
         this.exportType = exportType;
+        this.account = account;
+        this.groupId = groupId;
+        this.starredOnly = starredOnly;
+        this.contactIds = contactIds;
+        this.updatedSince = updatedSince;
     }
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers how far imports of vCard files have come, so that an import that was cancelled or
+ * whose process was killed can be resumed after the entries it already committed, instead of
+ * creating them again. Checkpoints are keyed by the uri of the source the user chose and kept
+ * in {@link SharedPreferences}. A checkpoint that is not resumed within
+ * {@link #MAX_AGE_MILLIS} expires, so that it does not keep the copy of its source forever.
+ */
+/* package */ class ImportCheckpointStore {
+    private static final String LOG_TAG = "VCardImport";
+
+    private static final String PREFERENCES_NAME = "vcard_import_checkpoints";
+
+    /** How long a checkpoint can be resumed after it was saved. */
+    public static final long MAX_AGE_MILLIS = DateUtils.WEEK_IN_MILLIS;
+
+    private static final String KEY_URI = "uri";
+
+    private static final String KEY_DISPLAY_NAME = "displayName";
+    private static final String KEY_ACCOUNT_NAME = "accountName";
+    private static final String KEY_ACCOUNT_TYPE = "accountType";
+    private static final String KEY_VCARD_TYPE = "vcardType";
+    private static final String KEY_CHARSET = "charset";
+    private static final String KEY_VCARD_VERSION = "vcardVersion";
+    private static final String KEY_SOURCE_LENGTH = "sourceLength";
+    private static final String KEY_ENTRY_INDEX = "entryIndex";
+    private static final String KEY_CREATED_URIS = "createdUris";
+    private static final String KEY_DEDUPE_MODE = "dedupeMode";
+    private static final String KEY_SAVED_AT = "savedAt";
+
+    /**
+     * The progress of one import, with what is needed to start it over.
+     */
+    public static class Checkpoint {
+        /** The uri the user chose to import. See {@link ImportRequest#sourceUri}. */
+        public final Uri sourceUri;
+        /** The uri the import read: {@link #sourceUri}, or a copy of it in local storage. */
+        public final Uri uri;
+        public final String displayName;
+        /** Can be null. */
+        public final Account account;
+        public final int estimatedVCardType;
+        /** Can be null. */
+        public final String estimatedCharset;
+        public final int vcardVersion;
+        /**
+         * Length of the source in bytes when it was imported. A source of another length has
+         * changed since, and cannot be resumed.
+         */
+        public final long sourceLength;
+        /** The number of entries at the start of the source that have been handled. */
+        public final int entryIndex;
+        /** The first raw contact created by each committed batch. */
+        public final List<Uri> createdUris;
+        /** See {@link ImportRequest#dedupeMode}. */
+        public final int dedupeMode;
+        /** When the checkpoint was saved, in {@link System#currentTimeMillis()} time. */
+        public final long savedAtMillis;
+
+        public Checkpoint(Uri sourceUri, Uri uri, String displayName, Account account,
+                int estimatedVCardType, String estimatedCharset, int vcardVersion,
+                long sourceLength, int entryIndex, List<Uri> createdUris, int dedupeMode,
+                long savedAtMillis) {
+            this.sourceUri = sourceUri;
+            this.uri = uri;
+            this.displayName = displayName;
+            this.account = account;
+            this.estimatedVCardType = estimatedVCardType;
+            this.estimatedCharset = estimatedCharset;
+            this.vcardVersion = vcardVersion;
+            this.sourceLength = sourceLength;
+            this.entryIndex = entryIndex;
+            this.createdUris = Collections.unmodifiableList(new ArrayList<Uri>(createdUris));
+            this.dedupeMode = dedupeMode;
+            this.savedAtMillis = savedAtMillis;
+        }
+
+        public boolean isExpired(long nowMillis) {
+            return nowMillis - savedAtMillis > MAX_AGE_MILLIS;
+        }
+    }
+
+    private final SharedPreferences mPreferences;
+
+    public ImportCheckpointStore(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Saves the checkpoint, replacing the one of the same source. Does not wait for the disk.
+     */
+    public void save(Checkpoint checkpoint) {
+        try {
+            mPreferences.edit()
+                    .putString(checkpoint.sourceUri.toString(), toJson(checkpoint))
+                    .apply();
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Failed to save the checkpoint of " + checkpoint.sourceUri, e);
+        }
+    }
+
+    /**
+     * Returns the checkpoint of the source, or null if there is none or it has expired.
+     */
+    public Checkpoint get(Uri sourceUri) {
+        final Checkpoint checkpoint =
+                fromJson(sourceUri, mPreferences.getString(sourceUri.toString(), null));
+        if (checkpoint == null || checkpoint.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Returns the checkpoints that have not expired.
+     */
+    public List<Checkpoint> getAll() {
+        final long now = System.currentTimeMillis();
+        final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                continue;
+            }
+            final Checkpoint checkpoint =
+                    fromJson(Uri.parse(entry.getKey()), (String) entry.getValue());
+            if (checkpoint != null && !checkpoint.isExpired(now)) {
+                checkpoints.add(checkpoint);
+            }
+        }
+        return checkpoints;
+    }
+
+    public void remove(Uri sourceUri) {
+        mPreferences.edit().remove(sourceUri.toString()).apply();
+    }
+
+    /**
+     * Removes the checkpoints that have expired or cannot be read.
+     *
+     * @return the number of checkpoints removed.
+     */
+    public int removeExpired() {
+        final long now = System.currentTimeMillis();
+        final SharedPreferences.Editor editor = mPreferences.edit();
+        int removedCount = 0;
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            final Checkpoint checkpoint = entry.getValue() instanceof String
+                    ? fromJson(Uri.parse(entry.getKey()), (String) entry.getValue()) : null;
+            if (checkpoint == null || checkpoint.isExpired(now)) {
+                Log.i(LOG_TAG, "Remove the expired checkpoint of " + entry.getKey());
+                editor.remove(entry.getKey());
+                removedCount++;
+            }
+        }
+        if (removedCount > 0) {
+            editor.apply();
+        }
+        return removedCount;
+    }
+
+    /* package */ static String toJson(Checkpoint checkpoint) throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put(KEY_URI, checkpoint.uri.toString());
+        json.put(KEY_DISPLAY_NAME, checkpoint.displayName);
+        if (checkpoint.account != null) {
+            json.put(KEY_ACCOUNT_NAME, checkpoint.account.name);
+            json.put(KEY_ACCOUNT_TYPE, checkpoint.account.type);
+        }
+        json.put(KEY_VCARD_TYPE, checkpoint.estimatedVCardType);
+        json.put(KEY_CHARSET, checkpoint.estimatedCharset);
+        json.put(KEY_VCARD_VERSION, checkpoint.vcardVersion);
+        json.put(KEY_SOURCE_LENGTH, checkpoint.sourceLength);
+        json.put(KEY_ENTRY_INDEX, checkpoint.entryIndex);
+        final JSONArray createdUris = new JSONArray();
+        for (Uri createdUri : checkpoint.createdUris) {
+            createdUris.put(createdUri.toString());
+        }
+        json.put(KEY_CREATED_URIS, createdUris);
+        json.put(KEY_DEDUPE_MODE, checkpoint.dedupeMode);
+        json.put(KEY_SAVED_AT, checkpoint.savedAtMillis);
+        return json.toString();
+    }
+
+    /**
+     * Returns the checkpoint stored as the given string, or null if it cannot be read.
+     */
+    /* package */ static Checkpoint fromJson(Uri sourceUri, String string) {
+        if (string == null) {
+            return null;
+        }
+        try {
+            final JSONObject json = new JSONObject(string);
+            final Account account = json.has(KEY_ACCOUNT_NAME)
+                    ? new Account(json.getString(KEY_ACCOUNT_NAME),
+                            json.getString(KEY_ACCOUNT_TYPE))
+                    : null;
+            final List<Uri> createdUris = new ArrayList<Uri>();
+            final JSONArray array = json.getJSONArray(KEY_CREATED_URIS);
+            for (int i = 0; i < array.length(); i++) {
+                createdUris.add(Uri.parse(array.getString(i)));
+            }
+            // Checkpoints saved before the source was recorded are keyed by the uri read.
+            final Uri uri = json.has(KEY_URI) ? Uri.parse(json.getString(KEY_URI)) : sourceUri;
+            return new Checkpoint(sourceUri, uri,
+                    json.optString(KEY_DISPLAY_NAME, null),
+                    account,
+                    json.getInt(KEY_VCARD_TYPE),
+                    json.optString(KEY_CHARSET, null),
+                    json.getInt(KEY_VCARD_VERSION),
+                    json.getLong(KEY_SOURCE_LENGTH),
+                    json.getInt(KEY_ENTRY_INDEX),
+                    createdUris,
+                    json.optInt(KEY_DEDUPE_MODE, ImportRequest.DEDUPE_NONE),
+                    // Without a time, the checkpoint has expired.
+                    json.optLong(KEY_SAVED_AT, 0));
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Ignoring a broken checkpoint of " + sourceUri, e);
+            return null;
+        }
+    }
+}
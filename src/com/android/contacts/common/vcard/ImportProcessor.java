@@ -17,23 +17,26 @@ package com.android.contacts.common.vcard;
 
 import android.accounts.Account;
 import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.util.Log;
 
 import com.android.vcard.VCardEntry;
-import com.android.vcard.VCardEntryCommitter;
 import com.android.vcard.VCardEntryConstructor;
 import com.android.vcard.VCardEntryHandler;
 import com.android.vcard.VCardInterpreter;
 import com.android.vcard.VCardParser;
 import com.android.vcard.VCardParser_V21;
 import com.android.vcard.VCardParser_V30;
+import com.android.vcard.VCardProperty;
 import com.android.vcard.exception.VCardException;
 import com.android.vcard.exception.VCardNestedException;
 import com.android.vcard.exception.VCardNotSupportedException;
 import com.android.vcard.exception.VCardVersionException;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -47,11 +50,38 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     private static final String LOG_TAG = "VCardImport";
     private static final boolean DEBUG = VCardService.DEBUG;
 
+    /**
+     * The number of entries inserted into the provider with one batch. Same as
+     * {@link com.android.vcard.VCardEntryCommitter}, which keeps the transactions short
+     * enough not to block other users of the provider for long.
+     */
+    private static final int COMMIT_BATCH_SIZE = 20;
+
+    /**
+     * The number of parsed entries that may wait for the committer. Two batches let the parser
+     * run ahead while a batch is applied, without holding many entries in memory.
+     */
+    private static final int COMMIT_QUEUE_CAPACITY = 2 * COMMIT_BATCH_SIZE;
+
+    /**
+     * The number of committed entries between two checkpoints. At most that many entries are
+     * imported again when an import is resumed after its process was killed.
+     */
+    private static final int CHECKPOINT_INTERVAL = 5 * COMMIT_BATCH_SIZE;
+
+    /**
+     * Photos of more bytes than this are written to files while their entries wait to be
+     * committed, and streamed to the provider afterwards. Smaller ones, e.g. thumbnails, stay
+     * in the entries: a batch of them fits in one binder transaction.
+     */
+    private static final int PHOTO_SPILL_THRESHOLD_BYTES = 16 * 1024;
+
     private final VCardService mService;
     private final ContentResolver mResolver;
     private final ImportRequest mImportRequest;
     private final int mJobId;
     private final VCardImportExportListener mListener;
+    private final ImportCheckpointStore mCheckpointStore;
 
     // TODO: remove and show appropriate message instead.
     private final List<Uri> mFailedUris = new ArrayList<Uri>();
@@ -64,6 +94,20 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     private int mCurrentCount = 0;
     private int mTotalCount = 0;
 
+    /**
+     * Length of the source in bytes when its entries were not counted beforehand, or -1.
+     * The total count is then estimated from the bytes read through {@link #mCountingStream}.
+     */
+    private long mSourceLength = -1;
+    private CountingInputStream mCountingStream;
+
+    /** Limits the progress callbacks to the listener to a few a second. */
+    private final VCardProgressReporter mProgressReporter = new VCardProgressReporter();
+    /** The last entry given to the listener, or held back by {@link #mProgressReporter}. */
+    private VCardEntry mLastEntry;
+
+    private final VCardStageTimings mTimings = new VCardStageTimings();
+
     public ImportProcessor(final VCardService service, final VCardImportExportListener listener,
             final ImportRequest request, final int jobId) {
         mService = service;
@@ -72,6 +116,7 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
 
         mImportRequest = request;
         mJobId = jobId;
+        mCheckpointStore = new ImportCheckpointStore(service);
     }
 
     @Override
@@ -87,9 +132,45 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     @Override
     public void onEntryCreated(VCardEntry entry) {
         mCurrentCount++;
-        if (mListener != null) {
-            mListener.onImportParsed(mImportRequest, mJobId, entry, mCurrentCount, mTotalCount);
+        if (mListener == null || entry.isIgnorable()) {
+            return;
+        }
+        mLastEntry = entry;
+        if (mProgressReporter.update(mCurrentCount,
+                mCountingStream != null ? mCountingStream.getCount() : 0)) {
+            mListener.onImportParsed(mImportRequest, mJobId, entry, mCurrentCount,
+                    getTotalCount(), mProgressReporter);
+        }
+    }
+
+    /**
+     * Reports the progress that was coalesced since the last report, so that the last
+     * notification of the job shows all the entries that were parsed.
+     */
+    private void flushProgress() {
+        if (mListener != null && mLastEntry != null && mProgressReporter.hasPendingUpdate()) {
+            mListener.onImportParsed(mImportRequest, mJobId, mLastEntry, mCurrentCount,
+                    getTotalCount(), mProgressReporter);
+        }
+    }
+
+    /**
+     * Returns the number of entries in the source, estimated from the share of bytes read so
+     * far if they were not counted beforehand, or -1 if that is not possible either.
+     */
+    private int getTotalCount() {
+        if (mImportRequest.entryCount != ImportRequest.ENTRY_COUNT_UNKNOWN) {
+            return mTotalCount;
+        }
+        if (mSourceLength <= 0 || mCountingStream == null || mCountingStream.getCount() == 0) {
+            return -1;
         }
+        final long estimate = mCurrentCount * mSourceLength / mCountingStream.getCount();
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(mCurrentCount, estimate));
+    }
+
+    public ImportRequest getRequest() {
+        return mImportRequest;
     }
 
     @Override
@@ -106,6 +187,11 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             if (isCancelled() && mListener != null) {
                 mListener.onImportCanceled(mImportRequest, mJobId);
             }
+            Log.i(LOG_TAG, String.format("vCard import (id: %d) timings: %s", mJobId, mTimings));
+            mService.addStageTimings(mTimings);
+            if (mListener != null) {
+                mListener.onStageTimings(VCardService.TYPE_IMPORT, mJobId, mTimings);
+            }
         } catch (OutOfMemoryError e) {
             Log.e(LOG_TAG, "OutOfMemoryError thrown during import", e);
             throw e;
@@ -113,6 +199,7 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             Log.e(LOG_TAG, "RuntimeException thrown during import", e);
             throw e;
         } finally {
+            ReopenableVCardSource.closeQuietly(mImportRequest.descriptor);
             synchronized (this) {
                 mDone = true;
             }
@@ -143,22 +230,71 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         }
 
         final Uri uri = request.uri;
+        final Uri sourceUri = request.sourceUri;
         final Account account = request.account;
         final int estimatedVCardType = request.estimatedVCardType;
         final String estimatedCharset = request.estimatedCharset;
         final int entryCount = request.entryCount;
-        mTotalCount += entryCount;
+        final long sourceLength = getSourceLength(request);
+        if (entryCount == ImportRequest.ENTRY_COUNT_UNKNOWN) {
+            mSourceLength = sourceLength;
+        } else {
+            mTotalCount += entryCount;
+        }
+
+        // The raw contacts created by the import, including those of an interrupted import
+        // that is resumed.
+        final List<Uri> createdUris = new ArrayList<Uri>();
+        if (request.resumeFrom > 0) {
+            final ImportCheckpointStore.Checkpoint checkpoint =
+                    sourceUri != null ? mCheckpointStore.get(sourceUri) : null;
+            if (checkpoint == null || checkpoint.sourceLength != sourceLength) {
+                Log.w(LOG_TAG, "Cannot resume the import, the source has changed: " + uri);
+                if (sourceUri != null) {
+                    mCheckpointStore.remove(sourceUri);
+                }
+                mService.handleFinishImportNotification(mJobId, false);
+                if (mListener != null) {
+                    mListener.onImportFailed(request);
+                }
+                return;
+            }
+            Log.i(LOG_TAG, "Resuming the import after " + request.resumeFrom + " entries");
+            createdUris.addAll(checkpoint.createdUris);
+        }
 
         final VCardEntryConstructor constructor =
                 new VCardEntryConstructor(estimatedVCardType, account, estimatedCharset);
-        final VCardEntryCommitter committer = new VCardEntryCommitter(mResolver);
-        constructor.addEntryHandler(committer);
+        // Parsing and committing run on separate threads, so that the parser does not wait
+        // for the provider and vice versa.
+        final PipelinedEntryCommitter committer = new PipelinedEntryCommitter(mResolver,
+                COMMIT_BATCH_SIZE, COMMIT_QUEUE_CAPACITY);
+        committer.setStageTimings(mTimings);
+        final VCardPhotoSpiller photoSpiller = new VCardPhotoSpiller(constructor,
+                VCardPhotoSpiller.getDirectory(mService.getCacheDir(), mJobId),
+                PHOTO_SPILL_THRESHOLD_BYTES);
+        committer.setPhotoSpiller(photoSpiller);
+        // Sources that are read from a uri can be resumed if the import is interrupted.
+        final CheckpointWriter checkpointWriter = sourceUri != null && request.data == null
+                && sourceLength >= 0 ? new CheckpointWriter(sourceLength, createdUris) : null;
+        committer.setBatchListener(checkpointWriter);
+        if (request.dedupeMode != ImportRequest.DEDUPE_NONE) {
+            // One query for the whole import; entries are then checked on the commit thread.
+            committer.setDuplicateIndex(VCardDuplicateIndex.load(mResolver, account),
+                    request.dedupeMode == ImportRequest.DEDUPE_MERGE);
+        }
+        constructor.addEntryHandler(request.resumeFrom > 0
+                ? new SkippingEntryHandler(committer, request.resumeFrom) : committer);
         constructor.addEntryHandler(this);
 
         InputStream is = null;
         boolean successful = false;
         try {
-            if (uri != null) {
+            final long openStart = System.nanoTime();
+            if (request.descriptor != null) {
+                Log.i(LOG_TAG, "start importing one vCard in place (Uri: " + uri + ")");
+                is = ReopenableVCardSource.openStream(request.descriptor);
+            } else if (uri != null) {
                 Log.i(LOG_TAG, "start importing one vCard (Uri: " + uri + ")");
                 is = mResolver.openInputStream(uri);
             } else if (request.data != null){
@@ -167,7 +303,11 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             }
 
             if (is != null) {
-                successful = readOneVCard(is, estimatedVCardType, estimatedCharset, constructor,
+                mTimings.record(VCardStageTimings.STAGE_OPEN, System.nanoTime() - openStart);
+                mCountingStream = new CountingInputStream(is);
+                is = mCountingStream;
+                successful = readOneVCard(is, estimatedVCardType, estimatedCharset,
+                        new TimingInterpreter(photoSpiller, committer, mTimings),
                         possibleVCardVersions);
             }
         } catch (IOException e) {
@@ -180,6 +320,20 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
                     // ignore
                 }
             }
+            try {
+                committer.finish();
+            } finally {
+                photoSpiller.deleteFiles();
+            }
+        }
+        flushProgress();
+
+        if (checkpointWriter != null) {
+            if (isCancelled()) {
+                checkpointWriter.save();
+            } else {
+                mCheckpointStore.remove(sourceUri);
+            }
         }
 
         mService.handleFinishImportNotification(mJobId, successful);
@@ -191,18 +345,24 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
                 Log.i(LOG_TAG, "vCard import has been canceled (uri: " + uri + ")");
                 // Cancel notification will be done outside this method.
             } else {
-                Log.i(LOG_TAG, "Successfully finished importing one vCard file: " + uri);
-                List<Uri> uris = committer.getCreatedUris();
+                final int skippedCount = committer.getSkippedCount();
+                final int mergedCount = committer.getMergedCount();
+                Log.i(LOG_TAG, "Successfully finished importing one vCard file: " + uri
+                        + " (" + mCurrentCount + " entries, " + skippedCount + " skipped, "
+                        + mergedCount + " merged)");
+                List<Uri> uris = createdUris.isEmpty() ? committer.getCreatedUris() : createdUris;
                 if (mListener != null) {
                     if (uris != null && uris.size() > 0) {
                         // TODO: construct intent showing a list of imported contact list.
-                        mListener.onImportFinished(mImportRequest, mJobId, uris.get(0));
+                        mListener.onImportFinished(mImportRequest, mJobId, uris.get(0),
+                                skippedCount, mergedCount);
                     } else {
                         // Not critical, but suspicious.
                         Log.w(LOG_TAG,
                                 "Created Uris is null or 0 length " +
                                 "though the creation itself is successful.");
-                        mListener.onImportFinished(mImportRequest, mJobId, null);
+                        mListener.onImportFinished(mImportRequest, mJobId, null,
+                                skippedCount, mergedCount);
                     }
                 }
             }
@@ -212,6 +372,242 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         }
     }
 
+    /**
+     * Saves a checkpoint of the import every {@link #CHECKPOINT_INTERVAL} entries, from the
+     * commit thread.
+     */
+    private class CheckpointWriter implements PipelinedEntryCommitter.BatchListener {
+        private final long mSourceLength;
+        private final List<Uri> mCreatedUris;
+        private int mEntryIndex;
+        private int mSavedEntryIndex;
+
+        public CheckpointWriter(long sourceLength, List<Uri> createdUris) {
+            mSourceLength = sourceLength;
+            mCreatedUris = createdUris;
+            mEntryIndex = mImportRequest.resumeFrom;
+            mSavedEntryIndex = mEntryIndex;
+        }
+
+        @Override
+        public synchronized void onBatchCommitted(int handledCount, Uri createdUri) {
+            if (createdUri != null) {
+                mCreatedUris.add(createdUri);
+            }
+            mEntryIndex = mImportRequest.resumeFrom + handledCount;
+            if (mEntryIndex - mSavedEntryIndex >= CHECKPOINT_INTERVAL) {
+                save();
+            }
+        }
+
+        public synchronized void save() {
+            final ImportRequest request = mImportRequest;
+            mCheckpointStore.save(new ImportCheckpointStore.Checkpoint(request.sourceUri,
+                    request.uri, request.displayName, request.account,
+                    request.estimatedVCardType, request.estimatedCharset, request.vcardVersion,
+                    mSourceLength, mEntryIndex, mCreatedUris, request.dedupeMode,
+                    System.currentTimeMillis()));
+            mSavedEntryIndex = mEntryIndex;
+        }
+    }
+
+    /**
+     * Passes on the entries after the given number of first ones, which an interrupted import
+     * already handled.
+     */
+    private static class SkippingEntryHandler implements VCardEntryHandler {
+        private final VCardEntryHandler mHandler;
+        private final int mSkipCount;
+        private int mSeenCount;
+
+        public SkippingEntryHandler(VCardEntryHandler handler, int skipCount) {
+            mHandler = handler;
+            mSkipCount = skipCount;
+        }
+
+        @Override
+        public void onStart() {
+            // The parser may start over with another vCard version.
+            mSeenCount = 0;
+            mHandler.onStart();
+        }
+
+        @Override
+        public void onEntryCreated(VCardEntry entry) {
+            if (mSeenCount++ >= mSkipCount) {
+                mHandler.onEntryCreated(entry);
+            }
+        }
+
+        @Override
+        public void onEnd() {
+            mHandler.onEnd();
+        }
+    }
+
+    /**
+     * Passes what the parser reads on to the constructor, through the photo spiller, and times
+     * each entry: the time spent in them, but for the waits for the commit thread, is the
+     * construction of the entry, and the rest of the time from its start to its end is the
+     * parsing.
+     */
+    private static class TimingInterpreter implements VCardInterpreter {
+        private final VCardPhotoSpiller mInterpreter;
+        private final PipelinedEntryCommitter mCommitter;
+        private final VCardStageTimings mTimings;
+
+        /** Nesting of the current entry, which may contain other entries (e.g. AGENT). */
+        private int mDepth;
+        private long mEntryStart;
+        /** Time spent in the constructor during the current entry, with and without waits. */
+        private long mHandledNanos;
+        private long mConstructNanos;
+
+        private long mCallStart;
+        private long mCallWaitStart;
+
+        public TimingInterpreter(VCardPhotoSpiller interpreter,
+                PipelinedEntryCommitter committer, VCardStageTimings timings) {
+            mInterpreter = interpreter;
+            mCommitter = committer;
+            mTimings = timings;
+        }
+
+        /** Forgets the entry in progress, before the parser starts over. */
+        public void clear() {
+            mInterpreter.clear();
+            mDepth = 0;
+        }
+
+        @Override
+        public void onVCardStarted() {
+            mInterpreter.onVCardStarted();
+        }
+
+        @Override
+        public void onVCardEnded() {
+            mInterpreter.onVCardEnded();
+        }
+
+        @Override
+        public void onEntryStarted() {
+            if (mDepth++ == 0) {
+                mEntryStart = System.nanoTime();
+                mHandledNanos = 0;
+                mConstructNanos = 0;
+            }
+            startCall();
+            mInterpreter.onEntryStarted();
+            endCall();
+        }
+
+        @Override
+        public void onEntryEnded() {
+            startCall();
+            mInterpreter.onEntryEnded();
+            endCall();
+            if (mDepth > 0 && --mDepth == 0) {
+                final long entryNanos = System.nanoTime() - mEntryStart;
+                mTimings.record(VCardStageTimings.STAGE_PARSE, entryNanos - mHandledNanos);
+                mTimings.record(VCardStageTimings.STAGE_CONSTRUCT, mConstructNanos);
+            }
+        }
+
+        @Override
+        public void onPropertyCreated(VCardProperty property) {
+            startCall();
+            mInterpreter.onPropertyCreated(property);
+            endCall();
+        }
+
+        private void startCall() {
+            mCallStart = System.nanoTime();
+            mCallWaitStart = mCommitter.getWaitNanos();
+        }
+
+        private void endCall() {
+            final long callNanos = System.nanoTime() - mCallStart;
+            mHandledNanos += callNanos;
+            mConstructNanos += callNanos - (mCommitter.getWaitNanos() - mCallWaitStart);
+        }
+    }
+
+    /**
+     * Returns the length of the source of the request in bytes, or -1 if it is not known.
+     */
+    private long getSourceLength(ImportRequest request) {
+        if (request.descriptor != null) {
+            return request.descriptor.getStatSize();
+        }
+        if (request.uri == null) {
+            return request.data != null ? request.data.length : -1;
+        }
+        if ("file".equals(request.uri.getScheme())) {
+            return new File(request.uri.getPath()).length();
+        }
+        AssetFileDescriptor fd = null;
+        try {
+            fd = mResolver.openAssetFileDescriptor(request.uri, "r");
+            return fd != null ? fd.getLength() : -1;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (fd != null) {
+                try {
+                    fd.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read from the source, for the throughput of the import, and to tell how
+     * far it has come when the number of entries is not known.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int read = in.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            final long skipped = in.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
     private boolean readOneVCard(InputStream is, int vcardType, String charset,
             final VCardInterpreter interpreter,
             final int[] possibleVCardVersions) {
@@ -220,9 +616,9 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         for (int i = 0; i < length; i++) {
             final int vcardVersion = possibleVCardVersions[i];
             try {
-                if (i > 0 && (interpreter instanceof VCardEntryConstructor)) {
+                if (i > 0 && (interpreter instanceof TimingInterpreter)) {
                     // Let the object clean up internal temporary objects,
-                    ((VCardEntryConstructor) interpreter).clear();
+                    ((TimingInterpreter) interpreter).clear();
                 }
 
                 // We need synchronized block here,
@@ -17,6 +17,7 @@ package com.android.contacts.common.vcard;
 
 import android.accounts.Account;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
 import com.android.vcard.VCardSourceDetector;
 
@@ -31,6 +32,18 @@ import com.android.vcard.VCardSourceDetector;
  * vCard entries inside it.
  */
 public class ImportRequest {
+    /**
+     * Value of {@link #entryCount} when the source was not counted beforehand.
+     */
+    public static final int ENTRY_COUNT_UNKNOWN = -1;
+
+    /** Values of {@link #dedupeMode}. Entries are imported whether they duplicate or not. */
+    public static final int DEDUPE_NONE = 0;
+    /** Entries that duplicate an existing contact of the account are skipped. */
+    public static final int DEDUPE_SKIP = 1;
+    /** Entries that duplicate an existing contact of the account are joined to it. */
+    public static final int DEDUPE_MERGE = 2;
+
     /**
      * Can be null (typically when there's no Account available in the system).
      */
@@ -45,11 +58,26 @@ public class ImportRequest {
      */
     public final Uri uri;
 
+    /**
+     * The uri the user chose to import, which {@link #uri} is a copy of or the same as. Null
+     * if {@link #uri} is. Imports of the same source share their checkpoint.
+     *
+     * @see ImportCheckpointStore
+     */
+    public final Uri sourceUri;
+
     /**
      * Holds the byte stream of the vcard, if {@link #uri} is null.
      */
     public final byte[] data;
 
+    /**
+     * An open descriptor of {@link #uri} that can be read more than once, or null. If set,
+     * the vCard is read through it in place of {@link #uri}, which is then the original uri
+     * rather than a copy in local storage. Closed once the request has been processed.
+     */
+    public final ParcelFileDescriptor descriptor;
+
     /**
      * String to be displayed to the user to indicate the source of the VCARD.
      */
@@ -92,19 +120,64 @@ public class ImportRequest {
      * which means we have to open and scan over {@link #uri} to know this value, while
      * it may not be opened more than once (Uri does not require it to be opened multiple times
      * and may become invalid after its close() request).
+     *
+     * {@link #ENTRY_COUNT_UNKNOWN} for big sources, which are not scanned in advance.
      */
     public final int entryCount;
 
+    /**
+     * The number of entries at the start of the source that an earlier, interrupted import
+     * already handled, and which are skipped. 0 for a new import.
+     *
+     * @see ImportCheckpointStore
+     */
+    public final int resumeFrom;
+
+    /**
+     * What to do with entries that duplicate existing contacts: {@link #DEDUPE_NONE},
+     * {@link #DEDUPE_SKIP} or {@link #DEDUPE_MERGE}.
+     *
+     * @see VCardDuplicateIndex
+     */
+    public final int dedupeMode;
+
     public ImportRequest(Account account,
             byte[] data, Uri uri, String displayName, int estimatedType, String estimatedCharset,
             int vcardVersion, int entryCount) {
+        this(account, data, uri, null, displayName, estimatedType, estimatedCharset,
+                vcardVersion, entryCount);
+    }
+
+    public ImportRequest(Account account,
+            byte[] data, Uri uri, ParcelFileDescriptor descriptor, String displayName,
+            int estimatedType, String estimatedCharset, int vcardVersion, int entryCount) {
+        this(account, data, uri, descriptor, displayName, estimatedType, estimatedCharset,
+                vcardVersion, entryCount, 0, DEDUPE_NONE);
+    }
+
+    public ImportRequest(Account account,
+            byte[] data, Uri uri, ParcelFileDescriptor descriptor, String displayName,
+            int estimatedType, String estimatedCharset, int vcardVersion, int entryCount,
+            int resumeFrom, int dedupeMode) {
+        this(account, data, uri, uri, descriptor, displayName, estimatedType, estimatedCharset,
+                vcardVersion, entryCount, resumeFrom, dedupeMode);
+    }
+
+    public ImportRequest(Account account,
+            byte[] data, Uri uri, Uri sourceUri, ParcelFileDescriptor descriptor,
+            String displayName, int estimatedType, String estimatedCharset, int vcardVersion,
+            int entryCount, int resumeFrom, int dedupeMode) {
         this.account = account;
         this.data = data;
         this.uri = uri;
+        this.sourceUri = sourceUri;
+        this.descriptor = descriptor;
         this.displayName = displayName;
         this.estimatedVCardType = estimatedType;
         this.estimatedCharset = estimatedCharset;
         this.vcardVersion = vcardVersion;
         this.entryCount = entryCount;
+        this.resumeFrom = resumeFrom;
+        this.dedupeMode = dedupeMode;
     }
 }
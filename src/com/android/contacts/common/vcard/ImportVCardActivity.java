@@ -36,6 +36,7 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
 import android.provider.OpenableColumns;
 import android.text.SpannableStringBuilder;
@@ -70,6 +71,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -101,6 +103,15 @@ public class ImportVCardActivity extends Activity {
     /* package */ final static int VCARD_VERSION_V30 = 2;
 
     private static final String SECURE_DIRECTORY_NAME = ".android_secure";
+    /** Index of the vCard files found by the last scan, in the cache directory. */
+    private static final String SCAN_INDEX_FILE_NAME = "vcard_scan_index";
+
+    /**
+     * Sources bigger than this are not parsed in full before the import to count their
+     * entries. Their version and charset are guessed from a prefix instead, and the progress
+     * of their import follows the bytes read.
+     */
+    private static final long SINGLE_PASS_MIN_LENGTH = 256 * 1024;
 
     /**
      * Notification id used when error happened before sending an import request to VCardServer.
@@ -112,6 +123,9 @@ public class ImportVCardActivity extends Activity {
     private AccountSelectionUtil.AccountSelectedListener mAccountSelectionListener;
 
     private AccountWithDataSet mAccount;
+    private int mDedupeMode = ImportRequest.DEDUPE_NONE;
+    /** Whether the user chose to resume the interrupted imports of the sources. */
+    private boolean mResumeImports;
 
     private ProgressDialog mProgressDialogForScanVCard;
     private ProgressDialog mProgressDialogForCachingVCard;
@@ -191,6 +205,20 @@ public class ImportVCardActivity extends Activity {
             mService.handleImportRequest(requests, mListener);
         }
 
+        /**
+         * Resumes the interrupted imports of the sources.
+         *
+         * @return the sources whose imports were resumed.
+         */
+        public List<Uri> resumeImportRequest(final Uri[] sourceUris) {
+            Log.i(LOG_TAG, "Send a resume request");
+            return mService.handleResumeImportRequest(Arrays.asList(sourceUris), mListener);
+        }
+
+        public void recordStageTiming(int stage, long nanos) {
+            mService.recordStageTiming(stage, nanos);
+        }
+
         @Override
         public void onServiceConnected(ComponentName name, IBinder binder) {
             mService = ((VCardService.MyBinder) binder).getService();
@@ -251,6 +279,7 @@ public class ImportVCardActivity extends Activity {
                         + "after a service connection is established");
             }
 
+            final ArrayList<ImportRequest> requests = new ArrayList<ImportRequest>();
             mWakeLock.acquire();
             try {
                 if (mCanceled == true) {
@@ -267,11 +296,14 @@ public class ImportVCardActivity extends Activity {
                 //
                 // We may be able to read content of each vCard file during copying them
                 // to local storage, but currently vCard code does not allow us to do so.
+                //
+                // Sources that open as regular files can be read multiple times, and are
+                // imported through an open descriptor without a copy.
                 int cache_index = 0;
-                ArrayList<ImportRequest> requests = new ArrayList<ImportRequest>();
                 if (mSource != null) {
                     try {
-                        requests.add(constructImportRequest(mSource, null, mDisplayName));
+                        requests.add(constructImportRequest(mSource, null, null, null,
+                                mDisplayName));
                     } catch (VCardException e) {
                         Log.e(LOG_TAG, "Maybe the file is in wrong format", e);
                         showFailureNotification(R.string.fail_reason_not_supported);
@@ -280,29 +312,48 @@ public class ImportVCardActivity extends Activity {
                 } else {
                     final ContentResolver resolver =
                             ImportVCardActivity.this.getContentResolver();
+                    // Interrupted imports are resumed by the service, from where they stopped.
+                    final List<Uri> resumedUris = mResumeImports
+                            ? mConnection.resumeImportRequest(mSourceUris)
+                            : Collections.<Uri>emptyList();
                     for (Uri sourceUri : mSourceUris) {
-                        String filename = null;
-                        // Note: caches are removed by VCardService.
-                        while (true) {
-                            filename = VCardService.CACHE_FILE_PREFIX + cache_index + ".vcf";
-                            final File file = context.getFileStreamPath(filename);
-                            if (!file.exists()) {
-                                break;
-                            } else {
-                                if (cache_index == Integer.MAX_VALUE) {
-                                    throw new RuntimeException("Exceeded cache limit");
+                        if (resumedUris.contains(sourceUri)) {
+                            continue;
+                        }
+                        // Sources that can be read more than once are imported in place.
+                        final ParcelFileDescriptor descriptor =
+                                ReopenableVCardSource.open(resolver, sourceUri);
+                        final Uri localDataUri;
+                        if (descriptor != null) {
+                            Log.i(LOG_TAG, "Import a Uri in place (" + sourceUri + ")");
+                            localDataUri = sourceUri;
+                        } else {
+                            String filename = null;
+                            // Note: caches are removed by VCardService.
+                            while (true) {
+                                filename = VCardService.CACHE_FILE_PREFIX + cache_index + ".vcf";
+                                final File file = context.getFileStreamPath(filename);
+                                if (!file.exists()) {
+                                    break;
+                                } else {
+                                    if (cache_index == Integer.MAX_VALUE) {
+                                        throw new RuntimeException("Exceeded cache limit");
+                                    }
+                                    cache_index++;
                                 }
-                                cache_index++;
                             }
-                        }
-                        final Uri localDataUri = copyTo(sourceUri, filename);
-                        if (mCanceled) {
-                            Log.i(LOG_TAG, "vCard cache operation is canceled.");
-                            break;
-                        }
-                        if (localDataUri == null) {
-                            Log.w(LOG_TAG, "destUri is null");
-                            break;
+                            final long copyStart = System.nanoTime();
+                            localDataUri = copyTo(sourceUri, filename);
+                            mConnection.recordStageTiming(VCardStageTimings.STAGE_OPEN,
+                                    System.nanoTime() - copyStart);
+                            if (mCanceled) {
+                                Log.i(LOG_TAG, "vCard cache operation is canceled.");
+                                break;
+                            }
+                            if (localDataUri == null) {
+                                Log.w(LOG_TAG, "destUri is null");
+                                break;
+                            }
                         }
 
                         String displayName = null;
@@ -334,25 +385,29 @@ public class ImportVCardActivity extends Activity {
 
                         final ImportRequest request;
                         try {
-                            request = constructImportRequest(null, localDataUri, displayName);
+                            request = constructImportRequest(null, localDataUri, sourceUri,
+                                    descriptor, displayName);
                         } catch (VCardException e) {
                             Log.e(LOG_TAG, "Maybe the file is in wrong format", e);
+                            ReopenableVCardSource.closeQuietly(descriptor);
                             showFailureNotification(R.string.fail_reason_not_supported);
                             return;
                         } catch (IOException e) {
                             Log.e(LOG_TAG, "Unexpected IOException", e);
+                            ReopenableVCardSource.closeQuietly(descriptor);
                             showFailureNotification(R.string.fail_reason_io_error);
                             return;
                         }
+                        requests.add(request);
                         if (mCanceled) {
                             Log.i(LOG_TAG, "vCard cache operation is canceled.");
                             return;
                         }
-                        requests.add(request);
                     }
                 }
                 if (!requests.isEmpty()) {
                     mConnection.sendImportRequest(requests);
+                    requests.clear();
                 } else {
                     Log.w(LOG_TAG, "Empty import requests. Ignore it.");
                 }
@@ -366,6 +421,10 @@ public class ImportVCardActivity extends Activity {
                 runOnUiThread(new DialogDisplayer(
                         getString(R.string.fail_reason_io_error)));
             } finally {
+                // Requests that were not sent keep no source open.
+                for (ImportRequest request : requests) {
+                    ReopenableVCardSource.closeQuietly(request.descriptor);
+                }
                 Log.i(LOG_TAG, "Finished caching vCard.");
                 mWakeLock.release();
                 unbindService(mConnection);
@@ -430,24 +489,34 @@ public class ImportVCardActivity extends Activity {
          * @arg localDataUri Uri actually used for the import. Should be stored in
          * app local storage, as we cannot guarantee other types of Uris can be read
          * multiple times. This variable populates {@link ImportRequest#uri}.
+         * @arg sourceUri The Uri the user chose, which localDataUri is a copy of or the same
+         * as. This variable populates {@link ImportRequest#sourceUri}.
+         * @arg descriptor If not null, a descriptor that reads the original Uri in place; see
+         * {@link ReopenableVCardSource}. In that case localDataUri is the original Uri.
          * @arg displayName Used for displaying information to the user. This variable populates
          * {@link ImportRequest#displayName}.
          */
         private ImportRequest constructImportRequest(final byte[] data,
-                final Uri localDataUri, final String displayName)
-                throws IOException, VCardException {
-            final ContentResolver resolver = ImportVCardActivity.this.getContentResolver();
+                final Uri localDataUri, final Uri sourceUri, final ParcelFileDescriptor descriptor,
+                final String displayName) throws IOException, VCardException {
+            final long length;
+            if (data != null) {
+                length = data.length;
+            } else if (descriptor != null) {
+                length = descriptor.getStatSize();
+            } else {
+                length = new File(localDataUri.getPath()).length();
+            }
+            if (length > SINGLE_PASS_MIN_LENGTH) {
+                return constructSinglePassImportRequest(data, localDataUri, sourceUri, descriptor,
+                        displayName);
+            }
             VCardEntryCounter counter = null;
             VCardSourceDetector detector = null;
             int vcardVersion = VCARD_VERSION_V21;
             try {
                 boolean shouldUseV30 = false;
-                InputStream is;
-                if (data != null) {
-                    is = new ByteArrayInputStream(data);
-                } else {
-                    is = resolver.openInputStream(localDataUri);
-                }
+                InputStream is = openSource(data, localDataUri, descriptor);
                 mVCardParser = new VCardParser_V21();
                 try {
                     counter = new VCardEntryCounter();
@@ -462,11 +531,7 @@ public class ImportVCardActivity extends Activity {
                     }
 
                     shouldUseV30 = true;
-                    if (data != null) {
-                        is = new ByteArrayInputStream(data);
-                    } else {
-                        is = resolver.openInputStream(localDataUri);
-                    }
+                    is = openSource(data, localDataUri, descriptor);
                     mVCardParser = new VCardParser_V30();
                     try {
                         counter = new VCardEntryCounter();
@@ -493,10 +558,45 @@ public class ImportVCardActivity extends Activity {
                 // version before it
             }
             return new ImportRequest(mAccount,
-                    data, localDataUri, displayName,
+                    data, localDataUri, sourceUri, descriptor, displayName,
                     detector.getEstimatedType(),
                     detector.getEstimatedCharset(),
-                    vcardVersion, counter.getCount());
+                    vcardVersion, counter.getCount(), 0, mDedupeMode);
+        }
+
+        /**
+         * Constructs an {@link ImportRequest} without an entry count, from the first bytes of
+         * the source only, so that {@link VCardService} parses the source exactly once.
+         */
+        private ImportRequest constructSinglePassImportRequest(final byte[] data,
+                final Uri localDataUri, final Uri sourceUri, final ParcelFileDescriptor descriptor,
+                final String displayName) throws IOException {
+            final VCardPrefixSniffer sniffer = new VCardPrefixSniffer();
+            final InputStream is = openSource(data, localDataUri, descriptor);
+            try {
+                sniffer.sniff(is);
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                }
+            }
+            Log.i(LOG_TAG, "Single pass import of " + displayName + ", version "
+                    + sniffer.getVCardVersion());
+            return new ImportRequest(mAccount, data, localDataUri, sourceUri, descriptor,
+                    displayName, sniffer.getEstimatedType(), sniffer.getEstimatedCharset(),
+                    sniffer.getVCardVersion(), ImportRequest.ENTRY_COUNT_UNKNOWN, 0, mDedupeMode);
+        }
+
+        private InputStream openSource(final byte[] data, final Uri localDataUri,
+                final ParcelFileDescriptor descriptor) throws IOException {
+            if (data != null) {
+                return new ByteArrayInputStream(data);
+            } else if (descriptor != null) {
+                return ReopenableVCardSource.openStream(descriptor);
+            } else {
+                return getContentResolver().openInputStream(localDataUri);
+            }
         }
 
         public Uri[] getSourceUris() {
@@ -604,22 +704,16 @@ public class ImportVCardActivity extends Activity {
      * a vCard file is shown. After the choice, VCardReadThread starts running.
      */
     private class VCardScanThread extends Thread implements OnCancelListener, OnClickListener {
-        private boolean mCanceled;
+        private volatile boolean mCanceled;
         private boolean mGotIOException;
-        private File mRootDirectory;
-
-        // To avoid recursive link.
-        private Set<String> mCheckedPaths;
+        private final VCardFileScanner mScanner;
         private PowerManager.WakeLock mWakeLock;
 
-        private class CanceledException extends Exception {
-        }
-
         public VCardScanThread(File sdcardDirectory) {
             mCanceled = false;
             mGotIOException = false;
-            mRootDirectory = sdcardDirectory;
-            mCheckedPaths = new HashSet<String>();
+            mScanner = new VCardFileScanner(sdcardDirectory,
+                    new File(getCacheDir(), SCAN_INDEX_FILE_NAME), SECURE_DIRECTORY_NAME);
             PowerManager powerManager = (PowerManager)ImportVCardActivity.this.getSystemService(
                     Context.POWER_SERVICE);
             mWakeLock = powerManager.newWakeLock(
@@ -632,9 +726,15 @@ public class ImportVCardActivity extends Activity {
             mAllVCardFileList = new Vector<VCardFile>();
             try {
                 mWakeLock.acquire();
-                getVCardFileRecursively(mRootDirectory);
-            } catch (CanceledException e) {
-                mCanceled = true;
+                final List<VCardFileScanner.FoundFile> foundFiles = mScanner.scan();
+                if (foundFiles == null) {
+                    mCanceled = true;
+                } else {
+                    for (VCardFileScanner.FoundFile file : foundFiles) {
+                        mAllVCardFileList.add(new VCardFile(
+                                file.name, file.canonicalPath, file.lastModified));
+                    }
+                }
             } catch (IOException e) {
                 mGotIOException = true;
             } finally {
@@ -663,53 +763,18 @@ public class ImportVCardActivity extends Activity {
             }
         }
 
-        private void getVCardFileRecursively(File directory)
-                throws CanceledException, IOException {
-            if (mCanceled) {
-                throw new CanceledException();
-            }
-
-            // e.g. secured directory may return null toward listFiles().
-            final File[] files = directory.listFiles();
-            if (files == null) {
-                final String currentDirectoryPath = directory.getCanonicalPath();
-                final String secureDirectoryPath =
-                        mRootDirectory.getCanonicalPath().concat(SECURE_DIRECTORY_NAME);
-                if (!TextUtils.equals(currentDirectoryPath, secureDirectoryPath)) {
-                    Log.w(LOG_TAG, "listFiles() returned null (directory: " + directory + ")");
-                }
-                return;
-            }
-            for (File file : directory.listFiles()) {
-                if (mCanceled) {
-                    throw new CanceledException();
-                }
-                String canonicalPath = file.getCanonicalPath();
-                if (mCheckedPaths.contains(canonicalPath)) {
-                    continue;
-                }
-
-                mCheckedPaths.add(canonicalPath);
-
-                if (file.isDirectory()) {
-                    getVCardFileRecursively(file);
-                } else if (canonicalPath.toLowerCase().endsWith(".vcf") &&
-                        file.canRead()){
-                    String fileName = file.getName();
-                    VCardFile vcardFile = new VCardFile(
-                            fileName, canonicalPath, file.lastModified());
-                    mAllVCardFileList.add(vcardFile);
-                }
-            }
+        private void cancel() {
+            mCanceled = true;
+            mScanner.cancel();
         }
 
         public void onCancel(DialogInterface dialog) {
-            mCanceled = true;
+            cancel();
         }
 
         public void onClick(DialogInterface dialog, int which) {
             if (which == DialogInterface.BUTTON_NEGATIVE) {
-                mCanceled = true;
+                cancel();
             }
         }
     }
@@ -761,12 +826,54 @@ public class ImportVCardActivity extends Activity {
                 if (!isFinishing()) {
                     mVCardCacheThread = new VCardCacheThread(uris);
                     mListener = new NotificationImportExportListener(ImportVCardActivity.this);
-                    showDialog(R.id.dialog_cache_vcard);
+                    if (hasImportCheckpoint(uris)) {
+                        showDialog(R.id.dialog_resume_import);
+                    } else {
+                        showDialog(R.id.dialog_cache_vcard);
+                    }
                 }
             }
         });
     }
 
+    /**
+     * Returns whether an import of one of the sources was interrupted and can be resumed.
+     */
+    private boolean hasImportCheckpoint(final Uri[] uris) {
+        final ImportCheckpointStore checkpointStore = new ImportCheckpointStore(this);
+        for (Uri uri : uris) {
+            if (checkpointStore.get(uri) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Dialog getResumeImportDialog() {
+        final DialogInterface.OnClickListener listener = new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                mResumeImports = which == DialogInterface.BUTTON_POSITIVE;
+                if (!mResumeImports) {
+                    // The sources are imported from the start; their checkpoints are discarded.
+                    final ImportCheckpointStore checkpointStore =
+                            new ImportCheckpointStore(ImportVCardActivity.this);
+                    for (Uri uri : mVCardCacheThread.getSourceUris()) {
+                        checkpointStore.remove(uri);
+                    }
+                }
+                showDialog(R.id.dialog_cache_vcard);
+            }
+        };
+        return new AlertDialog.Builder(this)
+                .setTitle(R.string.resume_import_title)
+                .setMessage(R.string.resume_import_message)
+                .setPositiveButton(R.string.resume_import_continue, listener)
+                .setNegativeButton(R.string.resume_import_start_over, listener)
+                .setOnCancelListener(mCancelListener)
+                .create();
+    }
+
     private Dialog getSelectImportTypeDialog() {
         final DialogInterface.OnClickListener listener = new ImportTypeSelectedListener();
         final AlertDialog.Builder builder = new AlertDialog.Builder(this)
@@ -834,6 +941,8 @@ public class ImportVCardActivity extends Activity {
             accountName = intent.getStringExtra(SelectAccountActivity.ACCOUNT_NAME);
             accountType = intent.getStringExtra(SelectAccountActivity.ACCOUNT_TYPE);
             dataSet = intent.getStringExtra(SelectAccountActivity.DATA_SET);
+            mDedupeMode = intent.getIntExtra(VCardCommonArguments.ARG_DEDUPE_MODE,
+                    ImportRequest.DEDUPE_NONE);
         } else {
             Log.e(LOG_TAG, "intent does not exist");
         }
@@ -934,6 +1043,9 @@ public class ImportVCardActivity extends Activity {
             case R.id.dialog_select_one_vcard: {
                 return getVCardFileSelectDialog(false);
             }
+            case R.id.dialog_resume_import: {
+                return getResumeImportDialog();
+            }
             case R.id.dialog_cache_vcard: {
                 if (mProgressDialogForCachingVCard == null) {
                     final String title = getString(R.string.caching_vcard_title);
@@ -211,12 +211,13 @@ public class NfcImportVCardActivity extends Activity implements ServiceConnectio
 
     @Override
     public void onImportParsed(ImportRequest request, int jobId, VCardEntry entry, int currentCount,
-            int totalCount) {
+            int totalCount, VCardProgressReporter progress) {
         // do nothing
     }
 
     @Override
-    public void onImportFinished(ImportRequest request, int jobId, Uri uri) {
+    public void onImportFinished(ImportRequest request, int jobId, Uri uri, int skippedCount,
+            int mergedCount) {
         if (isFinishing()) {
             Log.i(TAG, "Late import -- ignoring");
             return;
@@ -259,6 +260,11 @@ public class NfcImportVCardActivity extends Activity implements ServiceConnectio
         // do nothing
     }
 
+    @Override
+    public void onStageTimings(int type, int jobId, VCardStageTimings timings) {
+        // do nothing
+    }
+
     @Override
     public void onComplete() {
         // do nothing
@@ -85,13 +85,13 @@ public class NotificationImportExportListener implements VCardImportExportListen
         }
 
         final Notification notification = constructProgressNotification(mContext,
-                VCardService.TYPE_IMPORT, message, message, jobId, displayName, -1, 0);
+                VCardService.TYPE_IMPORT, message, message, jobId, displayName, -1, 0, null);
         mNotificationManager.notify(DEFAULT_NOTIFICATION_TAG, jobId, notification);
     }
 
     @Override
     public void onImportParsed(ImportRequest request, int jobId, VCardEntry entry, int currentCount,
-            int totalCount) {
+            int totalCount, VCardProgressReporter progress) {
         if (entry.isIgnorable()) {
             return;
         }
@@ -107,14 +107,19 @@ public class NotificationImportExportListener implements VCardImportExportListen
 
         final Notification notification = constructProgressNotification(
                 mContext.getApplicationContext(), VCardService.TYPE_IMPORT, description, tickerText,
-                jobId, request.displayName, totalCount, currentCount);
+                jobId, request.displayName, totalCount, currentCount, progress);
         mNotificationManager.notify(DEFAULT_NOTIFICATION_TAG, jobId, notification);
     }
 
     @Override
-    public void onImportFinished(ImportRequest request, int jobId, Uri createdUri) {
+    public void onImportFinished(ImportRequest request, int jobId, Uri createdUri,
+            int skippedCount, int mergedCount) {
         final String description = mContext.getString(R.string.importing_vcard_finished_title,
                 request.displayName);
+        final String content = skippedCount > 0 || mergedCount > 0
+                ? mContext.getString(R.string.importing_vcard_duplicates_message,
+                        skippedCount, mergedCount)
+                : null;
         final Intent intent;
         if (createdUri != null) {
             final long rawContactId = ContentUris.parseId(createdUri);
@@ -127,7 +132,7 @@ public class NotificationImportExportListener implements VCardImportExportListen
         }
         final Notification notification =
                 NotificationImportExportListener.constructFinishNotification(mContext,
-                description, null, intent);
+                description, content, intent);
         mNotificationManager.notify(NotificationImportExportListener.DEFAULT_NOTIFICATION_TAG,
                 jobId, notification);
     }
@@ -159,7 +164,8 @@ public class NotificationImportExportListener implements VCardImportExportListen
         mHandler.obtainMessage(0, message).sendToTarget();
         final Notification notification =
                 NotificationImportExportListener.constructProgressNotification(mContext,
-                        VCardService.TYPE_EXPORT, message, message, jobId, displayName, -1, 0);
+                        VCardService.TYPE_EXPORT, message, message, jobId, displayName, -1, 0,
+                        null);
         mNotificationManager.notify(DEFAULT_NOTIFICATION_TAG, jobId, notification);
     }
 
@@ -195,7 +201,8 @@ public class NotificationImportExportListener implements VCardImportExportListen
      */
     /* package */ static Notification constructProgressNotification(
             Context context, int type, String description, String tickerText,
-            int jobId, String displayName, int totalCount, int currentCount) {
+            int jobId, String displayName, int totalCount, int currentCount,
+            VCardProgressReporter progress) {
         // Note: We cannot use extra values here (like setIntExtra()), as PendingIntent doesn't
         // preserve them across multiple Notifications. PendingIntent preserves the first extras
         // (when flag is not set), or update them when PendingIntent#getActivity() is called
@@ -226,6 +233,10 @@ public class NotificationImportExportListener implements VCardImportExportListen
             builder.setContentText(context.getString(R.string.percentage,
                     String.valueOf(currentCount * 100 / totalCount)));
         }
+        if (progress != null && progress.getEntriesPerSecond() > 0) {
+            builder.setContentInfo(context.getString(R.string.vcard_throughput,
+                    progress.getEntriesPerSecond(), progress.getBytesPerSecond() / 1024));
+        }
         return builder.getNotification();
     }
 
@@ -282,6 +293,11 @@ public class NotificationImportExportListener implements VCardImportExportListen
                 .getNotification();
     }
 
+    @Override
+    public void onStageTimings(int type, int jobId, VCardStageTimings timings) {
+        // Not shown to users; the jobs log their timings and VCardService dumps them.
+    }
+
     @Override
     public void onComplete() {
         mContext.finish();
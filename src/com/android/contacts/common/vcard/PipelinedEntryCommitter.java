@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.AggregationExceptions;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryCommitter;
+import com.android.vcard.VCardEntryHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link VCardEntryHandler} that commits entries to the contacts provider on a thread of its
+ * own, so that the parser goes on with the next entries while the provider applies the
+ * previous ones. Like {@link VCardEntryCommitter}, it inserts each batch of entries with one
+ * {@link ContentResolver#applyBatch} call and remembers the first raw contact of each batch.
+ *
+ * At most a fixed number of parsed entries wait for the commit thread; beyond that the parser
+ * blocks, which keeps the memory held by an import bounded whatever the size of the file.
+ * Large photos that a {@link VCardPhotoSpiller} wrote to files are not part of the batches:
+ * they are streamed to the display photos of the raw contacts once these are created.
+ *
+ * {@link #finish()} must be called once the parser returns, whether it succeeded or not.
+ */
+public class PipelinedEntryCommitter implements VCardEntryHandler {
+    private static final String LOG_TAG = "VCardImport";
+
+    /**
+     * Told about each batch on the commit thread, e.g. to record how far an import has come.
+     */
+    public interface BatchListener {
+        /**
+         * @param handledCount the number of entries handled so far, including those of
+         * batches that failed.
+         * @param createdUri the first raw contact created by the batch, or null if it failed.
+         */
+        void onBatchCommitted(int handledCount, Uri createdUri);
+    }
+
+    /**
+     * A parsed entry waiting to be committed, with the file of its large photo if any.
+     */
+    private static class PendingEntry {
+        public final VCardEntry entry;
+        public final File photo;
+
+        public PendingEntry(VCardEntry entry, File photo) {
+            this.entry = entry;
+            this.photo = photo;
+        }
+    }
+
+    /**
+     * A large photo to write once its batch is applied.
+     */
+    private static class BatchPhoto {
+        /** Index of the insertion of the raw contact in the operations of the batch. */
+        public final int rawContactIndex;
+        public final File photo;
+
+        public BatchPhoto(int rawContactIndex, File photo) {
+            this.rawContactIndex = rawContactIndex;
+            this.photo = photo;
+        }
+    }
+
+    /** Put after the last entry. */
+    private static final PendingEntry END_OF_ENTRIES = new PendingEntry(null, null);
+
+    /** How long the parser waits for room in the queue before checking the commit thread. */
+    private static final long OFFER_TIMEOUT_MILLIS = 500;
+
+    private final ContentResolver mResolver;
+    private final int mBatchSize;
+    private final BlockingQueue<PendingEntry> mQueue;
+
+    /** Only accessed by the commit thread until it is joined in {@link #finish()}. */
+    private final ArrayList<Uri> mCreatedUris = new ArrayList<Uri>();
+    private int mCommittedCount;
+    private int mHandledCount;
+    private int mSkippedCount;
+    private int mMergedCount;
+
+    private VCardDuplicateIndex mDuplicateIndex;
+    private boolean mMergeDuplicates;
+    private BatchListener mBatchListener;
+    private VCardStageTimings mTimings;
+    private VCardPhotoSpiller mPhotoSpiller;
+    /** The large photos of the current batch. Only accessed by the commit thread. */
+    private final ArrayList<BatchPhoto> mBatchPhotos = new ArrayList<BatchPhoto>();
+    /** Time spent building the operations of the current batch. */
+    private long mBatchNanos;
+    /** Time the parser spent waiting for room in the queue. Only accessed by the parser. */
+    private long mWaitNanos;
+    private Thread mCommitThread;
+    /** What ended the commit thread, if it did not end normally. */
+    private volatile Throwable mFailure;
+
+    /**
+     * @param batchSize the number of entries to insert with one batch.
+     * @param queueCapacity the number of parsed entries that may wait to be committed.
+     */
+    public PipelinedEntryCommitter(ContentResolver resolver, int batchSize, int queueCapacity) {
+        if (batchSize <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("batchSize and queueCapacity must be positive");
+        }
+        mResolver = resolver;
+        mBatchSize = batchSize;
+        mQueue = new ArrayBlockingQueue<PendingEntry>(queueCapacity);
+    }
+
+    /**
+     * Sets the listener told about each batch. Must be called before the first entry.
+     */
+    public void setBatchListener(BatchListener listener) {
+        mBatchListener = listener;
+    }
+
+    /**
+     * Sets where the time spent waiting for the queue and committing batches is recorded.
+     * Must be called before the first entry.
+     */
+    public void setStageTimings(VCardStageTimings timings) {
+        mTimings = timings;
+    }
+
+    /**
+     * Makes the committer take the large photo of each entry from the spiller, which must
+     * pass the entries on to the constructor this committer handles. Must be called before
+     * the first entry.
+     */
+    public void setPhotoSpiller(VCardPhotoSpiller spiller) {
+        mPhotoSpiller = spiller;
+    }
+
+    /**
+     * Makes the committer check each entry against the index first. Duplicates are skipped, or,
+     * if {@code merge} is true, inserted and joined to the contact they duplicate. Must be
+     * called before the first entry.
+     */
+    public void setDuplicateIndex(VCardDuplicateIndex index, boolean merge) {
+        mDuplicateIndex = index;
+        mMergeDuplicates = merge;
+    }
+
+    @Override
+    public void onStart() {
+        if (mCommitThread == null) {
+            mCommitThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        commitEntries();
+                    } catch (Throwable e) {
+                        // Errors too, so that finish() does not report the import as a success.
+                        Log.e(LOG_TAG, "Exception thrown while committing entries", e);
+                        mFailure = e;
+                        discardQueuedPhotos();
+                    }
+                }
+            }, "VCardCommitter");
+            mCommitThread.start();
+        }
+    }
+
+    /**
+     * @throws RuntimeException if the commit thread failed with one, and stops the parser: the
+     * entries would not be committed anyway.
+     * @throws IllegalStateException if the commit thread has ended otherwise.
+     */
+    @Override
+    public void onEntryCreated(VCardEntry entry) {
+        onStart();
+        final File photo = mPhotoSpiller != null ? mPhotoSpiller.takePendingPhoto() : null;
+        if (!enqueue(new PendingEntry(entry, photo))) {
+            if (photo != null) {
+                photo.delete();
+            }
+            throwIfFailed();
+            if (!Thread.currentThread().isInterrupted()) {
+                throw new IllegalStateException("The commit thread has ended");
+            }
+        }
+    }
+
+    /**
+     * Does nothing: the parser may start over with another vCard version, and the commit thread
+     * keeps running until {@link #finish()}.
+     */
+    @Override
+    public void onEnd() {
+    }
+
+    /**
+     * Commits the entries that are still queued and waits for the commit thread to end. If the
+     * calling thread is interrupted, the entries that are still queued are dropped instead.
+     *
+     * @throws RuntimeException if the commit thread failed with one, or Error likewise.
+     */
+    public void finish() {
+        if (mCommitThread == null) {
+            return;
+        }
+        if (!enqueue(END_OF_ENTRIES)) {
+            // E.g. this thread has been interrupted; the commit thread would wait for more
+            // entries forever. It drops the queued entries instead.
+            mCommitThread.interrupt();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mCommitThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mCommitThread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        throwIfFailed();
+    }
+
+    private void throwIfFailed() {
+        final Throwable failure = mFailure;
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    /**
+     * Returns the first raw contact created by each batch. Only valid after {@link #finish()}.
+     */
+    public List<Uri> getCreatedUris() {
+        return mCreatedUris;
+    }
+
+    /**
+     * Returns the number of entries committed so far. Only valid after {@link #finish()}.
+     */
+    public int getCommittedCount() {
+        return mCommittedCount;
+    }
+
+    /**
+     * Returns the number of duplicates that were skipped. Only valid after {@link #finish()}.
+     */
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * Returns the number of duplicates that were joined to the contact they duplicate. Only
+     * valid after {@link #finish()}.
+     */
+    public int getMergedCount() {
+        return mMergedCount;
+    }
+
+    /**
+     * Returns how long the parser has waited for room in the queue so far. Must be called by
+     * the thread of the parser.
+     */
+    public long getWaitNanos() {
+        return mWaitNanos;
+    }
+
+    /**
+     * Returns whether the entry was queued.
+     */
+    private boolean enqueue(PendingEntry entry) {
+        final long start = System.nanoTime();
+        boolean queued = false;
+        try {
+            // Once nothing takes entries any more, the parser must not wait for room.
+            while (mFailure == null && mCommitThread.isAlive()) {
+                if (mQueue.offer(entry, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    queued = true;
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "Interrupted while waiting for the committer");
+            Thread.currentThread().interrupt();
+        }
+        final long waitNanos = System.nanoTime() - start;
+        mWaitNanos += waitNanos;
+        if (mTimings != null && entry != END_OF_ENTRIES) {
+            mTimings.record(VCardStageTimings.STAGE_COMMIT_WAIT, waitNanos);
+        }
+        return queued;
+    }
+
+    /**
+     * Deletes the photos of the entries that will not be committed, and drops the entries.
+     */
+    private void discardQueuedPhotos() {
+        PendingEntry pending;
+        while ((pending = mQueue.poll()) != null) {
+            if (pending.photo != null) {
+                pending.photo.delete();
+            }
+        }
+        for (BatchPhoto batchPhoto : mBatchPhotos) {
+            batchPhoto.photo.delete();
+        }
+        mBatchPhotos.clear();
+    }
+
+    private void commitEntries() {
+        ArrayList<ContentProviderOperation> operations = null;
+        int count = 0;
+        while (true) {
+            final PendingEntry pending;
+            try {
+                pending = mQueue.take();
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Committer interrupted; dropping the remaining entries");
+                discardQueuedPhotos();
+                return;
+            }
+            if (pending == END_OF_ENTRIES) {
+                break;
+            }
+            final VCardEntry entry = pending.entry;
+            final long start = System.nanoTime();
+            final long duplicateOf = mDuplicateIndex != null
+                    ? mDuplicateIndex.findDuplicate(entry) : VCardDuplicateIndex.NO_DUPLICATE;
+            final int rawContactIndex = operations != null ? operations.size() : 0;
+            if (duplicateOf == VCardDuplicateIndex.NO_DUPLICATE) {
+                operations = entry.constructInsertOperations(mResolver, operations);
+            } else if (mMergeDuplicates) {
+                operations = entry.constructInsertOperations(mResolver, operations);
+                operations.add(ContentProviderOperation.newUpdate(
+                        AggregationExceptions.CONTENT_URI)
+                        .withValue(AggregationExceptions.TYPE,
+                                AggregationExceptions.TYPE_KEEP_TOGETHER)
+                        .withValue(AggregationExceptions.RAW_CONTACT_ID1, duplicateOf)
+                        .withValueBackReference(AggregationExceptions.RAW_CONTACT_ID2,
+                                rawContactIndex)
+                        .build());
+                mMergedCount++;
+            } else {
+                mSkippedCount++;
+            }
+            if (pending.photo != null) {
+                if (operations != null && operations.size() > rawContactIndex) {
+                    mBatchPhotos.add(new BatchPhoto(rawContactIndex, pending.photo));
+                } else {
+                    // Skipped, or nothing else in the entry to create a raw contact with.
+                    pending.photo.delete();
+                }
+            }
+            mBatchNanos += System.nanoTime() - start;
+            count++;
+            if (count >= mBatchSize) {
+                pushIntoContentResolver(operations, count);
+                operations = null;
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            pushIntoContentResolver(operations, count);
+        }
+    }
+
+    private void pushIntoContentResolver(ArrayList<ContentProviderOperation> operations,
+            int entryCount) {
+        mHandledCount += entryCount;
+        if (operations == null || operations.isEmpty()) {
+            mBatchNanos = 0;
+            notifyBatchCommitted(null);
+            return;
+        }
+        Uri createdUri = null;
+        final long start = System.nanoTime();
+        try {
+            final ContentProviderResult[] results =
+                    mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            // The first result is always the raw contact of the first entry. Check for null
+            // in case of a badly behaving provider.
+            if (results != null && results.length > 0 && results[0] != null
+                    && results[0].uri != null) {
+                createdUri = results[0].uri;
+                mCreatedUris.add(createdUri);
+            }
+            mCommittedCount += entryCount;
+            for (BatchPhoto batchPhoto : mBatchPhotos) {
+                final int index = batchPhoto.rawContactIndex;
+                if (results != null && index < results.length && results[index] != null
+                        && results[index].uri != null) {
+                    writeDisplayPhoto(results[index].uri, batchPhoto.photo);
+                }
+            }
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        for (BatchPhoto batchPhoto : mBatchPhotos) {
+            batchPhoto.photo.delete();
+        }
+        mBatchPhotos.clear();
+        if (mTimings != null) {
+            mTimings.record(VCardStageTimings.STAGE_COMMIT_BATCH,
+                    mBatchNanos + System.nanoTime() - start);
+        }
+        mBatchNanos = 0;
+        notifyBatchCommitted(createdUri);
+    }
+
+    /**
+     * Streams the photo to the display photo of the raw contact, which the provider also
+     * scales down to its thumbnail.
+     */
+    private void writeDisplayPhoto(Uri rawContactUri, File photo) {
+        final Uri uri = Uri.withAppendedPath(rawContactUri,
+                RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            final AssetFileDescriptor fd = mResolver.openAssetFileDescriptor(uri, "rw");
+            if (fd == null) {
+                Log.w(LOG_TAG, "Cannot write the photo of " + rawContactUri);
+                return;
+            }
+            out = fd.createOutputStream();
+            in = new FileInputStream(photo);
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write the photo of " + rawContactUri, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void notifyBatchCommitted(Uri createdUri) {
+        if (mBatchListener != null) {
+            mBatchListener.onBatchCommitted(mHandledCount, createdUri);
+        }
+    }
+}
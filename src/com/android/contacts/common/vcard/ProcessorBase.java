@@ -22,7 +22,8 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * A base processor class. One instance processes vCard one import/export request (imports a given
- * vCard or exports a vCard). Expected to be used with {@link ExecutorService}.
+ * vCard or exports a vCard). Expected to be used with {@link ExecutorService}, or with
+ * {@link VCardJobScheduler}.
  *
  * This instance starts itself with {@link #run()} method, and can be cancelled with
  * {@link #cancel(boolean)}. Users can check the processor's status using {@link #isCancelled()}
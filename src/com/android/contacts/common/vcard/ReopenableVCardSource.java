@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads vCard sources that can be read more than once in place, instead of copying them to
+ * the cache first. A source qualifies if it opens as a regular file: a local file, or a
+ * content uri whose provider hands out a seekable descriptor. Pipes and sockets, which can
+ * only be read once, still have to be copied.
+ *
+ * The open descriptor also keeps the source readable for {@link VCardService} after the
+ * permission granted to {@link ImportVCardActivity} for the uri is gone.
+ */
+/* package */ class ReopenableVCardSource {
+    private static final String LOG_TAG = "VCardImport";
+
+    /**
+     * Sources up to this size are memory-mapped; bigger ones are read through the file
+     * channel, so as not to take up too much address space.
+     */
+    private static final long MAX_MAPPED_LENGTH = 32 * 1024 * 1024;
+
+    private ReopenableVCardSource() {
+    }
+
+    /**
+     * Opens the uri if it can be read in place.
+     *
+     * @return a descriptor of a regular file, or null if the source has to be copied.
+     */
+    public static ParcelFileDescriptor open(ContentResolver resolver, Uri uri) {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = resolver.openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            // Thrown by some providers that only support openInputStream().
+            return null;
+        }
+        if (descriptor == null) {
+            return null;
+        }
+        // Only regular files have a size; pipes and sockets report -1.
+        if (descriptor.getStatSize() < 0) {
+            Log.i(LOG_TAG, "Source cannot be read in place: " + uri);
+            closeQuietly(descriptor);
+            return null;
+        }
+        return descriptor;
+    }
+
+    /**
+     * Opens a stream over the whole content of the descriptor, from its first byte. May be
+     * called any number of times; closing the stream leaves the descriptor open.
+     */
+    public static InputStream openStream(ParcelFileDescriptor descriptor) throws IOException {
+        // Each stream reads from its own copy of the descriptor, so that closing it does not
+        // close the original.
+        final FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(
+                descriptor.dup());
+        final FileChannel channel = in.getChannel();
+        boolean handedOff = false;
+        try {
+            final long length = channel.size();
+            if (length <= MAX_MAPPED_LENGTH) {
+                // The mapping stays valid after the channel is closed.
+                return new ByteBufferInputStream(
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+            }
+            channel.position(0);
+            handedOff = true;
+            return in;
+        } finally {
+            if (!handedOff) {
+                in.close();
+            }
+        }
+    }
+
+    public static void closeQuietly(ParcelFileDescriptor descriptor) {
+        if (descriptor == null) {
+            return;
+        }
+        try {
+            descriptor.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Reads a mapped file without copying it onto the heap first.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            final int read = Math.min(count, mBuffer.remaining());
+            mBuffer.get(buffer, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long count) {
+            final int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
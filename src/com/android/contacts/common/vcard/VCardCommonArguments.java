@@ -24,4 +24,9 @@ public class VCardCommonArguments {
     // Argument used to pass calling activities to the target activity or service.
     // The value should be a string class name (e.g. com.android.contacts.vcard.VCardCommonArgs)
     public static final String ARG_CALLING_ACTIVITY = "CALLING_ACTIVITY";
+
+    // Argument used to tell ImportVCardActivity what to do with entries that duplicate existing
+    // contacts. The value should be one of ImportRequest.DEDUPE_NONE, DEDUPE_SKIP and
+    // DEDUPE_MERGE.
+    public static final String ARG_DEDUPE_MODE = "DEDUPE_MODE";
 }
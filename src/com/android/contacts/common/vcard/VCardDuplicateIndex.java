@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.util.PhoneNumberHelper;
+import com.android.vcard.VCardEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the existing raw contacts of an account that vCard entries duplicate. An entry
+ * duplicates a raw contact if both have the same display name and share a phone number or an
+ * email address, or if neither has a phone number or an email address and they have the same
+ * display name. A name alone does not tell apart two people called "John Smith" otherwise.
+ * The display name of a raw contact is that of its own structured name, not that of the
+ * contact it is aggregated into.
+ *
+ * The index is built with a single query over the data of the account, and keeps a 64-bit
+ * hash of each name/number and name/address pair rather than the strings themselves, in an
+ * open addressing table of primitive longs.
+ */
+/* package */ class VCardDuplicateIndex {
+    private static final String LOG_TAG = "VCardImport";
+
+    /** Returned by {@link #findDuplicate} for entries without a duplicate. */
+    public static final long NO_DUPLICATE = -1;
+
+    /* package */ static final String[] PROJECTION = new String[] {
+            Data.RAW_CONTACT_ID,
+            Data.MIMETYPE,
+            Data.DATA1,
+    };
+    private static final int RAW_CONTACT_ID = 0;
+    private static final int MIMETYPE = 1;
+    /** {@link StructuredName#DISPLAY_NAME}, {@link Phone#NUMBER} or {@link Email#ADDRESS}. */
+    private static final int DATA1 = 2;
+
+    /* package */ static final char KIND_NAME = 'n';
+    /* package */ static final char KIND_PHONE = 'p';
+    /* package */ static final char KIND_EMAIL = 'e';
+
+    /** Marks the free slots of {@link #mKeys}; {@link #hash} never returns it. */
+    private static final long EMPTY_KEY = 0;
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Key hashes, at the slot their probe sequence starts at or after. */
+    private long[] mKeys = new long[INITIAL_CAPACITY];
+    /** The raw contact id of the key at the same slot of {@link #mKeys}. */
+    private long[] mRawContactIds = new long[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Reads the names, phone numbers and email addresses of the raw contacts in the account.
+     *
+     * @param account null for the raw contacts without an account.
+     */
+    public static VCardDuplicateIndex load(ContentResolver resolver, Account account) {
+        final VCardDuplicateIndex index = new VCardDuplicateIndex();
+        final StringBuilder selection = new StringBuilder();
+        selection.append(Data.MIMETYPE).append(" IN (?,?,?) AND ");
+        final String[] selectionArgs;
+        if (account != null) {
+            selection.append(RawContacts.ACCOUNT_NAME).append("=? AND ")
+                    .append(RawContacts.ACCOUNT_TYPE).append("=?");
+            selectionArgs = new String[] {StructuredName.CONTENT_ITEM_TYPE,
+                    Phone.CONTENT_ITEM_TYPE, Email.CONTENT_ITEM_TYPE, account.name, account.type};
+        } else {
+            selection.append(RawContacts.ACCOUNT_NAME).append(" IS NULL AND ")
+                    .append(RawContacts.ACCOUNT_TYPE).append(" IS NULL");
+            selectionArgs = new String[] {StructuredName.CONTENT_ITEM_TYPE,
+                    Phone.CONTENT_ITEM_TYPE, Email.CONTENT_ITEM_TYPE};
+        }
+        // The rows of a raw contact come together, so that its phone numbers and email
+        // addresses can be keyed by the name of the raw contact itself.
+        final Cursor cursor = resolver.query(Data.CONTENT_URI, PROJECTION, selection.toString(),
+                selectionArgs, Data.RAW_CONTACT_ID);
+        if (cursor == null) {
+            Log.w(LOG_TAG, "Failed to read the existing contacts; no duplicate is detected");
+            return index;
+        }
+        try {
+            index.addRows(cursor);
+        } finally {
+            cursor.close();
+        }
+        Log.i(LOG_TAG, "Indexed " + index.mSize + " keys of existing contacts");
+        return index;
+    }
+
+    /**
+     * Adds the rows of a cursor with the columns of {@link #PROJECTION}, sorted by raw contact.
+     */
+    /* package */ void addRows(Cursor cursor) {
+        // The phone numbers and email addresses of the current raw contact, which may come
+        // before its name.
+        final List<String> phones = new ArrayList<String>();
+        final List<String> emails = new ArrayList<String>();
+        long currentRawContactId = -1;
+        String displayName = null;
+        while (cursor.moveToNext()) {
+            final long rawContactId = cursor.getLong(RAW_CONTACT_ID);
+            if (rawContactId != currentRawContactId) {
+                putRawContact(currentRawContactId, displayName, phones, emails);
+                currentRawContactId = rawContactId;
+                displayName = null;
+            }
+            final String mimeType = cursor.getString(MIMETYPE);
+            final String data = cursor.getString(DATA1);
+            if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                displayName = data;
+            } else if (Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                phones.add(normalizePhone(data));
+            } else {
+                emails.add(normalizeEmail(data));
+            }
+        }
+        putRawContact(currentRawContactId, displayName, phones, emails);
+    }
+
+    /**
+     * Adds the keys of one raw contact, and clears the lists of its numbers and addresses.
+     * The name alone is a key only of raw contacts without numbers and addresses.
+     */
+    private void putRawContact(long rawContactId, String displayName, List<String> phones,
+            List<String> emails) {
+        if (displayName != null) {
+            boolean hasKeys = false;
+            for (int i = 0; i < phones.size(); i++) {
+                hasKeys |= put(KIND_PHONE, displayName, phones.get(i), rawContactId);
+            }
+            for (int i = 0; i < emails.size(); i++) {
+                hasKeys |= put(KIND_EMAIL, displayName, emails.get(i), rawContactId);
+            }
+            if (!hasKeys) {
+                put(KIND_NAME, displayName, null, rawContactId);
+            }
+        }
+        phones.clear();
+        emails.clear();
+    }
+
+    /**
+     * Returns the id of a raw contact that the entry duplicates, or {@link #NO_DUPLICATE}.
+     */
+    public long findDuplicate(VCardEntry entry) {
+        final String displayName = entry.getDisplayName();
+        boolean hasKeys = false;
+        final List<VCardEntry.PhoneData> phones = entry.getPhoneList();
+        if (phones != null) {
+            for (VCardEntry.PhoneData phone : phones) {
+                final String number = normalizePhone(phone.getNumber());
+                if (!TextUtils.isEmpty(number)) {
+                    hasKeys = true;
+                    final long rawContactId = get(KIND_PHONE, displayName, number);
+                    if (rawContactId != NO_DUPLICATE) {
+                        return rawContactId;
+                    }
+                }
+            }
+        }
+        final List<VCardEntry.EmailData> emails = entry.getEmailList();
+        if (emails != null) {
+            for (VCardEntry.EmailData email : emails) {
+                final String address = normalizeEmail(email.getAddress());
+                if (!TextUtils.isEmpty(address)) {
+                    hasKeys = true;
+                    final long rawContactId = get(KIND_EMAIL, displayName, address);
+                    if (rawContactId != NO_DUPLICATE) {
+                        return rawContactId;
+                    }
+                }
+            }
+        }
+        if (!hasKeys) {
+            // Only raw contacts without numbers and addresses are keyed by their name alone.
+            return get(KIND_NAME, displayName, null);
+        }
+        return NO_DUPLICATE;
+    }
+
+    /**
+     * @return false if there is no key to add, as the name or the value is empty.
+     */
+    /* package */ boolean put(char kind, String displayName, String value, long rawContactId) {
+        if (TextUtils.isEmpty(displayName) || (kind != KIND_NAME && TextUtils.isEmpty(value))) {
+            return false;
+        }
+        final long key = hash(kind, displayName, value);
+        int slot = findSlot(mKeys, key);
+        if (mKeys[slot] == EMPTY_KEY) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                // At most half full, so that probe sequences stay short.
+                grow();
+                slot = findSlot(mKeys, key);
+            }
+            mKeys[slot] = key;
+            mSize++;
+        }
+        mRawContactIds[slot] = rawContactId;
+        return true;
+    }
+
+    private long get(char kind, String displayName, String value) {
+        if (TextUtils.isEmpty(displayName)) {
+            return NO_DUPLICATE;
+        }
+        final int slot = findSlot(mKeys, hash(kind, displayName, value));
+        return mKeys[slot] == EMPTY_KEY ? NO_DUPLICATE : mRawContactIds[slot];
+    }
+
+    /* package */ int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the slot of the key in the table, or the free slot where it would be added.
+     */
+    private static int findSlot(long[] keys, long key) {
+        final int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[slot] != EMPTY_KEY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        final long[] keys = new long[mKeys.length * 2];
+        final long[] rawContactIds = new long[keys.length];
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != EMPTY_KEY) {
+                final int slot = findSlot(keys, mKeys[i]);
+                keys[slot] = mKeys[i];
+                rawContactIds[slot] = mRawContactIds[i];
+            }
+        }
+        mKeys = keys;
+        mRawContactIds = rawContactIds;
+    }
+
+    private static String normalizePhone(String number) {
+        return TextUtils.isEmpty(number) ? null : PhoneNumberHelper.normalizeNumber(number);
+    }
+
+    private static String normalizeEmail(String address) {
+        return TextUtils.isEmpty(address) ? null : address.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the kind, the display name, ignoring case, and the value. Never
+     * {@link #EMPTY_KEY}.
+     */
+    private static long hash(char kind, String displayName, String value) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ kind) * 0x100000001b3L;
+        final String name = displayName.trim().toLowerCase(Locale.getDefault());
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ name.charAt(i)) * 0x100000001b3L;
+        }
+        if (value != null) {
+            hash = (hash ^ '\0') * 0x100000001b3L;
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return hash == EMPTY_KEY ? 1 : hash;
+    }
+}
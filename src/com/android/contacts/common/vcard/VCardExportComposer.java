@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import android.content.Context;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContactsEntity;
+import android.util.Log;
+
+import com.android.vcard.VCardComposer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Composes the vCards of the contacts to export and writes them in the order of their ids,
+ * either with one {@link VCardComposer}, or on several threads that compose shards of
+ * consecutive contacts with a composer each. Both ways write the same bytes.
+ */
+/* package */ class VCardExportComposer {
+    private static final String LOG_TAG = "VCardExport";
+
+    /** The order in which contacts are exported, and in which their ids are queried. */
+    public static final String SORT_ORDER = Contacts._ID;
+
+    /** The number of contacts composed together. */
+    /* package */ static final int SHARD_SIZE = 100;
+
+    /**
+     * Told how far the export has come, and asked whether it should go on.
+     */
+    public interface Callback {
+        boolean isCancelled();
+
+        /** Called on the writing thread each time contacts have been written. */
+        void onWritten(int writtenCount, int totalCount);
+    }
+
+    /** Thrown when a composer cannot be initialized, with its error reason. */
+    public static class ComposerException extends Exception {
+        public ComposerException(String errorReason) {
+            super(errorReason);
+        }
+    }
+
+    private final Context mContext;
+    private final int mVCardType;
+    private final VCardStageTimings mTimings;
+    private final Callback mCallback;
+
+    public VCardExportComposer(Context context, int vcardType, VCardStageTimings timings,
+            Callback callback) {
+        mContext = context;
+        mVCardType = vcardType;
+        mTimings = timings;
+        mCallback = callback;
+    }
+
+    /**
+     * Composes and writes the contacts that match the selection with one composer.
+     *
+     * @return the number of contacts written, or -1 if the export was cancelled.
+     */
+    public int composeSerially(String selection, String[] selectionArgs, Writer writer)
+            throws ComposerException, IOException {
+        final VCardComposer composer = new VCardComposer(mContext, mVCardType, true);
+        try {
+            if (!composer.init(Contacts.CONTENT_URI, new String[] {Contacts._ID}, selection,
+                    selectionArgs, SORT_ORDER, RawContactsEntity.CONTENT_URI)) {
+                throw new ComposerException(composer.getErrorReason());
+            }
+            final int total = composer.getCount();
+            int current = 0;
+            while (!composer.isAfterLast()) {
+                if (mCallback.isCancelled()) {
+                    return -1;
+                }
+                final long composeStart = System.nanoTime();
+                final String vcard = composer.createOneEntry();
+                final long writeStart = System.nanoTime();
+                mTimings.record(VCardStageTimings.STAGE_COMPOSE, writeStart - composeStart);
+                writer.write(vcard);
+                mTimings.record(VCardStageTimings.STAGE_WRITE, System.nanoTime() - writeStart);
+                current++;
+                mCallback.onWritten(current, total);
+            }
+            return current;
+        } finally {
+            composer.terminate();
+        }
+    }
+
+    /**
+     * Composes the given contacts on up to {@code threadCount} threads and writes them in
+     * order. At most two shards per thread are composed ahead of the writer.
+     *
+     * @param contactIds the contacts to export, in {@link #SORT_ORDER}.
+     * @return false if the export was cancelled.
+     */
+    public boolean composeInParallel(final long[] contactIds, int threadCount, Writer writer)
+            throws ComposerException, IOException {
+        final int total = contactIds.length;
+        Log.i(LOG_TAG, "Exporting " + total + " contacts on " + threadCount + " threads");
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final ArrayDeque<Future<String>> shards = new ArrayDeque<Future<String>>();
+        int nextShardStart = 0;
+        int written = 0;
+        try {
+            while (written < total) {
+                while (nextShardStart < total && shards.size() < threadCount * 2) {
+                    final int start = nextShardStart;
+                    final int end = Math.min(total, start + SHARD_SIZE);
+                    shards.add(executor.submit(new Callable<String>() {
+                        @Override
+                        public String call() throws ComposerException {
+                            return composeShard(contactIds, start, end);
+                        }
+                    }));
+                    nextShardStart = end;
+                }
+                final String shard;
+                try {
+                    shard = shards.poll().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof ComposerException) {
+                        throw (ComposerException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    Log.w(LOG_TAG, "Interrupted while waiting for composed contacts");
+                    return false;
+                }
+                if (shard == null || mCallback.isCancelled()) {
+                    return false;
+                }
+                final long writeStart = System.nanoTime();
+                writer.write(shard);
+                mTimings.record(VCardStageTimings.STAGE_WRITE, System.nanoTime() - writeStart);
+                written = Math.min(total, written + SHARD_SIZE);
+                mCallback.onWritten(written, total);
+            }
+            return true;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Composes the given range of contacts, in the order of the serial export.
+     *
+     * @return the vCards, or null if the export has been cancelled.
+     */
+    private String composeShard(long[] contactIds, int start, int end)
+            throws ComposerException {
+        final Set<Long> shardIds = new HashSet<Long>();
+        for (int i = start; i < end; i++) {
+            shardIds.add(contactIds[i]);
+        }
+        final List<String> selectionArgs = new ArrayList<String>();
+        final String selection = ExportProcessor.buildSelection(shardIds, false,
+                ExportRequest.NO_TIMESTAMP, selectionArgs);
+        final VCardComposer composer = new VCardComposer(mContext, mVCardType, true);
+        try {
+            if (!composer.init(Contacts.CONTENT_URI, new String[] {Contacts._ID}, selection,
+                    null, SORT_ORDER, RawContactsEntity.CONTENT_URI)) {
+                if (VCardComposer.FAILURE_REASON_NO_ENTRY.equals(composer.getErrorReason())) {
+                    // The contacts of the shard have been deleted since their ids were read.
+                    return "";
+                }
+                throw new ComposerException(composer.getErrorReason());
+            }
+            final StringBuilder builder = new StringBuilder();
+            while (!composer.isAfterLast()) {
+                if (mCallback.isCancelled()) {
+                    return null;
+                }
+                final long composeStart = System.nanoTime();
+                builder.append(composer.createOneEntry());
+                mTimings.record(VCardStageTimings.STAGE_COMPOSE, System.nanoTime() - composeStart);
+            }
+            return builder.toString();
+        } finally {
+            composer.terminate();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Finds the vCard files under a directory. Directories are listed on several threads, and the
+ * result is kept in an index file: later scans only list again the directories whose
+ * modification time has changed, which is when files were added, removed or renamed in them.
+ * Directories that have not changed are still looked at, to find out about their
+ * subdirectories, but that takes one stat instead of a listing and a canonical path per file.
+ */
+/* package */ class VCardFileScanner {
+    private static final String LOG_TAG = "VCardImport";
+
+    private static final int THREAD_COUNT = 4;
+
+    /**
+     * Directories changed this shortly before a scan may change again within the same
+     * modification time, and are listed again by the next scan whatever their time.
+     */
+    private static final long MODIFICATION_TIME_GRANULARITY_MILLIS = 2000;
+
+    /** Version of the format of the index file. */
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * A vCard file that was found.
+     */
+    public static class FoundFile {
+        public final String name;
+        public final String canonicalPath;
+        public final long lastModified;
+
+        public FoundFile(String name, String canonicalPath, long lastModified) {
+            this.name = name;
+            this.canonicalPath = canonicalPath;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * What the index remembers about one directory.
+     */
+    private static class DirectoryEntry {
+        final long lastModified;
+        /** Canonical paths of the vCard files in the directory. */
+        final List<String> files;
+        /** Canonical paths of the subdirectories. */
+        final List<String> subdirectories;
+
+        public DirectoryEntry(long lastModified, List<String> files,
+                List<String> subdirectories) {
+            this.lastModified = lastModified;
+            this.files = files;
+            this.subdirectories = subdirectories;
+        }
+    }
+
+    private final File mRootDirectory;
+    private final File mIndexFile;
+    private final String mQuietDirectoryName;
+    private String mQuietDirectoryPath;
+
+    /** The index of the last scan, by canonical directory path. Read only during a scan. */
+    private Map<String, DirectoryEntry> mOldIndex;
+    private final Map<String, DirectoryEntry> mNewIndex =
+            new ConcurrentHashMap<String, DirectoryEntry>();
+    /** Canonical paths seen so far, so as not to follow links in circles. */
+    private final Set<String> mCheckedPaths =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final List<FoundFile> mFoundFiles =
+            Collections.synchronizedList(new ArrayList<FoundFile>());
+
+    private long mScanStartMillis;
+    private ExecutorService mExecutor;
+    /** Number of directories queued or being visited. Guarded by this. */
+    private int mPendingCount;
+    private IOException mFailure;
+    private volatile boolean mCanceled;
+
+    /**
+     * @param indexFile where the index is kept between scans.
+     * @param quietDirectoryName name of a directory under the root that is known not to be
+     * readable, and not worth a warning.
+     */
+    public VCardFileScanner(File rootDirectory, File indexFile, String quietDirectoryName) {
+        mRootDirectory = rootDirectory;
+        mIndexFile = indexFile;
+        mQuietDirectoryName = quietDirectoryName;
+    }
+
+    /**
+     * Makes {@link #scan()} return as soon as possible. May be called from any thread.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * Finds the vCard files, sorted by path. Must be called once only.
+     *
+     * @return the files, or null if the scan was canceled.
+     * @throws IOException if the canonical path of a file could not be found.
+     */
+    public List<FoundFile> scan() throws IOException {
+        mScanStartMillis = System.currentTimeMillis();
+        final String rootPath = mRootDirectory.getCanonicalPath();
+        mQuietDirectoryPath = new File(rootPath, mQuietDirectoryName).getPath();
+        mOldIndex = readIndex(rootPath);
+        mExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            mCheckedPaths.add(rootPath);
+            submit(rootPath);
+            synchronized (this) {
+                while (mPendingCount > 0 && mFailure == null && !mCanceled) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        mCanceled = true;
+                    }
+                }
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+            }
+        } finally {
+            mExecutor.shutdownNow();
+        }
+        if (mCanceled) {
+            return null;
+        }
+        writeIndex(rootPath);
+
+        final List<FoundFile> files = new ArrayList<FoundFile>(mFoundFiles);
+        Collections.sort(files, new Comparator<FoundFile>() {
+            @Override
+            public int compare(FoundFile lhs, FoundFile rhs) {
+                return lhs.canonicalPath.compareTo(rhs.canonicalPath);
+            }
+        });
+        return files;
+    }
+
+    private void submit(final String directoryPath) {
+        synchronized (this) {
+            mPendingCount++;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!mCanceled) {
+                            visit(directoryPath);
+                        }
+                    } catch (IOException e) {
+                        synchronized (VCardFileScanner.this) {
+                            if (mFailure == null) {
+                                mFailure = e;
+                            }
+                        }
+                    } finally {
+                        onVisitDone();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The scan is over, because it was canceled or has failed.
+            onVisitDone();
+        }
+    }
+
+    private synchronized void onVisitDone() {
+        mPendingCount--;
+        notifyAll();
+    }
+
+    private void visit(String directoryPath) throws IOException {
+        final File directory = new File(directoryPath);
+        final long lastModified = directory.lastModified();
+        final DirectoryEntry known = mOldIndex.get(directoryPath);
+        if (known != null && lastModified != 0 && known.lastModified == lastModified) {
+            for (String path : known.files) {
+                if (mCheckedPaths.add(path)) {
+                    addIfReadable(new File(path), path);
+                }
+            }
+            for (String path : known.subdirectories) {
+                if (mCheckedPaths.add(path)) {
+                    submit(path);
+                }
+            }
+            mNewIndex.put(directoryPath, known);
+            return;
+        }
+
+        // e.g. secured directory may return null toward listFiles().
+        final File[] children = directory.listFiles();
+        if (children == null) {
+            if (!directoryPath.equals(mQuietDirectoryPath)) {
+                Log.w(LOG_TAG, "listFiles() returned null (directory: " + directory + ")");
+            }
+            return;
+        }
+        final List<String> files = new ArrayList<String>();
+        final List<String> subdirectories = new ArrayList<String>();
+        for (File child : children) {
+            if (mCanceled) {
+                return;
+            }
+            final String canonicalPath = child.getCanonicalPath();
+            if (child.isDirectory()) {
+                subdirectories.add(canonicalPath);
+                if (mCheckedPaths.add(canonicalPath)) {
+                    submit(canonicalPath);
+                }
+            } else if (canonicalPath.toLowerCase(Locale.US).endsWith(".vcf")) {
+                files.add(canonicalPath);
+                if (mCheckedPaths.add(canonicalPath)) {
+                    addIfReadable(child, canonicalPath);
+                }
+            }
+        }
+        // 0 makes the next scan list the directory again.
+        final boolean mayChangeUnnoticed = lastModified
+                >= mScanStartMillis - MODIFICATION_TIME_GRANULARITY_MILLIS;
+        mNewIndex.put(directoryPath, new DirectoryEntry(mayChangeUnnoticed ? 0 : lastModified,
+                files, subdirectories));
+    }
+
+    private void addIfReadable(File file, String canonicalPath) {
+        if (file.canRead()) {
+            mFoundFiles.add(new FoundFile(file.getName(), canonicalPath, file.lastModified()));
+        }
+    }
+
+    /**
+     * Returns the index of the last scan of the root, or an empty index if there is none.
+     */
+    private Map<String, DirectoryEntry> readIndex(String rootPath) {
+        final Map<String, DirectoryEntry> index = new HashMap<String, DirectoryEntry>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+            if (in.readInt() != INDEX_VERSION || !rootPath.equals(in.readUTF())) {
+                return index;
+            }
+            final int directoryCount = in.readInt();
+            for (int i = 0; i < directoryCount; i++) {
+                final String path = in.readUTF();
+                final long lastModified = in.readLong();
+                final List<String> files = readPaths(in);
+                final List<String> subdirectories = readPaths(in);
+                index.put(path, new DirectoryEntry(lastModified, files, subdirectories));
+            }
+        } catch (FileNotFoundException e) {
+            // First scan.
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Ignoring a broken index of vCard files", e);
+            index.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return index;
+    }
+
+    private static List<String> readPaths(DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        final List<String> paths = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            paths.add(in.readUTF());
+        }
+        return paths;
+    }
+
+    /**
+     * Writes the index of this scan. Written to a temporary file first, so that a scan that
+     * is interrupted does not leave a broken index behind.
+     */
+    private void writeIndex(String rootPath) {
+        final File tempFile = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(rootPath);
+            out.writeInt(mNewIndex.size());
+            for (Map.Entry<String, DirectoryEntry> entry : mNewIndex.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().lastModified);
+                writePaths(out, entry.getValue().files);
+                writePaths(out, entry.getValue().subdirectories);
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(mIndexFile)) {
+                Log.w(LOG_TAG, "Failed to save the index of vCard files");
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to save the index of vCard files", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+            tempFile.delete();
+        }
+    }
+
+    private static void writePaths(DataOutputStream out, List<String> paths) throws IOException {
+        out.writeInt(paths.size());
+        for (String path : paths) {
+            out.writeUTF(path);
+        }
+    }
+}
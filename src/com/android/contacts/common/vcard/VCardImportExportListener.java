@@ -22,9 +22,19 @@ import com.android.vcard.VCardEntry;
 
 interface VCardImportExportListener {
     void onImportProcessed(ImportRequest request, int jobId, int sequence);
+    /**
+     * Called with the latest entry a few times a second at most, rather than for each entry.
+     *
+     * @param progress the throughput of the import so far.
+     */
     void onImportParsed(ImportRequest request, int jobId, VCardEntry entry, int currentCount,
-            int totalCount);
-    void onImportFinished(ImportRequest request, int jobId, Uri uri);
+            int totalCount, VCardProgressReporter progress);
+    /**
+     * @param skippedCount the number of entries skipped as duplicates of existing contacts.
+     * @param mergedCount the number of entries joined to the existing contacts they duplicate.
+     */
+    void onImportFinished(ImportRequest request, int jobId, Uri uri, int skippedCount,
+            int mergedCount);
     void onImportFailed(ImportRequest request);
     void onImportCanceled(ImportRequest request, int jobId);
 
@@ -32,5 +42,12 @@ interface VCardImportExportListener {
     void onExportFailed(ExportRequest request);
 
     void onCancelRequest(CancelRequest request, int type);
+    /**
+     * Called from the thread of a job once it ends, whether it succeeded or not.
+     *
+     * @param type {@link VCardService#TYPE_IMPORT} or {@link VCardService#TYPE_EXPORT}.
+     * @param timings how long each stage of the job took.
+     */
+    void onStageTimings(int type, int jobId, VCardStageTimings timings);
     void onComplete();
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs import and export jobs for {@link VCardService}. Jobs run concurrently, up to a fixed
+ * number at a time, except for jobs that share a conflict key, e.g. imports into the same
+ * account: those run one after the other, in the order they were submitted. Among the jobs
+ * that can start, the one with the highest priority goes first.
+ *
+ * Cancelled jobs are started as soon as a slot is free, regardless of their key, so that they
+ * can report their cancellation without waiting for the job they conflict with.
+ */
+/* package */ class VCardJobScheduler {
+    private static final String LOG_TAG = "VCardService";
+
+    /** For jobs a user waits for, like small in-memory imports. */
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+
+    private final int mMaxConcurrentJobs;
+    private final ExecutorService mExecutor;
+
+    /** Jobs waiting to start. Guarded by this. */
+    private final PriorityQueue<Job> mPendingJobs = new PriorityQueue<Job>();
+    /** Conflict keys of the running jobs. Guarded by this. */
+    private final Set<Object> mRunningKeys = new HashSet<Object>();
+    private int mRunningCount;
+    private int mNextSequence;
+    private boolean mShutdown;
+
+    private class Job implements Runnable, Comparable<Job> {
+        final ProcessorBase mProcessor;
+        final Object mConflictKey;
+        final int mPriority;
+        final int mSequence;
+        /** Whether the job holds its conflict key while it runs. */
+        boolean mHoldsKey;
+
+        public Job(ProcessorBase processor, Object conflictKey, int priority, int sequence) {
+            mProcessor = processor;
+            mConflictKey = conflictKey;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Job another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            try {
+                mProcessor.run();
+            } finally {
+                onJobFinished(this);
+            }
+        }
+    }
+
+    public VCardJobScheduler(int maxConcurrentJobs) {
+        mMaxConcurrentJobs = maxConcurrentJobs;
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(maxConcurrentJobs, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "VCardJob-" + threadCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Queues a job.
+     *
+     * @param conflictKey jobs with equal keys never run at the same time. Null if the job does
+     * not conflict with any other.
+     * @throws RejectedExecutionException after {@link #shutdown()}.
+     */
+    public synchronized void submit(ProcessorBase processor, Object conflictKey, int priority) {
+        if (mShutdown) {
+            throw new RejectedExecutionException("Scheduler is shut down");
+        }
+        mPendingJobs.add(new Job(processor, conflictKey, priority, mNextSequence++));
+        dispatchLocked();
+    }
+
+    /**
+     * Cancels a job, and lets it start right away if it was waiting for a conflicting job, so
+     * that it can finish.
+     */
+    public synchronized boolean cancel(ProcessorBase processor) {
+        final boolean cancelled = processor.cancel(true);
+        dispatchLocked();
+        return cancelled;
+    }
+
+    /**
+     * Cancels the waiting jobs too; jobs that are running finish as usual. No jobs are accepted
+     * afterwards.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        for (Job job : mPendingJobs) {
+            job.mProcessor.cancel(true);
+        }
+        // The cancelled jobs still start, to report their cancellation.
+        dispatchLocked();
+    }
+
+    public synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    private synchronized void onJobFinished(Job job) {
+        mRunningCount--;
+        if (job.mHoldsKey) {
+            mRunningKeys.remove(job.mConflictKey);
+        }
+        dispatchLocked();
+    }
+
+    /**
+     * Starts waiting jobs, by priority, until all slots are taken. Jobs whose key is in use
+     * stay in the queue, but do not block the jobs behind them.
+     */
+    private void dispatchLocked() {
+        // The keys of waiting jobs that are skipped, so that a later job with the same key
+        // does not overtake an earlier one.
+        final Set<Object> skippedKeys = new HashSet<Object>();
+        final PriorityQueue<Job> candidates = new PriorityQueue<Job>(mPendingJobs);
+        while (mRunningCount < mMaxConcurrentJobs && !candidates.isEmpty()) {
+            final Job job = candidates.poll();
+            final Object key = job.mConflictKey;
+            final boolean cancelled = job.mProcessor.isCancelled();
+            if (!cancelled && key != null
+                    && (mRunningKeys.contains(key) || skippedKeys.contains(key))) {
+                skippedKeys.add(key);
+                continue;
+            }
+            mPendingJobs.remove(job);
+            mRunningCount++;
+            if (!cancelled && key != null) {
+                mRunningKeys.add(key);
+                job.mHoldsKey = true;
+            }
+            if (VCardService.DEBUG) Log.d(LOG_TAG, "Starting job with key " + key);
+            if (!startLocked(job)) {
+                return;
+            }
+        }
+        if (mShutdown && mPendingJobs.isEmpty()) {
+            // Lets the threads go once the running jobs are done.
+            mExecutor.shutdown();
+        }
+    }
+
+    private boolean startLocked(Job job) {
+        try {
+            mExecutor.execute(job);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "Failed to start a job", e);
+            mRunningCount--;
+            if (job.mHoldsKey) {
+                mRunningKeys.remove(job.mConflictKey);
+            }
+            return false;
+        }
+    }
+
+    /** Returns the number of jobs that wait to start. */
+    public synchronized int getPendingCount() {
+        return mPendingJobs.size();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import android.util.Log;
+
+import com.android.vcard.VCardConstants;
+import com.android.vcard.VCardEntryConstructor;
+import com.android.vcard.VCardInterpreter;
+import com.android.vcard.VCardProperty;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Passes what the parser reads on to a {@link VCardEntryConstructor}, but for photos larger
+ * than a threshold, which are written to temporary files instead of being kept in the entries.
+ * {@link PipelinedEntryCommitter} takes the file of each entry with {@link #takePendingPhoto}
+ * and streams it to the display photo of the raw contact the entry creates. Large photos thus
+ * do not pile up in the queue of the committer and in its batches, and the heap used by an
+ * import does not grow with the size of the photos in it.
+ *
+ * Only the first large photo of an entry is kept, as a raw contact has one display photo.
+ * Photos of nested entries (e.g. AGENT) are kept in memory.
+ *
+ * Used by the thread of the parser only.
+ */
+/* package */ class VCardPhotoSpiller implements VCardInterpreter {
+    private static final String LOG_TAG = "VCardImport";
+
+    /** Prefix of the directories of temporary photos, one per import, in the cache dir. */
+    private static final String DIRECTORY_PREFIX = "vcard_photos_";
+
+    private final VCardEntryConstructor mConstructor;
+    private final File mDirectory;
+    private final int mThresholdBytes;
+
+    /** Nesting of the current entry. */
+    private int mDepth;
+    /** The photo of the current entry that was written to a file, if any. */
+    private File mPendingPhoto;
+
+    /**
+     * @param directory where the photos are written. Created when needed.
+     * @param thresholdBytes photos of more bytes than this are written to files.
+     */
+    public VCardPhotoSpiller(VCardEntryConstructor constructor, File directory,
+            int thresholdBytes) {
+        mConstructor = constructor;
+        mDirectory = directory;
+        mThresholdBytes = thresholdBytes;
+    }
+
+    /**
+     * Returns the directory of the temporary photos of an import job.
+     */
+    public static File getDirectory(File cacheDirectory, int jobId) {
+        return new File(cacheDirectory, DIRECTORY_PREFIX + jobId);
+    }
+
+    /**
+     * Deletes the temporary photos that imports may have left behind, e.g. when their process
+     * was killed. Must not be called while an import runs.
+     */
+    public static void deleteAllDirectories(File cacheDirectory) {
+        final File[] files = cacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(DIRECTORY_PREFIX)) {
+                deleteDirectory(file);
+            }
+        }
+    }
+
+    /**
+     * Returns the file of the large photo of the entry that is being created, or null if it
+     * has none. Once taken, deleting the file is up to the caller.
+     */
+    public File takePendingPhoto() {
+        if (mDepth != 1) {
+            // A nested entry; the photo is that of the entry around it.
+            return null;
+        }
+        final File photo = mPendingPhoto;
+        mPendingPhoto = null;
+        return photo;
+    }
+
+    /** Forgets the entry in progress, before the parser starts over. */
+    public void clear() {
+        mConstructor.clear();
+        mDepth = 0;
+        discardPendingPhoto();
+    }
+
+    /** Deletes the directory of the photos with the photos that are left in it. */
+    public void deleteFiles() {
+        discardPendingPhoto();
+        deleteDirectory(mDirectory);
+    }
+
+    @Override
+    public void onVCardStarted() {
+        mConstructor.onVCardStarted();
+    }
+
+    @Override
+    public void onVCardEnded() {
+        mConstructor.onVCardEnded();
+    }
+
+    @Override
+    public void onEntryStarted() {
+        mDepth++;
+        mConstructor.onEntryStarted();
+    }
+
+    @Override
+    public void onEntryEnded() {
+        // The handlers of the constructor are given the entry here, and may take its photo.
+        mConstructor.onEntryEnded();
+        if (mDepth > 0) {
+            mDepth--;
+        }
+        if (mDepth == 0) {
+            // Not taken: the entry was skipped.
+            discardPendingPhoto();
+        }
+    }
+
+    @Override
+    public void onPropertyCreated(VCardProperty property) {
+        final byte[] bytes = property.getByteValue();
+        if (mDepth == 1 && bytes != null && bytes.length > mThresholdBytes
+                && isPhoto(property.getName())) {
+            if (mPendingPhoto != null) {
+                Log.w(LOG_TAG, "Dropping a photo of " + bytes.length + " bytes: the entry "
+                        + "already has a large photo");
+                return;
+            }
+            mPendingPhoto = writePhoto(bytes);
+            if (mPendingPhoto != null) {
+                return;
+            }
+            // Kept in memory if it could not be written.
+        }
+        mConstructor.onPropertyCreated(property);
+    }
+
+    private static boolean isPhoto(String propertyName) {
+        return VCardConstants.PROPERTY_PHOTO.equals(propertyName)
+                || VCardConstants.PROPERTY_LOGO.equals(propertyName);
+    }
+
+    /**
+     * Returns the file the photo was written to, or null if it could not be written.
+     */
+    private File writePhoto(byte[] bytes) {
+        File file = null;
+        FileOutputStream out = null;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mDirectory);
+            }
+            file = File.createTempFile("photo", ".tmp", mDirectory);
+            out = new FileOutputStream(file);
+            out.write(bytes);
+            out.close();
+            out = null;
+            return file;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write a photo to a file; keeping it in memory", e);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e2) {
+                }
+            }
+            if (file != null) {
+                file.delete();
+            }
+            return null;
+        }
+    }
+
+    private void discardPendingPhoto() {
+        if (mPendingPhoto != null) {
+            mPendingPhoto.delete();
+            mPendingPhoto = null;
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import com.android.vcard.VCardParser;
+import com.android.vcard.VCardParser_V21;
+import com.android.vcard.VCardParser_V30;
+import com.android.vcard.VCardSourceDetector;
+import com.android.vcard.exception.VCardException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Estimates the version, type and charset of a vCard file from its first bytes only, so that
+ * big files can be imported without parsing them in full beforehand. The first VERSION line
+ * decides the version; {@link VCardSourceDetector} guesses type and charset from the properties
+ * found in the prefix.
+ */
+/* package */ class VCardPrefixSniffer {
+    /** How much of the file is looked at. */
+    /* package */ static final int PREFIX_LENGTH = 64 * 1024;
+
+    private static final Pattern VERSION_PATTERN =
+            Pattern.compile("^VERSION[ \\t]*:[ \\t]*([0-9.]+)", Pattern.MULTILINE
+                    | Pattern.CASE_INSENSITIVE);
+
+    private int mVCardVersion = ImportVCardActivity.VCARD_VERSION_AUTO_DETECT;
+    private int mEstimatedType = VCardSourceDetector.PARSE_TYPE_UNKNOWN;
+    private String mEstimatedCharset;
+
+    /**
+     * Reads at most {@link #PREFIX_LENGTH} bytes of the stream. The caller closes it.
+     */
+    public void sniff(InputStream is) throws IOException {
+        final byte[] prefix = readPrefix(is);
+        // VERSION lines are plain ASCII whatever the charset of the rest.
+        final Matcher matcher = VERSION_PATTERN.matcher(new String(prefix, "ISO-8859-1"));
+        if (matcher.find()) {
+            final String version = matcher.group(1);
+            if ("2.1".equals(version)) {
+                mVCardVersion = ImportVCardActivity.VCARD_VERSION_V21;
+            } else if ("3.0".equals(version)) {
+                mVCardVersion = ImportVCardActivity.VCARD_VERSION_V30;
+            }
+        }
+
+        final VCardParser parser = mVCardVersion == ImportVCardActivity.VCARD_VERSION_V30
+                ? new VCardParser_V30() : new VCardParser_V21();
+        final VCardSourceDetector detector = new VCardSourceDetector();
+        parser.addInterpreter(detector);
+        try {
+            parser.parse(new ByteArrayInputStream(prefix));
+        } catch (VCardException e) {
+            // Expected when the prefix ends in the middle of an entry. The detector keeps
+            // what it has seen up to there.
+        }
+        mEstimatedType = detector.getEstimatedType();
+        mEstimatedCharset = detector.getEstimatedCharset();
+    }
+
+    /**
+     * Returns {@link ImportVCardActivity#VCARD_VERSION_V21} or
+     * {@link ImportVCardActivity#VCARD_VERSION_V30}, or
+     * {@link ImportVCardActivity#VCARD_VERSION_AUTO_DETECT} if the prefix does not tell.
+     */
+    public int getVCardVersion() {
+        return mVCardVersion;
+    }
+
+    public int getEstimatedType() {
+        return mEstimatedType;
+    }
+
+    public String getEstimatedCharset() {
+        return mEstimatedCharset;
+    }
+
+    private static byte[] readPrefix(InputStream is) throws IOException {
+        final byte[] buffer = new byte[PREFIX_LENGTH];
+        int length = 0;
+        int read;
+        while (length < buffer.length
+                && (read = is.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import android.os.SystemClock;
+
+/**
+ * Decides when the progress of an import or export is worth reporting, so that notifications
+ * are posted at a fixed maximum rate however fast entries go by. Progress in between is
+ * coalesced into the next report. Also measures the throughput of the job since it started.
+ *
+ * Not thread safe; used by the thread of the job.
+ */
+/* package */ class VCardProgressReporter {
+    /** At most four reports a second. */
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 250;
+
+    private final long mMinIntervalMillis;
+
+    private long mStartMillis = -1;
+    private long mLastReportMillis;
+    private int mEntryCount;
+    private long mByteCount;
+    private boolean mPending;
+
+    public VCardProgressReporter() {
+        this(DEFAULT_MIN_INTERVAL_MILLIS);
+    }
+
+    /* package */ VCardProgressReporter(long minIntervalMillis) {
+        mMinIntervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Records the progress so far.
+     *
+     * @param entryCount the number of entries handled since the start.
+     * @param byteCount the number of bytes read or written since the start.
+     * @return whether the progress should be reported now: the first time, then once the
+     * interval has passed since the last report.
+     */
+    public boolean update(int entryCount, long byteCount) {
+        final long now = now();
+        mEntryCount = entryCount;
+        mByteCount = byteCount;
+        if (mStartMillis < 0) {
+            mStartMillis = now;
+        } else if (now - mLastReportMillis < mMinIntervalMillis) {
+            mPending = true;
+            return false;
+        }
+        mLastReportMillis = now;
+        mPending = false;
+        return true;
+    }
+
+    /**
+     * Returns whether some progress has not been reported yet.
+     */
+    public boolean hasPendingUpdate() {
+        return mPending;
+    }
+
+    public int getEntriesPerSecond() {
+        final long elapsedMillis = now() - mStartMillis;
+        if (mStartMillis < 0 || elapsedMillis <= 0) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, mEntryCount * 1000L / elapsedMillis);
+    }
+
+    public long getBytesPerSecond() {
+        final long elapsedMillis = now() - mStartMillis;
+        if (mStartMillis < 0 || elapsedMillis <= 0) {
+            return 0;
+        }
+        return mByteCount * 1000L / elapsedMillis;
+    }
+
+    /* package */ long now() {
+        return SystemClock.elapsedRealtime();
+    }
+}
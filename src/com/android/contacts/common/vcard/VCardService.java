@@ -26,6 +26,7 @@ import android.os.Environment;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
@@ -34,20 +35,20 @@ import android.util.SparseArray;
 import com.android.contacts.common.R;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The class responsible for handling vCard import/export requests.
  *
  * This Service creates one ImportRequest/ExportRequest object (as Runnable) per request and push
- * it to {@link ExecutorService} with single thread executor. The executor handles each request
- * one by one, and notifies users when needed.
+ * it to {@link VCardJobScheduler}. Jobs run concurrently, except for imports into the same
+ * account, which are handled one by one. Users are notified when needed.
  */
 // TODO: Using IntentService looks simpler than using Service + ServiceConnection though this
 // works fine enough. Investigate the feasibility.
@@ -99,13 +100,23 @@ public class VCardService extends Service {
         }
     }
 
-    // Should be single thread, as we don't want to simultaneously handle import and export
-    // requests.
-    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
+    /**
+     * The number of import/export jobs that may run at the same time. Imports into the same
+     * account never run at the same time, as they would only contend for the same raw
+     * contacts.
+     */
+    private static final int MAX_CONCURRENT_JOBS = 3;
+
+    /**
+     * Conflict key of imports without an account, which all go to the same local raw contacts.
+     */
+    private static final Object NO_ACCOUNT_KEY = new Object();
+
+    private final VCardJobScheduler mJobScheduler = new VCardJobScheduler(MAX_CONCURRENT_JOBS);
 
     private int mCurrentJobId;
 
-    // Stores all unfinished import/export jobs which will be executed by mExecutorService.
+    // Stores all unfinished import/export jobs which will be executed by mJobScheduler.
     // Key is jobId.
     private final SparseArray<ProcessorBase> mRunningJobMap = new SparseArray<ProcessorBase>();
     // Stores ScannerConnectionClient objects until they finish scanning requested files.
@@ -114,6 +125,9 @@ public class VCardService extends Service {
     private final List<CustomMediaScannerConnectionClient> mRemainingScannerConnections =
             new ArrayList<CustomMediaScannerConnectionClient>();
 
+    // How long the stages of all the jobs since this Service was created took.
+    private final VCardStageTimings mStageTimings = new VCardStageTimings();
+
     /* ** vCard exporter params ** */
     // If true, VCardExporter is able to emits files longer than 8.3 format.
     private static final boolean ALLOW_LONG_FILE_NAME = false;
@@ -146,6 +160,8 @@ public class VCardService extends Service {
         mBinder = new MyBinder();
         if (DEBUG) Log.d(LOG_TAG, "vCard Service is being created.");
         initExporterParams();
+        // No import runs yet; photos of imports of a killed process are left over.
+        VCardPhotoSpiller.deleteAllDirectories(getCacheDir());
     }
 
     private void initExporterParams() {
@@ -214,7 +230,11 @@ public class VCardService extends Service {
         for (int i = 0; i < size; i++) {
             ImportRequest request = requests.get(i);
 
-            if (tryExecute(new ImportProcessor(this, listener, request, mCurrentJobId))) {
+            // Small in-memory sources, e.g. from NFC, are imported while the user waits.
+            final int priority = request.data != null
+                    ? VCardJobScheduler.PRIORITY_HIGH : VCardJobScheduler.PRIORITY_NORMAL;
+            if (tryExecute(new ImportProcessor(this, listener, request, mCurrentJobId),
+                    request.account != null ? request.account : NO_ACCOUNT_KEY, priority)) {
                 if (listener != null) {
                     listener.onImportProcessed(request, mCurrentJobId, i);
                 }
@@ -229,26 +249,78 @@ public class VCardService extends Service {
         }
     }
 
-    public synchronized void handleExportRequest(ExportRequest request,
+    /**
+     * Resumes the imports of the given sources that were cancelled or whose process was
+     * killed, after the entries they already handled. Sources that are being imported, or that
+     * have no checkpoint, are left alone.
+     *
+     * @return the sources whose imports were resumed.
+     */
+    public synchronized List<Uri> handleResumeImportRequest(List<Uri> sourceUris,
             VCardImportExportListener listener) {
-        if (tryExecute(new ExportProcessor(this, request, mCurrentJobId, mCallingActivity))) {
-            final String path = request.destUri.getEncodedPath();
-            if (DEBUG) Log.d(LOG_TAG, "Reserve the path " + path);
-            if (!mReservedDestination.add(path)) {
-                Log.w(LOG_TAG,
-                        String.format("The path %s is already reserved. Reject export request",
-                                path));
-                if (listener != null) {
-                    listener.onExportFailed(request);
-                }
-                return;
+        final Set<Uri> runningUris = new HashSet<Uri>();
+        for (int i = 0; i < mRunningJobMap.size(); i++) {
+            final ProcessorBase processor = mRunningJobMap.valueAt(i);
+            if (processor instanceof ImportProcessor && !processor.isDone()) {
+                runningUris.add(((ImportProcessor) processor).getRequest().sourceUri);
+            }
+        }
+        final ImportCheckpointStore checkpointStore = new ImportCheckpointStore(this);
+        final List<ImportRequest> requests = new ArrayList<ImportRequest>();
+        final List<Uri> resumedUris = new ArrayList<Uri>();
+        for (Uri sourceUri : sourceUris) {
+            final ImportCheckpointStore.Checkpoint checkpoint = checkpointStore.get(sourceUri);
+            if (checkpoint == null || runningUris.contains(sourceUri)) {
+                continue;
+            }
+            final ParcelFileDescriptor descriptor =
+                    ReopenableVCardSource.open(getContentResolver(), checkpoint.uri);
+            if (descriptor == null) {
+                Log.w(LOG_TAG, "Cannot resume the import of " + sourceUri + ", "
+                        + checkpoint.uri + " is gone");
+                checkpointStore.remove(sourceUri);
+                continue;
             }
+            Log.i(LOG_TAG, "Resuming the import of " + sourceUri + " after "
+                    + checkpoint.entryIndex + " entries");
+            requests.add(new ImportRequest(checkpoint.account, null, checkpoint.uri, sourceUri,
+                    descriptor, checkpoint.displayName, checkpoint.estimatedVCardType,
+                    checkpoint.estimatedCharset, checkpoint.vcardVersion,
+                    ImportRequest.ENTRY_COUNT_UNKNOWN, checkpoint.entryIndex,
+                    checkpoint.dedupeMode));
+            resumedUris.add(sourceUri);
+        }
+        if (!requests.isEmpty()) {
+            handleImportRequest(requests, listener);
+        }
+        return resumedUris;
+    }
 
+    public synchronized void handleExportRequest(ExportRequest request,
+            VCardImportExportListener listener) {
+        // Each export writes its own reserved file and only reads the contacts. The path is
+        // reserved before the job is queued, and is its conflict key too, so that two exports
+        // never write the same file at the same time.
+        final String path = request.destUri.getEncodedPath();
+        if (DEBUG) Log.d(LOG_TAG, "Reserve the path " + path);
+        if (!mReservedDestination.add(path)) {
+            Log.w(LOG_TAG,
+                    String.format("The path %s is already reserved. Reject export request",
+                            path));
+            if (listener != null) {
+                listener.onExportFailed(request);
+            }
+            return;
+        }
+        if (tryExecute(new ExportProcessor(this, listener, request, mCurrentJobId,
+                mCallingActivity),
+                path, VCardJobScheduler.PRIORITY_NORMAL)) {
             if (listener != null) {
                 listener.onExportProcessed(request, mCurrentJobId);
             }
             mCurrentJobId++;
         } else {
+            mReservedDestination.remove(path);
             if (listener != null) {
                 listener.onExportFailed(request);
             }
@@ -256,16 +328,17 @@ public class VCardService extends Service {
     }
 
     /**
-     * Tries to call {@link ExecutorService#execute(Runnable)} toward a given processor.
+     * Tries to call {@link VCardJobScheduler#submit} toward a given processor.
      * @return true when successful.
      */
-    private synchronized boolean tryExecute(ProcessorBase processor) {
+    private synchronized boolean tryExecute(ProcessorBase processor, Object conflictKey,
+            int priority) {
         try {
             if (DEBUG) {
-                Log.d(LOG_TAG, "Executor service status: shutdown: " + mExecutorService.isShutdown()
-                        + ", terminated: " + mExecutorService.isTerminated());
+                Log.d(LOG_TAG, "Job scheduler status: shutdown: " + mJobScheduler.isShutdown()
+                        + ", pending: " + mJobScheduler.getPendingCount());
             }
-            mExecutorService.execute(processor);
+            mJobScheduler.submit(processor, conflictKey, priority);
             mRunningJobMap.put(mCurrentJobId, processor);
             return true;
         } catch (RejectedExecutionException e) {
@@ -283,7 +356,7 @@ public class VCardService extends Service {
         mRunningJobMap.remove(jobId);
 
         if (processor != null) {
-            processor.cancel(true);
+            mJobScheduler.cancel(processor);
             final int type = processor.getType();
             if (listener != null) {
                 listener.onCancelRequest(request, type);
@@ -368,7 +441,7 @@ public class VCardService extends Service {
         }
 
         Log.i(LOG_TAG, "No unfinished job. Stop this service.");
-        mExecutorService.shutdown();
+        mJobScheduler.shutdown();
         stopSelf();
     }
 
@@ -377,8 +450,8 @@ public class VCardService extends Service {
             Log.d(LOG_TAG, "MediaScanner is being updated: " + path);
         }
 
-        if (mExecutorService.isShutdown()) {
-            Log.w(LOG_TAG, "MediaScanner update is requested after executor's being shut down. " +
+        if (mJobScheduler.isShutdown()) {
+            Log.w(LOG_TAG, "MediaScanner update is requested after scheduler's being shut down. " +
                     "Ignoring the update request");
             return;
         }
@@ -397,6 +470,35 @@ public class VCardService extends Service {
         stopServiceIfAppropriate();
     }
 
+    /**
+     * Adds the timings of a job that has ended to those of all jobs.
+     */
+    /* package */ void addStageTimings(VCardStageTimings timings) {
+        mStageTimings.addAll(timings);
+    }
+
+    /**
+     * Records the duration of a stage done for a job before it was requested, e.g. copying
+     * its source to the cache.
+     */
+    /* package */ void recordStageTiming(int stage, long nanos) {
+        mStageTimings.record(stage, nanos);
+    }
+
+    /* package */ VCardStageTimings getStageTimings() {
+        return mStageTimings;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        synchronized (this) {
+            writer.println("Running jobs: " + mRunningJobMap.size()
+                    + ", pending jobs: " + mJobScheduler.getPendingCount());
+        }
+        writer.println("Stage timings:");
+        mStageTimings.dump("  ", writer);
+    }
+
     /* package */ synchronized void handleFinishImportNotification(
             int jobId, boolean successful) {
         if (DEBUG) {
@@ -430,25 +532,36 @@ public class VCardService extends Service {
     }
 
     /**
-     * Cancels all the import/export requests and calls {@link ExecutorService#shutdown()}, which
-     * means this Service becomes no longer ready for import/export requests.
+     * Cancels all the import/export requests and calls {@link VCardJobScheduler#shutdown()},
+     * which means this Service becomes no longer ready for import/export requests.
      *
      * Mainly called from onDestroy().
      */
     private synchronized void cancelAllRequestsAndShutdown() {
         for (int i = 0; i < mRunningJobMap.size(); i++) {
-            mRunningJobMap.valueAt(i).cancel(true);
+            mJobScheduler.cancel(mRunningJobMap.valueAt(i));
         }
         mRunningJobMap.clear();
-        mExecutorService.shutdown();
+        mJobScheduler.shutdown();
     }
 
     /**
      * Removes import caches stored locally.
      */
     private void clearCache() {
+        // Copies of interrupted imports are kept, so that the imports can be resumed, until
+        // their checkpoints expire.
+        final ImportCheckpointStore checkpointStore = new ImportCheckpointStore(this);
+        checkpointStore.removeExpired();
+        final Set<String> resumableFileNames = new HashSet<String>();
+        for (ImportCheckpointStore.Checkpoint checkpoint : checkpointStore.getAll()) {
+            if ("file".equals(checkpoint.uri.getScheme())) {
+                resumableFileNames.add(checkpoint.uri.getLastPathSegment());
+            }
+        }
         for (final String fileName : fileList()) {
-            if (fileName.startsWith(CACHE_FILE_PREFIX)) {
+            if (fileName.startsWith(CACHE_FILE_PREFIX)
+                    && !resumableFileNames.contains(fileName)) {
                 // We don't want to keep all the caches so we remove cache files old enough.
                 Log.i(LOG_TAG, "Remove a temporary file: " + fileName);
                 deleteFile(fileName);
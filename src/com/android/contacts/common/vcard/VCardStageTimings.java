@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.common.vcard;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * How long the stages of vCard imports and exports take, so that a slow job can be told to be
+ * bound by the parser, the contacts provider or the storage. Each job has its own timings,
+ * which {@link VCardService} adds to the timings of all jobs since it was created.
+ *
+ * Thread safe: the stages of a job are timed on several threads.
+ */
+/* package */ class VCardStageTimings {
+    /** Opening the source or the destination, or copying the source to the cache. */
+    public static final int STAGE_OPEN = 0;
+    /** Reading and parsing the lines of one entry, without building it. */
+    public static final int STAGE_PARSE = 1;
+    /** Building one entry from its properties, without waiting for the commit thread. */
+    public static final int STAGE_CONSTRUCT = 2;
+    /** Waiting for room in the queue of the commit thread, for one entry. */
+    public static final int STAGE_COMMIT_WAIT = 3;
+    /** Turning one batch of entries into operations and applying them to the provider. */
+    public static final int STAGE_COMMIT_BATCH = 4;
+    /** Composing the vCard of one contact. */
+    public static final int STAGE_COMPOSE = 5;
+    /** Writing composed vCards to the destination, or flushing it. */
+    public static final int STAGE_WRITE = 6;
+
+    private static final String[] STAGE_NAMES = {
+            "open", "parse", "construct", "commit wait", "commit batch", "compose", "write" };
+
+    /**
+     * Distribution of the durations of an operation. Bucket i counts the durations of
+     * 2^i to 2^(i+1) microseconds, and bucket 0 those under two microseconds, so
+     * percentiles are known within a factor of two.
+     */
+    public static final class Histogram {
+        /* package */ static final int BUCKET_COUNT = 32;
+
+        private final long[] mBuckets = new long[BUCKET_COUNT];
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        public synchronized void record(long nanos) {
+            mBuckets[getBucket(nanos)]++;
+            mCount++;
+            mTotalNanos += nanos;
+            if (nanos > mMaxNanos) {
+                mMaxNanos = nanos;
+            }
+        }
+
+        /* package */ static int getBucket(long nanos) {
+            final long micros = nanos / 1000;
+            if (micros <= 1) {
+                return 0;
+            }
+            return Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(micros));
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized double getTotalMillis() {
+            return mTotalNanos / 1e6;
+        }
+
+        public synchronized double getAverageMillis() {
+            return mCount == 0 ? 0 : mTotalNanos / 1e6 / mCount;
+        }
+
+        public synchronized double getMaxMillis() {
+            return mMaxNanos / 1e6;
+        }
+
+        /**
+         * Returns a bound that at least the given fraction of the durations do not exceed:
+         * the upper end of the bucket of that percentile, or the maximum if it is lower.
+         */
+        public synchronized double getPercentileMillis(double fraction) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(mCount * fraction));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min((1L << (i + 1)) / 1e3, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        /* package */ void addAll(Histogram other) {
+            final long[] buckets;
+            final long count;
+            final long totalNanos;
+            final long maxNanos;
+            synchronized (other) {
+                buckets = other.mBuckets.clone();
+                count = other.mCount;
+                totalNanos = other.mTotalNanos;
+                maxNanos = other.mMaxNanos;
+            }
+            synchronized (this) {
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    mBuckets[i] += buckets[i];
+                }
+                mCount += count;
+                mTotalNanos += totalNanos;
+                mMaxNanos = Math.max(mMaxNanos, maxNanos);
+            }
+        }
+
+        synchronized void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets[i] = 0;
+            }
+            mCount = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US,
+                    "n=%d total=%.1fms avg=%.3fms p50<=%.3fms p99<=%.3fms max=%.3fms",
+                    mCount, getTotalMillis(), getAverageMillis(), getPercentileMillis(0.5),
+                    getPercentileMillis(0.99), getMaxMillis());
+        }
+    }
+
+    private final Histogram[] mStages = new Histogram[STAGE_NAMES.length];
+
+    public VCardStageTimings() {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new Histogram();
+        }
+    }
+
+    public void record(int stage, long nanos) {
+        mStages[stage].record(nanos);
+    }
+
+    public Histogram getHistogram(int stage) {
+        return mStages[stage];
+    }
+
+    /** Adds the durations recorded by {@code other} to these. */
+    public void addAll(VCardStageTimings other) {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i].addAll(other.mStages[i]);
+        }
+    }
+
+    /** Forgets all durations. */
+    public void reset() {
+        for (Histogram histogram : mStages) {
+            histogram.reset();
+        }
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        for (int i = 0; i < mStages.length; i++) {
+            if (mStages[i].getCount() > 0) {
+                writer.println(prefix + STAGE_NAMES[i] + ": " + mStages[i]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mStages.length; i++) {
+            final double millis = mStages[i].getTotalMillis();
+            if (mStages[i].getCount() > 0) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(String.format(Locale.US, "%s=%.0fms", STAGE_NAMES[i], millis));
+            }
+        }
+        return builder.toString();
+    }
+}
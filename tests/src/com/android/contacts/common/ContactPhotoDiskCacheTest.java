@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ContactPhotoDiskCache}.
+ */
+@SmallTest
+public class ContactPhotoDiskCacheTest extends AndroidTestCase {
+    private static final int PHOTO_BYTES = 10;
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    private File mDirectory;
+    /** Room for three photos with their headers, but not four. */
+    private long mMaxSize;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "photo_disk_cache_test");
+        deleteDirectory();
+        final ContactPhotoDiskCache probe = new ContactPhotoDiskCache(mDirectory, 1024);
+        probe.put(1, 0, photo(1));
+        final long entrySize = probe.size();
+        probe.clear();
+        mMaxSize = entrySize * 3 + entrySize / 2;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    public void testPutAndGet() {
+        final ContactPhotoDiskCache cache = newCache();
+        cache.put(1, 5, photo(1));
+
+        assertTrue(Arrays.equals(photo(1), cache.get(1, 5)));
+        assertNull(cache.get(2, 5));
+    }
+
+    public void testOtherVersionDropsEntry() {
+        final ContactPhotoDiskCache cache = newCache();
+        cache.put(1, 5, photo(1));
+
+        assertNull(cache.get(1, 6));
+        assertFalse(cache.contains(1));
+        assertFalse(new File(mDirectory, "id_1").exists());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final ContactPhotoDiskCache cache = newCache();
+        cache.put(1, 0, photo(1));
+        cache.put(2, 0, photo(2));
+        cache.put(3, 0, photo(3));
+        assertNotNull(cache.get(1, 0));
+        cache.put(4, 0, photo(4));
+
+        assertTrue(cache.contains(1));
+        assertFalse(cache.contains(2));
+        assertTrue(cache.contains(3));
+        assertTrue(cache.contains(4));
+        assertTrue(cache.size() <= mMaxSize);
+    }
+
+    public void testRebuiltIndexKeepsOrderOfUse() {
+        final ContactPhotoDiskCache cache = newCache();
+        final long now = System.currentTimeMillis();
+        for (int id = 1; id <= 3; id++) {
+            cache.put(id, 0, photo(id));
+            // Written an hour apart, the first one first.
+            new File(mDirectory, "id_" + id).setLastModified(now - (4 - id) * HOUR_MILLIS);
+        }
+        // Read long after it was written.
+        assertNotNull(cache.get(1, 0));
+
+        final ContactPhotoDiskCache rebuilt = newCache();
+        rebuilt.put(4, 0, photo(4));
+        assertTrue(rebuilt.contains(1));
+        assertFalse(rebuilt.contains(2));
+        assertTrue(Arrays.equals(photo(3), rebuilt.get(3, 0)));
+    }
+
+    public void testAgeIsTimeOfWrite() {
+        final ContactPhotoDiskCache cache = newCache();
+        final Uri uri = Uri.parse("http://example.com/photo.jpg");
+        cache.put(uri, photo(1), false, "tag");
+        // Use of the entry does not make it younger, nor the lack of use older.
+        new File(mDirectory, mDirectory.list()[0]).setLastModified(
+                System.currentTimeMillis() - HOUR_MILLIS);
+
+        final ContactPhotoDiskCache.Entry entry = cache.get(uri, HOUR_MILLIS / 2);
+        assertNotNull(entry);
+        assertEquals("tag", entry.tag);
+        assertTrue(Arrays.equals(photo(1), entry.bytes));
+    }
+
+    public void testTouchMarksEntryUsedWithoutRewritingIt() {
+        final ContactPhotoDiskCache cache = newCache();
+        final Uri first = Uri.parse("http://example.com/1.jpg");
+        cache.put(first, photo(1), false, "tag");
+        final File file = new File(mDirectory, mDirectory.list()[0]);
+        final long writtenMillis = cache.get(first, -1).writtenMillis;
+        cache.put(Uri.parse("http://example.com/2.jpg"), photo(2), false, "tag");
+        cache.put(Uri.parse("http://example.com/3.jpg"), photo(3), false, "tag");
+        file.setLastModified(System.currentTimeMillis() - HOUR_MILLIS);
+
+        cache.touch(first);
+        assertTrue(System.currentTimeMillis() - file.lastModified() < HOUR_MILLIS);
+        cache.put(Uri.parse("http://example.com/4.jpg"), photo(4), false, "tag");
+        assertNull(cache.get(Uri.parse("http://example.com/2.jpg"), -1));
+        assertEquals(writtenMillis, cache.get(first, -1).writtenMillis);
+    }
+
+    private ContactPhotoDiskCache newCache() {
+        return new ContactPhotoDiskCache(mDirectory, mMaxSize);
+    }
+
+    private static byte[] photo(int seed) {
+        final byte[] bytes = new byte[PHOTO_BYTES];
+        Arrays.fill(bytes, (byte) seed);
+        return bytes;
+    }
+
+    private void deleteDirectory() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link ContactPhotoFetcher}, against a minimal HTTP server on the loopback
+ * interface.
+ */
+@MediumTest
+public class ContactPhotoFetcherTest extends AndroidTestCase {
+    private static final byte[] PHOTO = "not really a jpeg".getBytes();
+
+    private PhotoServer mServer;
+    private File mCacheDirectory;
+    private ContactPhotoFetcher mFetcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new PhotoServer();
+        mServer.start();
+        mCacheDirectory = new File(getContext().getCacheDir(), "contact_photo_fetcher_test");
+        mFetcher = new ContactPhotoFetcher(mCacheDirectory, 1024 * 1024, 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        final File[] files = mCacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mCacheDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testFetch() throws IOException {
+        mServer.mETag = null;
+        assertPhoto(mFetcher.open(mServer.getUri()));
+        assertEquals(1, mServer.getRequests().size());
+    }
+
+    public void testRevalidatesWithETag() throws IOException {
+        mServer.mETag = "\"v1\"";
+        assertPhoto(mFetcher.open(mServer.getUri()));
+        assertPhoto(mFetcher.open(mServer.getUri()));
+
+        final List<String> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        assertFalse(requests.get(0).contains("If-None-Match"));
+        assertTrue(requests.get(1).contains("If-None-Match: \"v1\""));
+        assertEquals(1, mServer.mBodiesSent);
+    }
+
+    public void testChangedPhotoIsDownloadedAgain() throws IOException {
+        mServer.mETag = "\"v1\"";
+        assertPhoto(mFetcher.open(mServer.getUri()));
+        mServer.mETag = "\"v2\"";
+        assertPhoto(mFetcher.open(mServer.getUri()));
+        assertEquals(2, mServer.mBodiesSent);
+    }
+
+    public void testBodyClosedNearItsEndIsStored() throws IOException {
+        mServer.mETag = "\"v1\"";
+        final InputStream in = mFetcher.open(mServer.getUri());
+        assertTrue(in.read() != -1);
+        in.close();
+
+        assertPhoto(mFetcher.open(mServer.getUri()));
+        assertTrue(mServer.getRequests().get(1).contains("If-None-Match: \"v1\""));
+        assertEquals(1, mServer.mBodiesSent);
+    }
+
+    public void testAbandonedBodyIsNotStored() throws IOException {
+        mServer.mETag = "\"v1\"";
+        mServer.mBody = new byte[256 * 1024];
+        final InputStream in = mFetcher.open(mServer.getUri());
+        assertTrue(in.read(new byte[1024]) > 0);
+        in.close();
+
+        mServer.mBody = PHOTO;
+        assertPhoto(mFetcher.open(mServer.getUri()));
+        assertFalse(mServer.getRequests().get(1).contains("If-None-Match"));
+        assertEquals(2, mServer.mBodiesSent);
+    }
+
+    public void testErrorResponse() throws IOException {
+        mServer.mStatus = 404;
+        try {
+            mFetcher.open(mServer.getUri());
+            fail();
+        } catch (IOException expected) {
+        }
+        // The slot of the failed fetch was freed again.
+        mServer.mStatus = 200;
+        assertPhoto(mFetcher.open(mServer.getUri()));
+        assertPhoto(mFetcher.open(mServer.getUri()));
+    }
+
+    private static void assertPhoto(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            final byte[] buffer = new byte[16];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(new String(PHOTO), new String(out.toByteArray()));
+    }
+
+    /**
+     * Serves {@link #mBody} for every request, answering conditional requests that match
+     * {@link #mETag} with 304.
+     */
+    private static class PhotoServer extends Thread {
+        private final ServerSocket mSocket;
+        private final List<String> mRequests = new ArrayList<String>();
+        volatile String mETag;
+        volatile byte[] mBody = PHOTO;
+        volatile int mStatus = 200;
+        volatile int mBodiesSent;
+
+        public PhotoServer() throws IOException {
+            mSocket = new ServerSocket(0);
+        }
+
+        public Uri getUri() {
+            return Uri.parse("http://127.0.0.1:" + mSocket.getLocalPort() + "/photo.jpg");
+        }
+
+        public synchronized List<String> getRequests() {
+            return new ArrayList<String>(mRequests);
+        }
+
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = mSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                try {
+                    serve(socket);
+                } catch (IOException e) {
+                    // The client closed the connection, e.g. in the middle of a body.
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            try {
+                final BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream()));
+                final OutputStream out = socket.getOutputStream();
+                // Serve requests on the connection until the client goes away.
+                while (true) {
+                    final StringBuilder request = new StringBuilder();
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                        request.append(line).append('\n');
+                    }
+                    if (line == null) {
+                        return;
+                    }
+                    synchronized (this) {
+                        mRequests.add(request.toString());
+                    }
+                    final String etag = mETag;
+                    final byte[] body = mBody;
+                    if (mStatus != 200) {
+                        out.write(("HTTP/1.1 " + mStatus + " Error\r\n"
+                                + "Content-Length: 0\r\n\r\n").getBytes());
+                    } else if (etag != null
+                            && request.indexOf("If-None-Match: " + etag + "\n") >= 0) {
+                        out.write(("HTTP/1.1 304 Not Modified\r\n"
+                                + "ETag: " + etag + "\r\n\r\n").getBytes());
+                    } else {
+                        out.write(("HTTP/1.1 200 OK\r\n"
+                                + (etag != null ? "ETag: " + etag + "\r\n" : "")
+                                + "Content-Length: " + body.length + "\r\n\r\n").getBytes());
+                        mBodiesSent++;
+                        out.write(body);
+                    }
+                    out.flush();
+                }
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ContactPhotoMetrics}.
+ */
+@SmallTest
+public class ContactPhotoMetricsTest extends TestCase {
+
+    public void testHitRate() {
+        final ContactPhotoMetrics metrics = new ContactPhotoMetrics();
+        assertEquals(0.0, metrics.getHitRate(ContactPhotoMetrics.TIER_HOLDER));
+
+        metrics.recordHit(ContactPhotoMetrics.TIER_HOLDER);
+        metrics.recordHit(ContactPhotoMetrics.TIER_HOLDER);
+        metrics.recordHit(ContactPhotoMetrics.TIER_HOLDER);
+        metrics.recordMiss(ContactPhotoMetrics.TIER_HOLDER);
+        metrics.recordMisses(ContactPhotoMetrics.TIER_DISK, 4);
+
+        assertEquals(0.75, metrics.getHitRate(ContactPhotoMetrics.TIER_HOLDER));
+        assertEquals(0.0, metrics.getHitRate(ContactPhotoMetrics.TIER_DISK));
+        assertEquals(4, metrics.getMisses(ContactPhotoMetrics.TIER_DISK));
+        assertEquals(0, metrics.getHits(ContactPhotoMetrics.TIER_BITMAP));
+    }
+
+    public void testQueryBatches() {
+        final ContactPhotoMetrics metrics = new ContactPhotoMetrics();
+        metrics.recordQuery(2, 1000000);
+        metrics.recordQuery(6, 3000000);
+
+        assertEquals(2, metrics.getQueryTimer().getCount());
+        assertEquals(2.0, metrics.getQueryTimer().getAverageMillis());
+        assertEquals(3.0, metrics.getQueryTimer().getMaxMillis());
+        assertEquals(4.0, metrics.getAverageQueryBatch());
+        assertEquals(6, metrics.getMaxQueryBatch());
+    }
+
+    public void testTrimsAreCountedPerLevel() {
+        final ContactPhotoMetrics metrics = new ContactPhotoMetrics();
+        metrics.recordTrim(20, 0);
+        metrics.recordTrim(60, 100);
+        metrics.recordTrim(60, 50);
+
+        assertEquals(1, metrics.getTrimCount(20));
+        assertEquals(2, metrics.getTrimCount(60));
+        assertEquals(150, metrics.getTrimBytesDropped(60));
+        assertEquals(0, metrics.getTrimCount(80));
+    }
+
+    public void testReset() {
+        final ContactPhotoMetrics metrics = new ContactPhotoMetrics();
+        metrics.recordEviction(ContactPhotoMetrics.TIER_BITMAP);
+        metrics.recordPreloaded();
+        metrics.recordPreloadedShown();
+        metrics.recordUriFetch(false, 10);
+        metrics.recordTrim(60, 100);
+        metrics.recordSharedHolder();
+
+        metrics.reset();
+
+        assertEquals(0, metrics.getEvictions(ContactPhotoMetrics.TIER_BITMAP));
+        assertEquals(0, metrics.getPreloaded());
+        assertEquals(0, metrics.getPreloadedShown());
+        assertEquals(0, metrics.getUriFetchFailures());
+        assertEquals(0, metrics.getUriFetchTimer().getCount());
+        assertEquals(0, metrics.getTrimCount(60));
+        assertEquals(0, metrics.getSharedHolders());
+    }
+}
@@ -17,13 +17,17 @@
 package com.android.contacts.common.util;
 
 import android.graphics.Bitmap;
+import android.graphics.Color;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.contacts.common.util.BitmapUtil;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Tests for {@link com.android.contacts.common.util.BitmapUtil}.
@@ -97,6 +101,66 @@ public class BitmapUtilTests extends AndroidTestCase {
         assertBitmapSize(32, 16, BitmapUtil.decodeBitmapFromBytes(createPngRawData(128, 64), 4));
     }
 
+    public void testDecodeReusesPooledBitmap() throws IOException {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap first = BitmapUtil.decodeBitmapFromBytes(createPngRawData(128, 64), 2, pool);
+        assertBitmapSize(64, 32, first);
+        assertTrue(first.isMutable());
+
+        pool.put(first);
+        final Bitmap second = BitmapUtil.decodeBitmapFromBytes(createPngRawData(128, 64), 2, pool);
+        assertSame(first, second);
+        assertEquals(0, pool.size());
+    }
+
+    public void testCropToSquare() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap source = Bitmap.createBitmap(40, 30, Bitmap.Config.ARGB_8888);
+        final Bitmap square = BitmapUtil.cropToSquare(source, pool);
+        assertBitmapSize(30, 30, square);
+
+        // The source went to the pool and is handed out again for its size.
+        assertSame(source, pool.get(40, 30, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(40, 30, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testCreateRoundedBitmap() {
+        final Bitmap source = Bitmap.createBitmap(40, 40, Bitmap.Config.ARGB_8888);
+        source.eraseColor(Color.RED);
+        final Bitmap rounded = BitmapUtil.createRoundedBitmap(source, 20, null);
+        assertBitmapSize(40, 40, rounded);
+        assertEquals(Color.RED, rounded.getPixel(20, 20));
+        assertEquals(Color.TRANSPARENT, rounded.getPixel(0, 0));
+        assertEquals(Color.RED, source.getPixel(0, 0));
+    }
+
+    public void testGetSmallerExtentFromStreamRewinds() throws IOException {
+        final InputStream in = new BufferedInputStream(
+                new ByteArrayInputStream(createJpegRawData(200, 50)));
+        assertEquals(50, BitmapUtil.getSmallerExtentFromStream(in, 64 * 1024));
+        assertBitmapSize(100, 25, BitmapUtil.decodeBitmapFromStream(in, 2));
+    }
+
+    public void testDecodeFromStreamIsMutable() throws IOException {
+        final Bitmap bitmap = BitmapUtil.decodeBitmapFromStream(
+                new ByteArrayInputStream(createPngRawData(128, 64)), 4);
+        assertBitmapSize(32, 16, bitmap);
+        assertTrue(bitmap.isMutable());
+    }
+
+    public void testCompressThumbnail() {
+        final Bitmap opaque = Bitmap.createBitmap(40, 30, Bitmap.Config.ARGB_8888);
+        opaque.eraseColor(Color.RED);
+        opaque.setHasAlpha(false);
+        assertEquals(30, BitmapUtil.getSmallerExtentFromBytes(
+                BitmapUtil.compressThumbnail(opaque)));
+
+        final Bitmap transparent = Bitmap.createBitmap(40, 30, Bitmap.Config.ARGB_8888);
+        final byte[] bytes = BitmapUtil.compressThumbnail(transparent);
+        assertEquals(Color.TRANSPARENT,
+                BitmapUtil.decodeBitmapFromBytes(bytes, 1).getPixel(0, 0));
+    }
+
     private void assertBitmapSize(int expectedWidth, int expectedHeight, Bitmap bitmap) {
         assertEquals(expectedWidth, bitmap.getWidth());
         assertEquals(expectedHeight, bitmap.getHeight());
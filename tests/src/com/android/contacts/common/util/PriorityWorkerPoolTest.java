@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link PriorityWorkerPool}.
+ */
+@SmallTest
+public class PriorityWorkerPoolTest extends TestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private PriorityWorkerPool mPool;
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRelease.countDown();
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testVisibleTaskRunsWhileLowerClassesAreBusy() throws InterruptedException {
+        // The lower classes could take all three workers by their own limits.
+        mPool = new PriorityWorkerPool("test", 3, 1, 2, 2);
+        final CountDownLatch started = new CountDownLatch(2);
+        for (int i = 0; i < 4; i++) {
+            mPool.execute(1 + i % 2, new BlockingTask(started));
+        }
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final CountDownLatch visibleRan = new CountDownLatch(1);
+        mPool.execute(0, new Runnable() {
+            @Override
+            public void run() {
+                visibleRan.countDown();
+            }
+        });
+        assertTrue(visibleRan.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, mRunning.get());
+    }
+
+    public void testSingleThreadRunsLowerClasses() throws InterruptedException {
+        mPool = new PriorityWorkerPool("test", 1, 1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        mPool.execute(1, new BlockingTask(started));
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /** Counts itself as running until the test releases it. */
+    private class BlockingTask implements Runnable {
+        private final CountDownLatch mStarted;
+
+        public BlockingTask(CountDownLatch started) {
+            mStarted = started;
+        }
+
+        @Override
+        public void run() {
+            mRunning.incrementAndGet();
+            mStarted.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mRunning.decrementAndGet();
+            }
+        }
+    }
+}
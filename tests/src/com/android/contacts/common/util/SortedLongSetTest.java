@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link SortedLongSet}.
+ */
+@SmallTest
+public class SortedLongSetTest extends TestCase {
+
+    public void testAddKeepsOrderAndSkipsDuplicates() {
+        final SortedLongSet set = new SortedLongSet(1);
+        assertTrue(set.add(30));
+        assertTrue(set.add(10));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertTrue(set.add(20));
+        assertFalse(set.add(10));
+
+        assertEquals(4, set.size());
+        assertEquals(10, set.get(0));
+        assertEquals(20, set.get(1));
+        assertEquals(30, set.get(2));
+        assertEquals(Long.MAX_VALUE, set.get(3));
+    }
+
+    public void testRemove() {
+        final SortedLongSet set = new SortedLongSet();
+        set.add(1);
+        set.add(2);
+        set.add(3);
+
+        assertTrue(set.remove(2));
+        assertFalse(set.remove(2));
+        assertFalse(set.contains(2));
+        assertTrue(set.contains(3));
+        assertEquals("[1,3]", set.toString());
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(1));
+    }
+
+    public void testGetOutOfRange() {
+        final SortedLongSet set = new SortedLongSet();
+        set.add(1);
+        set.remove(1);
+        try {
+            set.get(0);
+            fail();
+        } catch (ArrayIndexOutOfBoundsException expected) {
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.provider.ContactsContract.Contacts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests for the selection built by {@link ExportProcessor}.
+ */
+@SmallTest
+public class ExportProcessorTest extends TestCase {
+
+    public void testNoFilter() {
+        final List<String> args = new ArrayList<String>();
+        assertNull(ExportProcessor.buildSelection(null, false, ExportRequest.NO_TIMESTAMP,
+                args));
+        assertTrue(args.isEmpty());
+    }
+
+    public void testAllFilters() {
+        final List<String> args = new ArrayList<String>();
+        final String selection = ExportProcessor.buildSelection(
+                new HashSet<Long>(Arrays.asList(3L, 1L, 2L)), true, 1000L, args);
+        assertEquals(Contacts._ID + " IN (1,2,3) AND " + Contacts.STARRED + "=1 AND "
+                + Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">?", selection);
+        assertEquals(Arrays.asList("1000"), args);
+    }
+
+    public void testNoMatchingIds() {
+        final List<String> args = new ArrayList<String>();
+        assertEquals("0", ExportProcessor.buildSelection(Collections.<Long>emptySet(), true,
+                ExportRequest.NO_TIMESTAMP, args));
+    }
+}
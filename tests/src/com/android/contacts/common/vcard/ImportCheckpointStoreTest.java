@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.accounts.Account;
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.vcard.VCardSourceDetector;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests for {@link ImportCheckpointStore}.
+ */
+@SmallTest
+public class ImportCheckpointStoreTest extends TestCase {
+    private static final Uri SOURCE_URI = Uri.parse("content://downloads/contacts.vcf");
+    private static final Uri CACHE_URI = Uri.parse("file:///data/import_tmp_0.vcf");
+    private static final long NOW = 1400000000000L;
+
+    public void testRoundTrip() throws Exception {
+        final ImportCheckpointStore.Checkpoint checkpoint = new ImportCheckpointStore.Checkpoint(
+                SOURCE_URI, CACHE_URI, "contacts.vcf", new Account("name", "type"),
+                VCardSourceDetector.PARSE_TYPE_UNKNOWN, "UTF-8",
+                ImportVCardActivity.VCARD_VERSION_V30, 12345L, 200,
+                Arrays.asList(Uri.parse("content://com.android.contacts/raw_contacts/1"),
+                        Uri.parse("content://com.android.contacts/raw_contacts/21")),
+                ImportRequest.DEDUPE_SKIP, NOW);
+
+        final ImportCheckpointStore.Checkpoint restored = ImportCheckpointStore.fromJson(
+                SOURCE_URI, ImportCheckpointStore.toJson(checkpoint));
+        assertEquals(SOURCE_URI, restored.sourceUri);
+        assertEquals(CACHE_URI, restored.uri);
+        assertEquals("contacts.vcf", restored.displayName);
+        assertEquals(new Account("name", "type"), restored.account);
+        assertEquals(VCardSourceDetector.PARSE_TYPE_UNKNOWN, restored.estimatedVCardType);
+        assertEquals("UTF-8", restored.estimatedCharset);
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V30, restored.vcardVersion);
+        assertEquals(12345L, restored.sourceLength);
+        assertEquals(200, restored.entryIndex);
+        assertEquals(checkpoint.createdUris, restored.createdUris);
+        assertEquals(ImportRequest.DEDUPE_SKIP, restored.dedupeMode);
+        assertEquals(NOW, restored.savedAtMillis);
+    }
+
+    public void testWithoutAccountAndCharset() throws Exception {
+        final ImportCheckpointStore.Checkpoint checkpoint = new ImportCheckpointStore.Checkpoint(
+                SOURCE_URI, SOURCE_URI, null, null, VCardSourceDetector.PARSE_TYPE_UNKNOWN, null,
+                ImportVCardActivity.VCARD_VERSION_AUTO_DETECT, 0L, 100,
+                Collections.<Uri>emptyList(), ImportRequest.DEDUPE_NONE, NOW);
+
+        final ImportCheckpointStore.Checkpoint restored = ImportCheckpointStore.fromJson(
+                SOURCE_URI, ImportCheckpointStore.toJson(checkpoint));
+        assertNull(restored.account);
+        assertNull(restored.estimatedCharset);
+        assertTrue(restored.createdUris.isEmpty());
+    }
+
+    public void testExpiry() {
+        final ImportCheckpointStore.Checkpoint checkpoint = new ImportCheckpointStore.Checkpoint(
+                SOURCE_URI, CACHE_URI, null, null, VCardSourceDetector.PARSE_TYPE_UNKNOWN, null,
+                ImportVCardActivity.VCARD_VERSION_AUTO_DETECT, 0L, 100,
+                Collections.<Uri>emptyList(), ImportRequest.DEDUPE_NONE, NOW);
+
+        assertFalse(checkpoint.isExpired(NOW));
+        assertFalse(checkpoint.isExpired(NOW + ImportCheckpointStore.MAX_AGE_MILLIS));
+        assertTrue(checkpoint.isExpired(NOW + ImportCheckpointStore.MAX_AGE_MILLIS + 1));
+    }
+
+    public void testCheckpointWithoutSourceOrTime() {
+        // As saved before checkpoints recorded their source and time.
+        final String json = "{\"vcardType\":0,\"vcardVersion\":0,\"sourceLength\":10,"
+                + "\"entryIndex\":100,\"createdUris\":[]}";
+
+        final ImportCheckpointStore.Checkpoint restored =
+                ImportCheckpointStore.fromJson(CACHE_URI, json);
+        assertEquals(CACHE_URI, restored.sourceUri);
+        assertEquals(CACHE_URI, restored.uri);
+        assertTrue(restored.isExpired(NOW));
+    }
+
+    public void testBrokenCheckpoint() {
+        assertNull(ImportCheckpointStore.fromJson(SOURCE_URI, "{"));
+        assertNull(ImportCheckpointStore.fromJson(SOURCE_URI, null));
+    }
+}
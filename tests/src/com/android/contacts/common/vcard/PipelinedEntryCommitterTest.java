@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.vcard.VCardConfig;
+import com.android.vcard.VCardEntryConstructor;
+import com.android.vcard.VCardParser_V21;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link PipelinedEntryCommitter}.
+ */
+@SmallTest
+public class PipelinedEntryCommitterTest extends AndroidTestCase {
+
+    private final List<Integer> mBatchSizes = new ArrayList<Integer>();
+    private MockContentResolver mResolver;
+    private volatile boolean mFailBatches;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ContactsContract.AUTHORITY, new MockContentProvider() {
+            @Override
+            public ContentProviderResult[] applyBatch(
+                    ArrayList<ContentProviderOperation> operations) {
+                if (mFailBatches) {
+                    throw new IllegalStateException("provider failure");
+                }
+                int rawContacts = 0;
+                for (ContentProviderOperation operation : operations) {
+                    if (RawContacts.CONTENT_URI.equals(operation.getUri())) {
+                        rawContacts++;
+                    }
+                }
+                synchronized (mBatchSizes) {
+                    mBatchSizes.add(rawContacts);
+                }
+                final ContentProviderResult[] results =
+                        new ContentProviderResult[operations.size()];
+                results[0] = new ContentProviderResult(Uri.withAppendedPath(
+                        RawContacts.CONTENT_URI, String.valueOf(mBatchSizes.size())));
+                return results;
+            }
+        });
+    }
+
+    public void testCommitsInBatches() throws Exception {
+        final PipelinedEntryCommitter committer = new PipelinedEntryCommitter(mResolver, 3, 1);
+        parse(committer, 7);
+        committer.finish();
+
+        assertEquals(7, committer.getCommittedCount());
+        assertEquals(3, committer.getCreatedUris().size());
+        synchronized (mBatchSizes) {
+            assertEquals("[3, 3, 1]", mBatchSizes.toString());
+        }
+    }
+
+    public void testFinishWithoutEntries() {
+        final PipelinedEntryCommitter committer = new PipelinedEntryCommitter(mResolver, 3, 1);
+        committer.finish();
+        assertEquals(0, committer.getCommittedCount());
+        assertTrue(mBatchSizes.isEmpty());
+    }
+
+    public void testFailureStopsParser() throws Exception {
+        mFailBatches = true;
+        final PipelinedEntryCommitter committer = new PipelinedEntryCommitter(mResolver, 1, 1);
+        final long start = System.currentTimeMillis();
+        try {
+            parse(committer, 1000);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals("provider failure", expected.getMessage());
+        }
+        // Entries after the failure do not wait for the queue one by one.
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        try {
+            committer.finish();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testFinishWhenInterrupted() throws Exception {
+        final PipelinedEntryCommitter committer = new PipelinedEntryCommitter(mResolver, 3, 1);
+        final boolean[] interrupted = new boolean[1];
+        final Thread importThread = new Thread() {
+            @Override
+            public void run() {
+                committer.onStart();
+                interrupt();
+                committer.finish();
+                interrupted[0] = isInterrupted();
+            }
+        };
+        importThread.setDaemon(true);
+        importThread.start();
+        importThread.join(5000);
+
+        assertFalse("finish() did not return", importThread.isAlive());
+        assertTrue(interrupted[0]);
+    }
+
+    private void parse(PipelinedEntryCommitter committer, int entryCount) throws Exception {
+        final StringBuilder vcard = new StringBuilder();
+        for (int i = 0; i < entryCount; i++) {
+            vcard.append("BEGIN:VCARD\r\nVERSION:2.1\r\nN:Name").append(i)
+                    .append(";\r\nEND:VCARD\r\n");
+        }
+        final VCardEntryConstructor constructor = new VCardEntryConstructor(
+                VCardConfig.VCARD_TYPE_V21_GENERIC, null, null);
+        constructor.addEntryHandler(committer);
+        new VCardParser_V21(VCardConfig.VCARD_TYPE_V21_GENERIC).parse(
+                new ByteArrayInputStream(vcard.toString().getBytes()), constructor);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryConstructor;
+import com.android.vcard.VCardEntryHandler;
+import com.android.vcard.VCardParser_V30;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link VCardDuplicateIndex}.
+ */
+@SmallTest
+public class VCardDuplicateIndexTest extends TestCase {
+    private VCardDuplicateIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new VCardDuplicateIndex();
+        mIndex.put(VCardDuplicateIndex.KIND_PHONE, "John Doe", "+16505551212", 1);
+        mIndex.put(VCardDuplicateIndex.KIND_EMAIL, "Jane Roe", "jane@example.com", 2);
+        mIndex.put(VCardDuplicateIndex.KIND_NAME, "Only Name", null, 3);
+    }
+
+    public void testSamePhoneNumber() throws Exception {
+        assertEquals(1, mIndex.findDuplicate(parse("FN:John Doe\r\nTEL:+1 650-555-1212\r\n")));
+    }
+
+    public void testSameEmailIgnoringCase() throws Exception {
+        assertEquals(2, mIndex.findDuplicate(
+                parse("FN:Jane Roe\r\nEMAIL:Jane@Example.com\r\n")));
+    }
+
+    public void testSameNameWithOtherNumber() throws Exception {
+        assertEquals(VCardDuplicateIndex.NO_DUPLICATE,
+                mIndex.findDuplicate(parse("FN:John Doe\r\nTEL:+16505550000\r\n")));
+    }
+
+    public void testSameNumberWithOtherName() throws Exception {
+        assertEquals(VCardDuplicateIndex.NO_DUPLICATE,
+                mIndex.findDuplicate(parse("FN:Someone Else\r\nTEL:+16505551212\r\n")));
+    }
+
+    public void testSameNameOnly() throws Exception {
+        assertEquals(3, mIndex.findDuplicate(parse("FN:Only Name\r\n")));
+    }
+
+    public void testRowsAreKeyedByNameOfTheirRawContact() throws Exception {
+        final VCardDuplicateIndex index = new VCardDuplicateIndex();
+        final MatrixCursor cursor = new MatrixCursor(VCardDuplicateIndex.PROJECTION);
+        // The number of a raw contact may come before its name.
+        cursor.addRow(new Object[] {10L, Phone.CONTENT_ITEM_TYPE, "+1 650-555-0101"});
+        cursor.addRow(new Object[] {10L, StructuredName.CONTENT_ITEM_TYPE, "Ann Lee"});
+        cursor.addRow(new Object[] {11L, StructuredName.CONTENT_ITEM_TYPE, "Bob Lee"});
+        cursor.addRow(new Object[] {11L, Email.CONTENT_ITEM_TYPE, "bob@example.com"});
+        // Without a name of its own, a raw contact has no keys.
+        cursor.addRow(new Object[] {12L, Phone.CONTENT_ITEM_TYPE, "+16505550102"});
+        index.addRows(cursor);
+
+        assertEquals(10, index.findDuplicate(parse("FN:Ann Lee\r\nTEL:+16505550101\r\n")));
+        assertEquals(11, index.findDuplicate(parse("FN:Bob Lee\r\nEMAIL:bob@example.com\r\n")));
+        assertEquals(VCardDuplicateIndex.NO_DUPLICATE,
+                index.findDuplicate(parse("FN:Ann Lee\r\nEMAIL:bob@example.com\r\n")));
+        assertEquals(2, index.size());
+    }
+
+    public void testSameNameOnlyMatchesContactWithoutNumbersAndAddresses() throws Exception {
+        final VCardDuplicateIndex index = new VCardDuplicateIndex();
+        final MatrixCursor cursor = new MatrixCursor(VCardDuplicateIndex.PROJECTION);
+        cursor.addRow(new Object[] {20L, StructuredName.CONTENT_ITEM_TYPE, "John Smith"});
+        cursor.addRow(new Object[] {20L, Phone.CONTENT_ITEM_TYPE, "+16505550103"});
+        cursor.addRow(new Object[] {21L, StructuredName.CONTENT_ITEM_TYPE, "Jane Smith"});
+        index.addRows(cursor);
+
+        // Possibly another John Smith: nothing but the name to go by.
+        assertEquals(VCardDuplicateIndex.NO_DUPLICATE,
+                index.findDuplicate(parse("FN:John Smith\r\n")));
+        assertEquals(21, index.findDuplicate(parse("FN:Jane Smith\r\n")));
+        assertEquals(VCardDuplicateIndex.NO_DUPLICATE,
+                index.findDuplicate(parse("FN:Jane Smith\r\nTEL:+16505550104\r\n")));
+    }
+
+    public void testManyKeys() throws Exception {
+        final VCardDuplicateIndex index = new VCardDuplicateIndex();
+        for (int i = 0; i < 1000; i++) {
+            index.put(VCardDuplicateIndex.KIND_NAME, "Name " + i, null, i);
+        }
+        assertEquals(1000, index.size());
+        for (int i = 0; i < 1000; i += 97) {
+            assertEquals(i, index.findDuplicate(parse("FN:Name " + i + "\r\n")));
+        }
+        assertEquals(VCardDuplicateIndex.NO_DUPLICATE,
+                index.findDuplicate(parse("FN:Name 1000\r\n")));
+    }
+
+    private static VCardEntry parse(String properties) throws Exception {
+        final String vcard = "BEGIN:VCARD\r\nVERSION:3.0\r\n" + properties + "END:VCARD\r\n";
+        final List<VCardEntry> entries = new ArrayList<VCardEntry>();
+        final VCardEntryConstructor constructor = new VCardEntryConstructor();
+        constructor.addEntryHandler(new VCardEntryHandler() {
+            @Override
+            public void onStart() {
+            }
+
+            @Override
+            public void onEntryCreated(VCardEntry entry) {
+                entries.add(entry);
+            }
+
+            @Override
+            public void onEnd() {
+            }
+        });
+        new VCardParser_V30().parse(new ByteArrayInputStream(vcard.getBytes("UTF-8")),
+                constructor);
+        assertEquals(1, entries.size());
+        return entries.get(0);
+    }
+}
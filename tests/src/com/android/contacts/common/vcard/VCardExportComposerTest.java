@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.ContentResolver;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.vcard.VCardConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link VCardExportComposer}, against a fake contacts provider.
+ */
+@MediumTest
+public class VCardExportComposerTest extends AndroidTestCase {
+    /** Enough contacts for {@link ExportProcessor} to compose them in parallel. */
+    private static final int CONTACT_COUNT = 600;
+
+    private static final String[] ENTITY_COLUMNS = new String[] {
+            RawContacts._ID, RawContacts.CONTACT_ID, RawContacts.ACCOUNT_NAME,
+            RawContacts.ACCOUNT_TYPE, RawContacts.DATA_SET, RawContacts.SOURCE_ID,
+            RawContacts.VERSION, RawContacts.DIRTY, RawContacts.DELETED, RawContacts.STARRED,
+            RawContacts.SYNC1, RawContacts.SYNC2, RawContacts.SYNC3, RawContacts.SYNC4,
+            RawContactsEntity.DATA_ID, Data.RES_PACKAGE, Data.MIMETYPE, Data.IS_PRIMARY,
+            Data.IS_SUPER_PRIMARY, Data.DATA_VERSION, GroupMembership.GROUP_SOURCE_ID,
+            Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA5, Data.DATA6, Data.DATA7,
+            Data.DATA8, Data.DATA9, Data.DATA10, Data.DATA11, Data.DATA12, Data.DATA13,
+            Data.DATA14, Data.DATA15, Data.SYNC1, Data.SYNC2, Data.SYNC3, Data.SYNC4,
+    };
+
+    private ContextWrapper mContext;
+    private int mWrittenCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, new FakeContactsProvider());
+        mContext = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+    }
+
+    public void testParallelExportWritesSameBytesAsSerialExport() throws Exception {
+        final ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        final Writer serialWriter = new OutputStreamWriter(serial, "UTF-8");
+        assertEquals(CONTACT_COUNT, newComposer().composeSerially(null, null, serialWriter));
+        serialWriter.close();
+        assertEquals(CONTACT_COUNT, mWrittenCount);
+
+        final long[] contactIds = new long[CONTACT_COUNT];
+        for (int i = 0; i < CONTACT_COUNT; i++) {
+            contactIds[i] = i + 1;
+        }
+        final ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        final Writer parallelWriter = new OutputStreamWriter(parallel, "UTF-8");
+        assertTrue(newComposer().composeInParallel(contactIds, 4, parallelWriter));
+        parallelWriter.close();
+        assertEquals(CONTACT_COUNT, mWrittenCount);
+
+        final String vcards = new String(serial.toByteArray(), "UTF-8");
+        assertEquals(CONTACT_COUNT, vcards.split("BEGIN:VCARD", -1).length - 1);
+        assertTrue(vcards.contains("contact600@example.com"));
+        assertEquals(vcards, new String(parallel.toByteArray(), "UTF-8"));
+        assertTrue(Arrays.equals(serial.toByteArray(), parallel.toByteArray()));
+    }
+
+    private VCardExportComposer newComposer() {
+        mWrittenCount = 0;
+        return new VCardExportComposer(mContext, VCardConfig.VCARD_TYPE_V30_GENERIC,
+                new VCardStageTimings(), new VCardExportComposer.Callback() {
+                    @Override
+                    public boolean isCancelled() {
+                        return false;
+                    }
+
+                    @Override
+                    public void onWritten(int writtenCount, int totalCount) {
+                        assertEquals(CONTACT_COUNT, totalCount);
+                        mWrittenCount = writtenCount;
+                    }
+                });
+    }
+
+    /**
+     * Serves {@link #CONTACT_COUNT} contacts, with ids from 1, each with one raw contact that
+     * has a name, a phone number and an email address.
+     */
+    private static class FakeContactsProvider extends MockContentProvider {
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (Contacts.CONTENT_URI.equals(uri)) {
+                return queryContacts(projection, selection);
+            } else if (RawContactsEntity.CONTENT_URI.equals(uri)) {
+                // The composer reads the data of one contact at a time, by id.
+                return queryEntities(Long.parseLong(selectionArgs[0]));
+            }
+            return null;
+        }
+
+        /**
+         * Returns all contacts, or only those of an "_id IN (...)" selection, by id.
+         */
+        private static Cursor queryContacts(String[] projection, String selection) {
+            final MatrixCursor cursor = new MatrixCursor(projection);
+            if (selection == null) {
+                for (long id = 1; id <= CONTACT_COUNT; id++) {
+                    addContact(cursor, id);
+                }
+                return cursor;
+            }
+            final String ids = selection.substring(selection.indexOf('(') + 1,
+                    selection.lastIndexOf(')'));
+            for (String id : ids.split(",")) {
+                addContact(cursor, Long.parseLong(id.trim()));
+            }
+            return cursor;
+        }
+
+        private static void addContact(MatrixCursor cursor, long id) {
+            final Object[] row = new Object[cursor.getColumnCount()];
+            Arrays.fill(row, id);
+            cursor.addRow(row);
+        }
+
+        private static Cursor queryEntities(long contactId) {
+            final MatrixCursor cursor = new MatrixCursor(ENTITY_COLUMNS);
+            addData(cursor, contactId, 0, StructuredName.CONTENT_ITEM_TYPE,
+                    "Contact " + contactId, "Contact", String.valueOf(contactId));
+            addData(cursor, contactId, 1, Phone.CONTENT_ITEM_TYPE,
+                    String.format("+1650555%04d", contactId), Phone.TYPE_MOBILE, null);
+            addData(cursor, contactId, 2, Email.CONTENT_ITEM_TYPE,
+                    "contact" + contactId + "@example.com", Email.TYPE_HOME, null);
+            return cursor;
+        }
+
+        private static void addData(MatrixCursor cursor, long contactId, int index,
+                String mimeType, Object data1, Object data2, Object data3) {
+            cursor.newRow()
+                    .add(contactId)            // RawContacts._ID
+                    .add(contactId)            // RawContacts.CONTACT_ID
+                    .add(null)                 // RawContacts.ACCOUNT_NAME
+                    .add(null)                 // RawContacts.ACCOUNT_TYPE
+                    .add(null)                 // RawContacts.DATA_SET
+                    .add(null)                 // RawContacts.SOURCE_ID
+                    .add(1)                    // RawContacts.VERSION
+                    .add(0)                    // RawContacts.DIRTY
+                    .add(0)                    // RawContacts.DELETED
+                    .add(0)                    // RawContacts.STARRED
+                    .add(null).add(null).add(null).add(null)  // RawContacts.SYNC1-4
+                    .add(contactId * 10 + index)  // RawContactsEntity.DATA_ID
+                    .add(null)                 // Data.RES_PACKAGE
+                    .add(mimeType)             // Data.MIMETYPE
+                    .add(0)                    // Data.IS_PRIMARY
+                    .add(0)                    // Data.IS_SUPER_PRIMARY
+                    .add(1)                    // Data.DATA_VERSION
+                    .add(null)                 // GroupMembership.GROUP_SOURCE_ID
+                    .add(data1).add(data2).add(data3);
+            // The remaining data and sync columns are null.
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link VCardFileScanner}.
+ */
+@MediumTest
+public class VCardFileScannerTest extends AndroidTestCase {
+    /** Old enough for the scanner to trust the modification times. */
+    private static final long PAST_MILLIS = System.currentTimeMillis() - 60 * 1000;
+
+    private File mRoot;
+    private File mIndexFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new File(getContext().getCacheDir(), "scanner_test");
+        deleteRecursively(mRoot);
+        mRoot.mkdirs();
+        mIndexFile = new File(getContext().getCacheDir(), "scanner_test_index");
+        mIndexFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mRoot);
+        mIndexFile.delete();
+        super.tearDown();
+    }
+
+    public void testFindsNestedFiles() throws IOException {
+        createFile("a.vcf");
+        createFile("sub/b.VCF");
+        createFile("sub/deeper/c.vcf");
+        createFile("sub/not_a_vcard.txt");
+
+        assertEquals(paths("a.vcf", "sub/b.VCF", "sub/deeper/c.vcf"), scan());
+    }
+
+    public void testUnchangedDirectoryIsNotListedAgain() throws IOException {
+        createFile("sub/a.vcf");
+        final File sub = new File(mRoot, "sub");
+        setLastModified(mRoot, sub);
+        assertEquals(paths("sub/a.vcf"), scan());
+
+        // A file added behind the back of the modification time is not seen...
+        createFile("sub/b.vcf");
+        setLastModified(mRoot, sub);
+        assertEquals(paths("sub/a.vcf"), scan());
+
+        // ... until the directory is seen to change.
+        sub.setLastModified(PAST_MILLIS + 1000);
+        assertEquals(paths("sub/a.vcf", "sub/b.vcf"), scan());
+    }
+
+    public void testCancel() throws IOException {
+        createFile("a.vcf");
+        final VCardFileScanner scanner = new VCardFileScanner(mRoot, mIndexFile, ".secure");
+        scanner.cancel();
+        assertNull(scanner.scan());
+        assertFalse(mIndexFile.exists());
+    }
+
+    private List<String> scan() throws IOException {
+        final List<String> paths = new ArrayList<String>();
+        for (VCardFileScanner.FoundFile file :
+                new VCardFileScanner(mRoot, mIndexFile, ".secure").scan()) {
+            paths.add(file.canonicalPath);
+        }
+        return paths;
+    }
+
+    private List<String> paths(String... relativePaths) throws IOException {
+        final List<String> paths = new ArrayList<String>();
+        for (String relativePath : relativePaths) {
+            paths.add(new File(mRoot, relativePath).getCanonicalPath());
+        }
+        return paths;
+    }
+
+    private void createFile(String relativePath) throws IOException {
+        final File file = new File(mRoot, relativePath);
+        file.getParentFile().mkdirs();
+        new FileOutputStream(file).close();
+    }
+
+    private static void setLastModified(File... directories) {
+        for (File directory : directories) {
+            directory.setLastModified(PAST_MILLIS);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
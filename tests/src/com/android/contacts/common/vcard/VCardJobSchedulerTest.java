@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link VCardJobScheduler}.
+ */
+@MediumTest
+public class VCardJobSchedulerTest extends TestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private VCardJobScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new VCardJobScheduler(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.shutdown();
+        super.tearDown();
+    }
+
+    public void testIndependentJobsRunConcurrently() throws Exception {
+        final BlockingJob first = new BlockingJob();
+        final BlockingJob second = new BlockingJob();
+        mScheduler.submit(first, "a", VCardJobScheduler.PRIORITY_NORMAL);
+        mScheduler.submit(second, "b", VCardJobScheduler.PRIORITY_NORMAL);
+
+        assertTrue(first.awaitStarted());
+        assertTrue(second.awaitStarted());
+        first.release();
+        second.release();
+    }
+
+    public void testJobsWithTheSameKeyRunInOrder() throws Exception {
+        final BlockingJob first = new BlockingJob();
+        final BlockingJob second = new BlockingJob();
+        final BlockingJob other = new BlockingJob();
+        mScheduler.submit(first, "a", VCardJobScheduler.PRIORITY_NORMAL);
+        mScheduler.submit(second, "a", VCardJobScheduler.PRIORITY_HIGH);
+        mScheduler.submit(other, null, VCardJobScheduler.PRIORITY_NORMAL);
+
+        assertTrue(first.awaitStarted());
+        // The waiting job does not block the one behind it.
+        assertTrue(other.awaitStarted());
+        assertEquals(1, mScheduler.getPendingCount());
+
+        first.release();
+        assertTrue(second.awaitStarted());
+        second.release();
+        other.release();
+    }
+
+    public void testCancelledJobDoesNotWaitForConflict() throws Exception {
+        final BlockingJob first = new BlockingJob();
+        final BlockingJob second = new BlockingJob();
+        mScheduler.submit(first, "a", VCardJobScheduler.PRIORITY_NORMAL);
+        mScheduler.submit(second, "a", VCardJobScheduler.PRIORITY_NORMAL);
+        assertTrue(first.awaitStarted());
+
+        mScheduler.cancel(second);
+        assertTrue(second.awaitStarted());
+        first.release();
+    }
+
+    public void testRejectsAfterShutdown() {
+        mScheduler.shutdown();
+        try {
+            mScheduler.submit(new BlockingJob(), null, VCardJobScheduler.PRIORITY_NORMAL);
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+    }
+
+    /**
+     * Runs until released, unless cancelled.
+     */
+    private static class BlockingJob extends ProcessorBase {
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mReleased = new CountDownLatch(1);
+        private volatile boolean mCancelled;
+        private volatile boolean mDone;
+
+        public boolean awaitStarted() throws InterruptedException {
+            return mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        public void release() {
+            mReleased.countDown();
+        }
+
+        @Override
+        public int getType() {
+            return VCardService.TYPE_IMPORT;
+        }
+
+        @Override
+        public void run() {
+            mStarted.countDown();
+            try {
+                if (!mCancelled) {
+                    mReleased.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                // Done anyway.
+            }
+            mDone = true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            mCancelled = true;
+            mReleased.countDown();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.vcard.VCardConfig;
+import com.android.vcard.VCardConstants;
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryConstructor;
+import com.android.vcard.VCardEntryHandler;
+import com.android.vcard.VCardProperty;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link VCardPhotoSpiller}.
+ */
+@SmallTest
+public class VCardPhotoSpillerTest extends AndroidTestCase {
+    private static final int THRESHOLD_BYTES = 100;
+
+    private File mDirectory;
+    private VCardPhotoSpiller mSpiller;
+    /** Whether the handler takes the large photos of the entries. */
+    private boolean mTakePhotos = true;
+    private final List<VCardEntry> mEntries = new ArrayList<VCardEntry>();
+    private final List<File> mPhotos = new ArrayList<File>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = VCardPhotoSpiller.getDirectory(getContext().getCacheDir(), -1);
+        final VCardEntryConstructor constructor =
+                new VCardEntryConstructor(VCardConfig.VCARD_TYPE_DEFAULT);
+        constructor.addEntryHandler(new VCardEntryHandler() {
+            @Override
+            public void onStart() {
+            }
+
+            @Override
+            public void onEntryCreated(VCardEntry entry) {
+                mEntries.add(entry);
+                mPhotos.add(mTakePhotos ? mSpiller.takePendingPhoto() : null);
+            }
+
+            @Override
+            public void onEnd() {
+            }
+        });
+        mSpiller = new VCardPhotoSpiller(constructor, mDirectory, THRESHOLD_BYTES);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSpiller.deleteFiles();
+        super.tearDown();
+    }
+
+    public void testSmallPhotoStaysInEntry() {
+        final byte[] photo = bytes(THRESHOLD_BYTES);
+        parseEntry(photoProperty(photo));
+
+        assertNull(mPhotos.get(0));
+        assertEquals(1, mEntries.get(0).getPhotoList().size());
+        assertTrue(Arrays.equals(photo, mEntries.get(0).getPhotoList().get(0).getBytes()));
+    }
+
+    public void testLargePhotoIsWrittenToFile() throws IOException {
+        final byte[] photo = bytes(THRESHOLD_BYTES + 1);
+        parseEntry(photoProperty(photo));
+
+        assertNull(mEntries.get(0).getPhotoList());
+        final File file = mPhotos.get(0);
+        assertNotNull(file);
+        assertTrue(Arrays.equals(photo, read(file)));
+        assertEquals(mDirectory, file.getParentFile());
+    }
+
+    public void testOnlyFirstLargePhotoIsKept() throws IOException {
+        final byte[] first = bytes(THRESHOLD_BYTES + 1);
+        parseEntry(photoProperty(first), photoProperty(bytes(THRESHOLD_BYTES + 2)));
+
+        assertTrue(Arrays.equals(first, read(mPhotos.get(0))));
+        assertEquals(1, mDirectory.listFiles().length);
+    }
+
+    public void testPhotoNotTakenIsDeleted() {
+        mTakePhotos = false;
+        parseEntry(photoProperty(bytes(THRESHOLD_BYTES + 1)));
+
+        assertEquals(1, mEntries.size());
+        assertEquals(0, mDirectory.listFiles().length);
+    }
+
+    public void testDeleteFiles() {
+        parseEntry(photoProperty(bytes(THRESHOLD_BYTES + 1)));
+        assertTrue(mPhotos.get(0).exists());
+
+        mSpiller.deleteFiles();
+        assertFalse(mPhotos.get(0).exists());
+        assertFalse(mDirectory.exists());
+    }
+
+    private void parseEntry(VCardProperty... photos) {
+        mSpiller.onVCardStarted();
+        mSpiller.onEntryStarted();
+        final VCardProperty name = new VCardProperty();
+        name.setName(VCardConstants.PROPERTY_FN);
+        name.addValues("Alice");
+        mSpiller.onPropertyCreated(name);
+        for (VCardProperty photo : photos) {
+            mSpiller.onPropertyCreated(photo);
+        }
+        mSpiller.onEntryEnded();
+        mSpiller.onVCardEnded();
+    }
+
+    private static VCardProperty photoProperty(byte[] bytes) {
+        final VCardProperty property = new VCardProperty();
+        property.setName(VCardConstants.PROPERTY_PHOTO);
+        property.addParameter(VCardConstants.PARAM_TYPE, "JPEG");
+        property.setByteValue(bytes);
+        return property;
+    }
+
+    private static byte[] bytes(int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + length);
+        }
+        return bytes;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int count = in.read(bytes, offset, bytes.length - offset);
+                if (count < 0) {
+                    break;
+                }
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
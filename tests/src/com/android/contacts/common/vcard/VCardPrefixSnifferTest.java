@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Tests for {@link VCardPrefixSniffer}.
+ */
+@SmallTest
+public class VCardPrefixSnifferTest extends TestCase {
+
+    public void testVersion30() throws IOException {
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V30,
+                sniff("BEGIN:VCARD\r\nVERSION:3.0\r\nN:Doe;John\r\nEND:VCARD\r\n"));
+    }
+
+    public void testVersion21() throws IOException {
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V21,
+                sniff("BEGIN:VCARD\r\nversion: 2.1\r\nN:Doe;John\r\nEND:VCARD\r\n"));
+    }
+
+    public void testNoVersion() throws IOException {
+        assertEquals(ImportVCardActivity.VCARD_VERSION_AUTO_DETECT,
+                sniff("BEGIN:VCARD\r\nN:Doe;John\r\nEND:VCARD\r\n"));
+    }
+
+    public void testOnlyReadsPrefix() throws IOException {
+        final StringBuilder vcard = new StringBuilder();
+        while (vcard.length() < VCardPrefixSniffer.PREFIX_LENGTH * 2) {
+            vcard.append("BEGIN:VCARD\r\nVERSION:3.0\r\nN:Doe;John\r\nEND:VCARD\r\n");
+        }
+        final ByteArrayInputStream is = new ByteArrayInputStream(vcard.toString().getBytes());
+        new VCardPrefixSniffer().sniff(is);
+        assertEquals(vcard.length() - VCardPrefixSniffer.PREFIX_LENGTH, is.available());
+    }
+
+    private static int sniff(String vcard) throws IOException {
+        final VCardPrefixSniffer sniffer = new VCardPrefixSniffer();
+        sniffer.sniff(new ByteArrayInputStream(vcard.getBytes()));
+        return sniffer.getVCardVersion();
+    }
+}
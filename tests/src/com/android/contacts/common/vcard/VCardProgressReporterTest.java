@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link VCardProgressReporter}.
+ */
+@SmallTest
+public class VCardProgressReporterTest extends TestCase {
+    private FakeClockReporter mReporter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mReporter = new FakeClockReporter();
+    }
+
+    public void testCoalescesUpdatesWithinInterval() {
+        assertTrue(mReporter.update(1, 100));
+        mReporter.mNow += 100;
+        assertFalse(mReporter.update(2, 200));
+        assertTrue(mReporter.hasPendingUpdate());
+        mReporter.mNow += 100;
+        assertFalse(mReporter.update(3, 300));
+        mReporter.mNow += 50;
+        assertTrue(mReporter.update(4, 400));
+        assertFalse(mReporter.hasPendingUpdate());
+    }
+
+    public void testThroughput() {
+        assertEquals(0, mReporter.getEntriesPerSecond());
+        mReporter.update(0, 0);
+        mReporter.mNow += 2000;
+        mReporter.update(100, 4096);
+        assertEquals(50, mReporter.getEntriesPerSecond());
+        assertEquals(2048, mReporter.getBytesPerSecond());
+    }
+
+    private static class FakeClockReporter extends VCardProgressReporter {
+        long mNow = 1000;
+
+        public FakeClockReporter() {
+            super(VCardProgressReporter.DEFAULT_MIN_INTERVAL_MILLIS);
+        }
+
+        @Override
+        long now() {
+            return mNow;
+        }
+    }
+}
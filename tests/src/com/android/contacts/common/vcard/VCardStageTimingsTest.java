@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests for {@link VCardStageTimings}.
+ */
+@SmallTest
+public class VCardStageTimingsTest extends TestCase {
+    private static final long MICROS = 1000;
+    private static final long MILLIS = 1000 * MICROS;
+
+    public void testBuckets() {
+        assertEquals(0, VCardStageTimings.Histogram.getBucket(0));
+        assertEquals(0, VCardStageTimings.Histogram.getBucket(1 * MICROS));
+        assertEquals(1, VCardStageTimings.Histogram.getBucket(2 * MICROS));
+        assertEquals(1, VCardStageTimings.Histogram.getBucket(3 * MICROS));
+        assertEquals(10, VCardStageTimings.Histogram.getBucket(1024 * MICROS));
+        assertEquals(VCardStageTimings.Histogram.BUCKET_COUNT - 1,
+                VCardStageTimings.Histogram.getBucket(Long.MAX_VALUE));
+    }
+
+    public void testHistogram() {
+        final VCardStageTimings.Histogram histogram = new VCardStageTimings.Histogram();
+        assertEquals(0.0, histogram.getPercentileMillis(0.5));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(3 * MICROS);
+        }
+        histogram.record(100 * MILLIS);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(100.297, histogram.getTotalMillis(), 1e-9);
+        assertEquals(100.0, histogram.getMaxMillis(), 1e-9);
+        // The upper end of the bucket of 2 to 4 microseconds.
+        assertEquals(0.004, histogram.getPercentileMillis(0.5), 1e-9);
+        assertEquals(0.004, histogram.getPercentileMillis(0.99), 1e-9);
+        // The bucket of the slowest duration ends beyond the maximum.
+        assertEquals(100.0, histogram.getPercentileMillis(1.0), 1e-9);
+    }
+
+    public void testAddAll() {
+        final VCardStageTimings job1 = new VCardStageTimings();
+        job1.record(VCardStageTimings.STAGE_PARSE, 2 * MILLIS);
+        job1.record(VCardStageTimings.STAGE_COMMIT_BATCH, 30 * MILLIS);
+        final VCardStageTimings job2 = new VCardStageTimings();
+        job2.record(VCardStageTimings.STAGE_PARSE, 5 * MILLIS);
+
+        final VCardStageTimings all = new VCardStageTimings();
+        all.addAll(job1);
+        all.addAll(job2);
+
+        final VCardStageTimings.Histogram parse =
+                all.getHistogram(VCardStageTimings.STAGE_PARSE);
+        assertEquals(2, parse.getCount());
+        assertEquals(7.0, parse.getTotalMillis(), 1e-9);
+        assertEquals(5.0, parse.getMaxMillis(), 1e-9);
+        assertEquals(1, all.getHistogram(VCardStageTimings.STAGE_COMMIT_BATCH).getCount());
+        assertEquals(0, all.getHistogram(VCardStageTimings.STAGE_COMPOSE).getCount());
+
+        all.reset();
+        assertEquals(0, parse.getCount());
+        assertEquals(0.0, parse.getMaxMillis());
+    }
+
+    public void testDumpSkipsEmptyStages() {
+        final VCardStageTimings timings = new VCardStageTimings();
+        timings.record(VCardStageTimings.STAGE_WRITE, 1 * MILLIS);
+
+        final StringWriter out = new StringWriter();
+        timings.dump("  ", new PrintWriter(out));
+
+        final String dump = out.toString();
+        assertTrue(dump, dump.startsWith("  write: n=1 "));
+        assertFalse(dump, dump.contains("parse"));
+    }
+}